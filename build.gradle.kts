@@ -3,7 +3,8 @@ import java.util.concurrent.Executors
 import java.util.concurrent.Future
 
 plugins {
-    kotlin("jvm") version "1.8.10"
+    // 1.9.20 is the first Kotlin plugin that accepts a Java 21 toolchain
+    kotlin("jvm") version "1.9.22"
     application
 }
 
@@ -19,8 +20,27 @@ dependencies {
     testImplementation("org.junit.jupiter:junit-jupiter")
 }
 
+// Worker jobs run on virtual threads and the nodes use pattern matching for switch
+java {
+    toolchain {
+        languageVersion.set(JavaLanguageVersion.of(21))
+    }
+}
+
+// Vector API kernel for the N-body components, see Field.calculateVector
+val vectorModules = listOf("--add-modules", "jdk.incubator.vector")
+
 application {
     mainClass.set("io.github.stcksmsh.App")
+    applicationDefaultJvmArgs = vectorModules
+}
+
+tasks.withType<JavaCompile>().configureEach {
+    options.compilerArgs.addAll(vectorModules)
+}
+
+tasks.withType<JavaExec>().configureEach {
+    jvmArgs(vectorModules)
 }
 
 tasks.withType<Jar>().configureEach {
@@ -104,4 +124,5 @@ tasks {
 }
 tasks.test {
     useJUnitPlatform()
+    jvmArgs(vectorModules)
 }
\ No newline at end of file
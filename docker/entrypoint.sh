@@ -1,6 +1,6 @@
 #!/bin/bash
 if [ -z "$HOST" ]; then
-  java -jar "$JAR_FILE" "$LOG_FILE" "$PORT"
+  java $JAVA_OPTS -jar "$JAR_FILE" "$LOG_FILE" "$PORT"
 else
-  java -jar "$JAR_FILE" "$LOG_FILE" "$HOST" "$PORT"
+  java $JAVA_OPTS -jar "$JAR_FILE" "$LOG_FILE" "$HOST" "$PORT"
 fi
@@ -0,0 +1,51 @@
+package io.github.stcksmsh.kdp.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Direct {@link ByteBuffer}s of one size shared by the connections of a process, so socket
+ * reads and writes do not allocate or copy through a temporary direct buffer
+ */
+public final class BufferPool {
+    /**
+     * Bytes of every buffer
+     */
+    public static int SIZE = Integer.getInteger("kdp.buffer.size", 1 << 16);
+    /**
+     * Buffers kept once released, the rest are left to the garbage collector
+     */
+    public static int CAPACITY = Integer.getInteger("kdp.buffer.pool", 1024);
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger size = new AtomicInteger();
+
+    private BufferPool() {
+    }
+
+    /**
+     * A cleared buffer of SIZE bytes
+     */
+    public static ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(SIZE);
+        }
+        size.decrementAndGet();
+        return buffer;
+    }
+
+    public static void release(ByteBuffer buffer) {
+        if (buffer.capacity() != SIZE || size.get() >= CAPACITY) {
+            return;
+        }
+        size.incrementAndGet();
+        free.offer(buffer.clear());
+    }
+
+    /** Buffers waiting to be reused */
+    public static int size() {
+        return size.get();
+    }
+}
@@ -0,0 +1,628 @@
+package io.github.stcksmsh.kdp.common;
+
+import io.github.stcksmsh.kdp.distBuffer.EventList;
+import io.github.stcksmsh.kdp.distBuffer.Promises;
+import rs.ac.bg.etf.sleep.simulation.Event;
+import rs.ac.bg.etf.sleep.simulation.Netlist;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+/**
+ * Binary wire format of the {@link NetworkMessage}s
+ * <p>
+ * Every message is a frame: a header of the protocol version (one byte), the message type (one
+ * byte) and the payload length (int), then the payload. Job ids are sent as integer handles, a
+ * handle is followed by its id only the first time it crosses the connection, and both ends forget
+ * it once a {@link NetworkMessage.KillJobMessage} or {@link NetworkMessage.JobDoneMessage} for the
+ * job crossed, the payload codecs then release what they kept for the job's values. Event payloads
+ * with a {@link PayloadCodec} the application registered are written by it, everything else and
+ * the netlist of a new job go through {@link #FALLBACK}. The event payloads of the jobs set with
+ * {@link #setCompressed} are written compressed where their codec supports it.
+ * <p>
+ * What a frame tells the other end, a new handle or a snapshot it now has, is only taken as known
+ * once the whole frame is built. A frame that fails to build is not written and leaves the
+ * encoder as it was.
+ * <p>
+ * Both ends of a connection must register the same payload codecs in the same order, the nodes
+ * do it through {@link #load} before they connect. A node that is done with a job calls
+ * {@link #endJob} so the codecs drop what they kept for it.
+ */
+public final class MessageCodec {
+    public static final int VERSION = 1;
+    /** Bytes of a frame header */
+    public static final int HEADER = 6;
+
+    /**
+     * Writes and reads one payload class
+     */
+    public interface PayloadCodec {
+        /**
+         * @param jobId      the job of the event list the value travels in
+         * @param connection identifies the connection, for codecs that avoid repeating data
+         * @param compress   whether the value's job is compressed
+         */
+        void write(Object value, String jobId, DataOutputStream out, Object connection, boolean compress) throws IOException;
+
+        /**
+         * @param jobId      the job of the event list the value travels in
+         * @param connection identifies the connection, the decoder of the encoder that wrote it
+         */
+        Object read(DataInputStream in, String jobId, Object connection) throws IOException;
+
+        /**
+         * The frame the values written since the last call belong to is complete, what they
+         * told the other end stands
+         */
+        default void commit(Object connection) {
+        }
+
+        /**
+         * The frame the values written since the last call belong to is dropped, the other end
+         * will not see them
+         */
+        default void rollback(Object connection) {
+        }
+
+        /**
+         * The job ended on the connection, at the same message on both ends
+         */
+        default void release(Object connection, String jobId) {
+        }
+
+        /**
+         * The job ended on this node, see {@link #endJob}
+         *
+         * @return a line for the node's log, null for none
+         */
+        default String end(String jobId) {
+            return null;
+        }
+    }
+
+    /**
+     * Turns the objects without a codec into bytes and back
+     */
+    public interface Serializer {
+        byte[] serialize(Object value) throws IOException;
+
+        Object deserialize(byte[] bytes) throws IOException;
+    }
+
+    /**
+     * Java serialization
+     */
+    public static Serializer FALLBACK = new Serializer() {
+        @Override
+        public byte[] serialize(Object value) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(value);
+            }
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public Object deserialize(byte[] bytes) throws IOException {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                return in.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new InvalidClassException(e.getMessage());
+            }
+        }
+    };
+
+    private static final byte NULL = 0;
+    private static final byte SERIALIZED = -1;
+    private static final List<Class<?>> types = new ArrayList<>();
+    private static final List<PayloadCodec> codecs = new ArrayList<>();
+    private static final Set<String> compressed = Collections.synchronizedSet(new HashSet<>());
+    private static final Set<String> loaded = new HashSet<>();
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Registers the codec of an exact payload class, at most 127 of them
+     */
+    public static synchronized void register(Class<?> type, PayloadCodec codec) {
+        if (types.size() == Byte.MAX_VALUE) {
+            throw new IllegalStateException("Too many payload codecs");
+        }
+        types.add(type);
+        codecs.add(codec);
+    }
+
+    /**
+     * Calls the public static register() of each of the comma separated classes, which registers
+     * the payload codecs of an application. A class is only called the first time it is named.
+     *
+     * @throws IllegalArgumentException when a class or its register() is missing
+     */
+    public static synchronized void load(String classes) {
+        for (String name : classes.split(",")) {
+            name = name.trim();
+            if (name.isEmpty() || !loaded.add(name)) {
+                continue;
+            }
+            try {
+                Class.forName(name).getMethod("register").invoke(null);
+            } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+                throw new IllegalArgumentException("No payload codecs to register in " + name, e);
+            } catch (InvocationTargetException e) {
+                throw new IllegalArgumentException("Registering the payload codecs of " + name + " failed", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Tells every payload codec that the job ended on this node and stops compressing it
+     *
+     * @return the lines the codecs have for the node's log
+     */
+    public static List<String> endJob(String jobId) {
+        List<PayloadCodec> registered;
+        synchronized (MessageCodec.class) {
+            registered = new ArrayList<>(codecs);
+        }
+        List<String> result = new ArrayList<>();
+        for (PayloadCodec codec : registered) {
+            String line = codec.end(jobId);
+            if (line != null) {
+                result.add(line);
+            }
+        }
+        compressed.remove(jobId);
+        return result;
+    }
+
+    /**
+     * Switches compression of the job's event payloads on or off for every encoder of this node,
+     * decoders need no setting
+     */
+    public static void setCompressed(String jobId, boolean on) {
+        if (on) {
+            compressed.add(jobId);
+        } else {
+            compressed.remove(jobId);
+        }
+    }
+
+    public static boolean isCompressed(String jobId) {
+        return compressed.contains(jobId);
+    }
+
+    private static synchronized int tag(Class<?> type) {
+        return types.indexOf(type) + 1;
+    }
+
+    private static synchronized PayloadCodec codec(int tag) {
+        return codecs.get(tag - 1);
+    }
+
+    /**
+     * Tells every payload codec that the job ended on connection
+     */
+    private static void release(Object connection, String jobId) {
+        List<PayloadCodec> registered;
+        synchronized (MessageCodec.class) {
+            registered = new ArrayList<>(codecs);
+        }
+        for (PayloadCodec codec : registered) {
+            codec.release(connection, jobId);
+        }
+    }
+
+    /**
+     * Writing end of a connection, not thread safe
+     */
+    public static class Encoder {
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream frame = new ByteArrayOutputStream(1024);
+        private final DataOutputStream payload = new DataOutputStream(frame);
+        private final Map<String, Integer> handles = new HashMap<>();
+        private int nextHandle;
+        /** Jobs given a handle by the frame being built */
+        private final List<String> added = new ArrayList<>();
+        /** Codecs that wrote a value into the frame being built */
+        private final List<PayloadCodec> used = new ArrayList<>();
+        /** Job of the event list being written and whether it is compressed */
+        private String jobId;
+        private boolean compress;
+
+        public Encoder(OutputStream out) {
+            this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        }
+
+        /**
+         * Writes message as one frame and flushes it
+         */
+        public void write(NetworkMessage message) throws IOException {
+            append(message);
+            flush();
+        }
+
+        /**
+         * Writes message as one frame, it stays buffered until the next {@link #flush()}
+         */
+        public void append(NetworkMessage message) throws IOException {
+            frame.reset();
+            try {
+                writePayload(message);
+            } catch (IOException | RuntimeException e) {
+                rollback();
+                throw e;
+            }
+            commit();
+            switch (message.getType()) {
+                case KILL_JOB -> release(((NetworkMessage.KillJobMessage) message).getJobId());
+                case JOB_DONE -> release(((NetworkMessage.JobDoneMessage) message).getJobId());
+                default -> {
+                    // the job goes on
+                }
+            }
+            out.writeByte(VERSION);
+            out.writeByte(message.getType().ordinal());
+            out.writeInt(frame.size());
+            frame.writeTo(out);
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        private void release(String jobId) {
+            handles.remove(jobId);
+            MessageCodec.release(this, jobId);
+        }
+
+        private void commit() {
+            for (PayloadCodec codec : used) {
+                codec.commit(this);
+            }
+            used.clear();
+            added.clear();
+        }
+
+        /**
+         * Takes back the handles the frame gave out, they were the last ones
+         */
+        private void rollback() {
+            for (PayloadCodec codec : used) {
+                codec.rollback(this);
+            }
+            used.clear();
+            for (String jobId : added) {
+                handles.remove(jobId);
+            }
+            nextHandle -= added.size();
+            added.clear();
+        }
+
+        private void writePayload(NetworkMessage message) throws IOException {
+            switch (message.getType()) {
+                case EVENT_LIST -> {
+                    EventList<?> list = ((NetworkMessage.EventListMessage<?>) message).getEventList();
+                    writeJob(list.getJobId());
+                    jobId = list.getJobId();
+                    compress = isCompressed(jobId);
+                    payload.writeLong(list.getRound());
+                    payload.writeInt(list.getEvents().size());
+                    for (Event<?> event : list.getEvents()) {
+                        writeEvent(event);
+                    }
+                    payload.writeBoolean(list.getPromises() != null);
+                    if (list.getPromises() != null) {
+                        writePromises(list.getPromises());
+                    }
+                }
+                case NULL_MESSAGE -> writePromises(((NetworkMessage.NullMessage) message).getPromises());
+                case GVT_REQUEST -> {
+                    NetworkMessage.GvtRequest request = (NetworkMessage.GvtRequest) message;
+                    writeJob(request.getJobId());
+                    payload.writeLong(request.getRound());
+                }
+                case GVT_REPORT -> {
+                    NetworkMessage.GvtReport report = (NetworkMessage.GvtReport) message;
+                    writeJob(report.getJobId());
+                    payload.writeLong(report.getRound());
+                    payload.writeLong(report.getBalance());
+                    payload.writeLong(report.getMinimum());
+                }
+                case GVT -> {
+                    NetworkMessage.GvtMessage gvt = (NetworkMessage.GvtMessage) message;
+                    writeJob(gvt.getJobId());
+                    payload.writeLong(gvt.getGvt());
+                }
+                case SIGN_ON_REQUEST -> payload.writeInt(((NetworkMessage.SignOnRequest) message).getPeerPort());
+                case NEW_JOB -> {
+                    NetworkMessage.NewJobMessage<?> job = (NetworkMessage.NewJobMessage<?>) message;
+                    writeJob(job.getJobId());
+                    payload.writeLong(job.getEndTime());
+                    writeBytes(FALLBACK.serialize(job.getNetList()));
+                    payload.writeBoolean(job.getManagerId() != null);
+                    if (job.getManagerId() != null) {
+                        writeRoutes(job);
+                    }
+                    payload.writeBoolean(job.isCompressed());
+                }
+                case KILL_JOB -> writeJob(((NetworkMessage.KillJobMessage) message).getJobId());
+                case JOB_DONE -> writeJob(((NetworkMessage.JobDoneMessage) message).getJobId());
+                default -> {
+                    // no payload
+                }
+            }
+        }
+
+        /**
+         * The receiver's id, the peer addresses, then the owners as indices into the managers
+         * written before them
+         */
+        private void writeRoutes(NetworkMessage.NewJobMessage<?> job) throws IOException {
+            payload.writeUTF(job.getManagerId());
+            payload.writeInt(job.getPeers().size());
+            for (Map.Entry<String, InetSocketAddress> peer : job.getPeers().entrySet()) {
+                payload.writeUTF(peer.getKey());
+                payload.writeUTF(peer.getValue().getHostString());
+                payload.writeInt(peer.getValue().getPort());
+            }
+            Map<String, Integer> managers = new HashMap<>();
+            for (String owner : job.getOwners().values()) {
+                managers.putIfAbsent(owner, managers.size());
+            }
+            String[] ids = new String[managers.size()];
+            managers.forEach((id, index) -> ids[index] = id);
+            payload.writeInt(ids.length);
+            for (String id : ids) {
+                payload.writeUTF(id);
+            }
+            payload.writeInt(job.getOwners().size());
+            for (Map.Entry<Long, String> owner : job.getOwners().entrySet()) {
+                payload.writeLong(owner.getKey());
+                payload.writeInt(managers.get(owner.getValue()));
+            }
+        }
+
+        private void writeJob(String jobId) throws IOException {
+            Integer handle = handles.get(jobId);
+            if (handle != null) {
+                payload.writeInt(handle);
+                return;
+            }
+            handle = nextHandle++;
+            handles.put(jobId, handle);
+            added.add(jobId);
+            payload.writeInt(handle);
+            payload.writeUTF(jobId);
+        }
+
+        private void writeEvent(Event<?> event) throws IOException {
+            payload.writeLong(event.getId());
+            payload.writeByte(event.getStatus());
+            payload.writeLong(event.getlTimeCreated());
+            payload.writeLong(event.getlTime());
+            payload.writeLong(event.getSrcID());
+            payload.writeInt(event.getSrcPort());
+            payload.writeLong(event.getDstID());
+            payload.writeInt(event.getDstPort());
+            payload.writeLong(event.getDeadline());
+            payload.writeLong(event.getSerial());
+            Object data = event.getData();
+            if (data == null) {
+                payload.writeByte(NULL);
+                return;
+            }
+            int tag = tag(data.getClass());
+            if (tag == 0) {
+                payload.writeByte(SERIALIZED);
+                writeBytes(FALLBACK.serialize(data));
+                return;
+            }
+            payload.writeByte(tag);
+            PayloadCodec codec = codec(tag);
+            if (!used.contains(codec)) {
+                used.add(codec);
+            }
+            codec.write(data, jobId, payload, this, compress);
+        }
+
+        private void writePromises(Promises promises) throws IOException {
+            writeJob(promises.getJobId());
+            int n = promises.size();
+            payload.writeInt(n);
+            for (int i = 0; i < n; i++) {
+                payload.writeLong(promises.getSrcId(i));
+                payload.writeInt(promises.getSrcPort(i));
+                payload.writeLong(promises.getTime(i));
+            }
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            payload.writeInt(bytes.length);
+            payload.write(bytes);
+        }
+    }
+
+    /**
+     * Reading end of a connection, not thread safe
+     */
+    public static class Decoder {
+        private final DataInputStream in;
+        private final Map<Integer, String> jobs = new HashMap<>();
+        private int nextHandle;
+        private byte[] buffer = new byte[1024];
+
+        public Decoder(InputStream in) {
+            this.in = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        }
+
+        /**
+         * A decoder that is handed whole frames through {@link #decode}, for callers that do
+         * their own framing
+         */
+        public Decoder() {
+            this.in = null;
+        }
+
+        /**
+         * Reads the next frame, skipping frames of unknown types
+         *
+         * @throws EOFException when the connection was closed
+         */
+        public NetworkMessage read() throws IOException {
+            while (true) {
+                int version = in.readUnsignedByte();
+                if (version != VERSION) {
+                    throw new StreamCorruptedException("Unsupported protocol version " + version);
+                }
+                int type = in.readUnsignedByte();
+                int length = in.readInt();
+                if (buffer.length < length) {
+                    buffer = new byte[Math.max(length, buffer.length * 2)];
+                }
+                in.readFully(buffer, 0, length);
+                NetworkMessage message = decode(type, buffer, length);
+                if (message != null) {
+                    return message;
+                }
+            }
+        }
+
+        /**
+         * Decodes the payload of a frame of the given type
+         *
+         * @return null for an unknown type
+         */
+        public NetworkMessage decode(int type, byte[] bytes, int length) throws IOException {
+            if (type >= NetworkMessage.MessageType.values().length) {
+                return null;
+            }
+            DataInputStream payload = new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+            return readPayload(NetworkMessage.MessageType.values()[type], payload);
+        }
+
+        private NetworkMessage readPayload(NetworkMessage.MessageType type, DataInputStream payload) throws IOException {
+            return switch (type) {
+                case SIGN_ON_REQUEST -> new NetworkMessage.SignOnRequest(payload.available() >= 4 ? payload.readInt() : 0);
+                case SIGN_ON_RESPONSE -> new NetworkMessage.SignOnResponse();
+                case PING_REQUEST -> new NetworkMessage.PingRequest();
+                case PING_RESPONSE -> new NetworkMessage.PingResponse();
+                case EVENT_LIST -> {
+                    String jobId = readJob(payload);
+                    long round = payload.readLong();
+                    int n = payload.readInt();
+                    List<Event<Object>> events = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++) {
+                        events.add(readEvent(payload, jobId));
+                    }
+                    Promises promises = payload.readBoolean() ? readPromises(payload) : null;
+                    yield new NetworkMessage.EventListMessage<>(new EventList<>(jobId, events, promises, round));
+                }
+                case NULL_MESSAGE -> new NetworkMessage.NullMessage(readPromises(payload));
+                case GVT_REQUEST -> new NetworkMessage.GvtRequest(readJob(payload), payload.readLong());
+                case GVT_REPORT -> new NetworkMessage.GvtReport(readJob(payload), payload.readLong(),
+                        payload.readLong(), payload.readLong());
+                case GVT -> new NetworkMessage.GvtMessage(readJob(payload), payload.readLong());
+                case NEW_JOB -> {
+                    String jobId = readJob(payload);
+                    long endTime = payload.readLong();
+                    @SuppressWarnings("unchecked")
+                    Netlist<Object> netlist = (Netlist<Object>) FALLBACK.deserialize(readBytes(payload));
+                    String managerId = null;
+                    Map<Long, String> owners = null;
+                    Map<String, InetSocketAddress> peers = null;
+                    if (payload.available() > 0 && payload.readBoolean()) {
+                        managerId = payload.readUTF();
+                        peers = new HashMap<>();
+                        for (int i = payload.readInt(); i > 0; i--) {
+                            String id = payload.readUTF();
+                            peers.put(id, new InetSocketAddress(payload.readUTF(), payload.readInt()));
+                        }
+                        String[] ids = new String[payload.readInt()];
+                        for (int i = 0; i < ids.length; i++) {
+                            ids[i] = payload.readUTF();
+                        }
+                        owners = new HashMap<>();
+                        for (int i = payload.readInt(); i > 0; i--) {
+                            owners.put(payload.readLong(), ids[payload.readInt()]);
+                        }
+                    }
+                    boolean compressed = payload.available() > 0 && payload.readBoolean();
+                    yield new NetworkMessage.NewJobMessage<>(jobId, netlist, endTime, managerId, owners, peers, compressed);
+                }
+                case KILL_JOB -> new NetworkMessage.KillJobMessage(readJob(payload, true));
+                case JOB_DONE -> new NetworkMessage.JobDoneMessage(readJob(payload, true));
+            };
+        }
+
+        private String readJob(DataInputStream payload) throws IOException {
+            return readJob(payload, false);
+        }
+
+        /**
+         * @param release whether the frame ends the job on this connection, the encoder forgot
+         *                its handle after writing it
+         */
+        private String readJob(DataInputStream payload, boolean release) throws IOException {
+            int handle = payload.readInt();
+            String jobId;
+            if (handle == nextHandle) {
+                jobId = payload.readUTF();
+                jobs.put(nextHandle++, jobId);
+            } else {
+                jobId = jobs.get(handle);
+                if (jobId == null) {
+                    throw new StreamCorruptedException("Unknown job handle " + handle);
+                }
+            }
+            if (release) {
+                jobs.remove(handle);
+                MessageCodec.release(this, jobId);
+            }
+            return jobId;
+        }
+
+        private Event<Object> readEvent(DataInputStream payload, String jobId) throws IOException {
+            Event<Object> event = new Event<>();
+            event.setId(payload.readLong());
+            event.setStatus(payload.readByte());
+            event.setlTimeCreated(payload.readLong());
+            event.setlTime(payload.readLong());
+            event.setSrcID(payload.readLong());
+            event.setSrcPort(payload.readInt());
+            event.setDstID(payload.readLong());
+            event.setDstPort(payload.readInt());
+            event.setDeadline(payload.readLong());
+            event.setSerial(payload.readLong());
+            byte tag = payload.readByte();
+            if (tag == SERIALIZED) {
+                event.setData(FALLBACK.deserialize(readBytes(payload)));
+            } else if (tag != NULL) {
+                event.setData(codec(tag).read(payload, jobId, this));
+            }
+            return event;
+        }
+
+        private Promises readPromises(DataInputStream payload) throws IOException {
+            String jobId = readJob(payload);
+            int n = payload.readInt();
+            long[] srcIds = new long[n];
+            int[] srcPorts = new int[n];
+            long[] times = new long[n];
+            for (int i = 0; i < n; i++) {
+                srcIds[i] = payload.readLong();
+                srcPorts[i] = payload.readInt();
+                times[i] = payload.readLong();
+            }
+            return new Promises(jobId, srcIds, srcPorts, times);
+        }
+
+        private byte[] readBytes(DataInputStream payload) throws IOException {
+            byte[] bytes = new byte[payload.readInt()];
+            payload.readFully(bytes);
+            return bytes;
+        }
+    }
+}
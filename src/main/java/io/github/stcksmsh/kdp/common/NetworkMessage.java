@@ -1,10 +1,14 @@
 package io.github.stcksmsh.kdp.common;
 
 import io.github.stcksmsh.kdp.distBuffer.EventList;
+import io.github.stcksmsh.kdp.distBuffer.Promises;
 import rs.ac.bg.etf.sleep.simulation.Netlist;
 
 import java.io.Serial;
 import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
 
 abstract public class NetworkMessage implements Serializable {
 
@@ -19,6 +23,11 @@ abstract public class NetworkMessage implements Serializable {
         KILL_JOB,
         PING_REQUEST,
         PING_RESPONSE,
+        NULL_MESSAGE,
+        GVT_REQUEST,
+        GVT_REPORT,
+        GVT,
+        JOB_DONE,
     }
 
     abstract public MessageType getType();
@@ -27,6 +36,23 @@ abstract public class NetworkMessage implements Serializable {
         @Serial
         private static final long serialVersionUID = 1L;
 
+        /**
+         * Port the worker takes event lists from other workers on, 0 when it does not
+         */
+        private final int peerPort;
+
+        public SignOnRequest() {
+            this(0);
+        }
+
+        public SignOnRequest(int peerPort) {
+            this.peerPort = peerPort;
+        }
+
+        public int getPeerPort() {
+            return peerPort;
+        }
+
         @Override
         public MessageType getType() {
             return MessageType.SIGN_ON_REQUEST;
@@ -83,6 +109,130 @@ abstract public class NetworkMessage implements Serializable {
         }
     }
 
+    /**
+     * Chandy-Misra-Bryant null message, carries timestamp promises but no events
+     */
+    public static class NullMessage extends NetworkMessage {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final Promises promises;
+
+        public NullMessage(Promises promises) {
+            this.promises = promises;
+        }
+
+        public Promises getPromises() {
+            return promises;
+        }
+
+        @Override
+        public MessageType getType() {
+            return MessageType.NULL_MESSAGE;
+        }
+    }
+
+    /**
+     * Asks a manager for its share of the job's global virtual time, starting the given round on
+     * it if it is still in an earlier one
+     */
+    public static class GvtRequest extends NetworkMessage {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final String jobId;
+        private final long round;
+
+        public GvtRequest(String jobId, long round) {
+            this.jobId = jobId;
+            this.round = round;
+        }
+
+        public String getJobId() {
+            return jobId;
+        }
+
+        public long getRound() {
+            return round;
+        }
+
+        @Override
+        public MessageType getType() {
+            return MessageType.GVT_REQUEST;
+        }
+    }
+
+    /**
+     * A manager's answer to a {@link GvtRequest}: events it sent minus events it received in
+     * earlier rounds, and the smallest lTime it may still execute or has sent in this round
+     */
+    public static class GvtReport extends NetworkMessage {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final String jobId;
+        private final long round;
+        private final long balance;
+        private final long minimum;
+
+        public GvtReport(String jobId, long round, long balance, long minimum) {
+            this.jobId = jobId;
+            this.round = round;
+            this.balance = balance;
+            this.minimum = minimum;
+        }
+
+        public String getJobId() {
+            return jobId;
+        }
+
+        public long getRound() {
+            return round;
+        }
+
+        public long getBalance() {
+            return balance;
+        }
+
+        public long getMinimum() {
+            return minimum;
+        }
+
+        @Override
+        public MessageType getType() {
+            return MessageType.GVT_REPORT;
+        }
+    }
+
+    /**
+     * New global virtual time of a job, no event earlier than it will ever be executed
+     */
+    public static class GvtMessage extends NetworkMessage {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final String jobId;
+        private final long gvt;
+
+        public GvtMessage(String jobId, long gvt) {
+            this.jobId = jobId;
+            this.gvt = gvt;
+        }
+
+        public String getJobId() {
+            return jobId;
+        }
+
+        public long getGvt() {
+            return gvt;
+        }
+
+        @Override
+        public MessageType getType() {
+            return MessageType.GVT;
+        }
+    }
+
     public static class NewJobMessage<T> extends NetworkMessage {
         @Serial
         private static final long serialVersionUID = 1L;
@@ -93,10 +243,45 @@ abstract public class NetworkMessage implements Serializable {
 
         private final long endTime;
 
+        /**
+         * Id the server knows the receiving worker by, null when the job's events go through the
+         * server
+         */
+        private final String managerId;
+
+        /**
+         * Manager of every component of the job, a copy of a serializable type
+         */
+        private final HashMap<Long, String> owners;
+
+        /**
+         * Addresses the job's workers take event lists from each other on
+         */
+        private final HashMap<String, InetSocketAddress> peers;
+
+        /**
+         * Whether the job's event payloads are compressed on the wire, see {@link MessageCodec#setCompressed}
+         */
+        private final boolean compressed;
+
         public NewJobMessage(String jobId, Netlist<T> Netlist, long endTime) {
+            this(jobId, Netlist, endTime, null, null, null);
+        }
+
+        public NewJobMessage(String jobId, Netlist<T> Netlist, long endTime, String managerId,
+                             Map<Long, String> owners, Map<String, InetSocketAddress> peers) {
+            this(jobId, Netlist, endTime, managerId, owners, peers, false);
+        }
+
+        public NewJobMessage(String jobId, Netlist<T> Netlist, long endTime, String managerId,
+                             Map<Long, String> owners, Map<String, InetSocketAddress> peers, boolean compressed) {
             this.jobId = jobId;
             this.Netlist = Netlist;
             this.endTime = endTime;
+            this.managerId = managerId;
+            this.owners = owners == null ? null : new HashMap<>(owners);
+            this.peers = peers == null ? null : new HashMap<>(peers);
+            this.compressed = compressed;
         }
 
         public String getJobId() {
@@ -111,6 +296,22 @@ abstract public class NetworkMessage implements Serializable {
             return endTime;
         }
 
+        public String getManagerId() {
+            return managerId;
+        }
+
+        public Map<Long, String> getOwners() {
+            return owners;
+        }
+
+        public Map<String, InetSocketAddress> getPeers() {
+            return peers;
+        }
+
+        public boolean isCompressed() {
+            return compressed;
+        }
+
         @Override
         public MessageType getType() {
             return MessageType.NEW_JOB;
@@ -137,4 +338,27 @@ abstract public class NetworkMessage implements Serializable {
         }
     }
 
+    /**
+     * Sent by a worker once it finished simulating its part of a job
+     */
+    public static class JobDoneMessage extends NetworkMessage {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final String jobId;
+
+        public JobDoneMessage(String jobId) {
+            this.jobId = jobId;
+        }
+
+        public String getJobId() {
+            return jobId;
+        }
+
+        @Override
+        public MessageType getType() {
+            return MessageType.JOB_DONE;
+        }
+    }
+
 }
@@ -7,10 +7,17 @@ abstract public class Node {
     protected static final int RETRY_COUNT = 5;
     protected static final int RETRY_TIMEOUT = 1000;
 
+    /**
+     * Classes that register the payload codecs of the application, every node of a run must name
+     * the same ones in the same order, see {@link MessageCodec#load}
+     */
+    public static String CODECS = System.getProperty("kdp.codecs", "");
+
     protected abstract void start();
 
     public Node(String logFilename) {
         this.logger = Logger.getInstance(logFilename);
+        MessageCodec.load(CODECS);
     }
 
 }
\ No newline at end of file
@@ -1,32 +1,26 @@
 package io.github.stcksmsh.kdp.common;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.io.InputStream;
 
+/**
+ * Reads the {@link NetworkMessage}s written by {@link SynchronizedObjectOutputStream}
+ */
 public class SynchronisedObjectInputStream {
-    private ObjectInputStream inputStream;
+    private final MessageCodec.Decoder decoder;
     private Logger logger;
     private final String TAG = Logger.getTAG();
 
     public SynchronisedObjectInputStream(InputStream inputStream, Logger logger){
-        try{
-            this.inputStream = new ObjectInputStream(inputStream);
-            this.logger = logger;
-        }catch (IOException e) {
-            logger.E(TAG, "Failed to create object input stream");
-            logger.E(TAG, e);
-        }
+        this.decoder = new MessageCodec.Decoder(inputStream);
+        this.logger = logger;
     }
 
     public synchronized Object readObject(){
         try{
-            return inputStream.readObject();
+            return decoder.read();
         }catch (IOException e) {
-            logger.E(TAG, "Failed to write object to output stream");
-            logger.E(TAG, e);
-        }catch (ClassNotFoundException e) {
-            logger.E(TAG, "Failed to find class of object");
+            logger.E(TAG, "Failed to read object from input stream");
             logger.E(TAG, e);
         }
         return null;
@@ -1,32 +1,318 @@
 package io.github.stcksmsh.kdp.common;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Writes {@link NetworkMessage}s as binary frames, see {@link MessageCodec}
+ * <p>
+ * Messages are put in a bounded queue and written by a writer thread of their own, so a slow
+ * connection only holds up its own producers. The writer takes everything queued at once and
+ * flushes once per batch. A producer that finds the queue full waits until the writer makes
+ * room, which is counted as a stall.
+ * <p>
+ * Replies a connection's reader sends while it handles a message, such as a ping response or a
+ * GVT report, go through {@link #writeControl} instead. They wait in an unbounded queue that the
+ * writer empties first, so a reader never waits for the writer, which may itself be waiting for
+ * the other end to read.
+ * <p>
+ * A stream is made with {@link #open}, which starts its writer. If writing fails for any reason
+ * the stream closes itself and keeps the messages it accepted but did not get out, including
+ * the whole batch it failed on, as that never reached a completed flush. The owner hears of it
+ * through the callback it passed to open and takes those messages with {@link #takeUnsent()} to
+ * send them another way.
+ */
 public class SynchronizedObjectOutputStream {
-    private ObjectOutputStream outputStream = null;
+    /**
+     * Messages a connection may have queued, 0 writes on the caller's thread and flushes
+     * every message
+     */
+    public static int QUEUE = Integer.getInteger("kdp.out.queue", 1024);
+    /**
+     * Most messages written between two flushes
+     */
+    public static int BATCH = Integer.getInteger("kdp.out.batch", 256);
+    private static final long POLL = 100;
+    private static final AtomicInteger writers = new AtomicInteger();
+
+    private final MessageCodec.Encoder encoder;
     private Logger logger;
     private final String TAG = Logger.getTAG();
+    /** A lock rather than a monitor, so a writer on a virtual thread does not pin its carrier */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final BlockingQueue<NetworkMessage> queue;
+    /** Replies from {@link #writeControl}, written before the queue */
+    private final Queue<NetworkMessage> control = new ConcurrentLinkedQueue<>();
+    /** Put in the queue after a reply, so a writer waiting on an empty queue wakes up */
+    private static final NetworkMessage WAKE = new NetworkMessage.PingRequest();
+    private volatile boolean closed = false;
+    private volatile Throwable failure;
+    /** Accepted messages the writer failed to get out, guarded by lock */
+    private final List<NetworkMessage> unsent = new ArrayList<>();
+    private final Runnable onFailure;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+    private final AtomicLong stalledNanos = new AtomicLong();
+    private volatile int maxQueued = 0;
 
-    public SynchronizedObjectOutputStream(OutputStream outputStream, Logger logger) {
+    private SynchronizedObjectOutputStream(OutputStream outputStream, Logger logger, Runnable onFailure) {
         this.logger = logger;
-        try {
-            this.outputStream = new ObjectOutputStream(outputStream);
-        } catch (IOException e) {
-            logger.E(TAG, "Failed to create object output stream");
-            logger.E(TAG, e);
+        this.encoder = new MessageCodec.Encoder(outputStream);
+        this.queue = QUEUE > 0 ? new ArrayBlockingQueue<>(QUEUE) : null;
+        this.onFailure = onFailure;
+    }
+
+    public static SynchronizedObjectOutputStream open(OutputStream outputStream, Logger logger) {
+        return open(outputStream, logger, null);
+    }
+
+    /**
+     * @param onFailure Called once if writing fails, on the writer's thread or the producer's
+     *                  when there is no queue, may be null
+     */
+    public static SynchronizedObjectOutputStream open(OutputStream outputStream, Logger logger, Runnable onFailure) {
+        SynchronizedObjectOutputStream stream = new SynchronizedObjectOutputStream(outputStream, logger, onFailure);
+        if (stream.queue != null) {
+            Thread writer = new Thread(stream::drain, "writer-" + writers.incrementAndGet());
+            writer.setDaemon(true);
+            writer.start();
         }
+        return stream;
     }
 
-    public synchronized boolean writeObject(Object obj) {
+    /**
+     * Queues obj, waiting while the queue is full
+     * @return false if obj is not a network message, the stream failed or was closed, or the
+     * caller was interrupted while waiting
+     */
+    public boolean writeObject(Object obj) {
+        if (!(obj instanceof NetworkMessage message)) {
+            logger.E(TAG, "Only network messages can be written, got " + obj);
+            return false;
+        }
+        if (closed) {
+            return false;
+        }
+        if (queue == null) {
+            return write(message);
+        }
+        if (!queue.offer(message)) {
+            long start = System.nanoTime();
+            stalls.incrementAndGet();
+            try {
+                while (!queue.offer(message, POLL, TimeUnit.MILLISECONDS)) {
+                    if (closed) {
+                        return false;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                stalledNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+        /// The writer may have failed and collected the queue before message got in
+        if (closed && queue.remove(message)) {
+            return false;
+        }
+        int size = queue.size();
+        if (size > maxQueued) {
+            maxQueued = size;
+        }
+        return true;
+    }
+
+    /**
+     * Queues a reply without ever waiting, ahead of what {@link #writeObject} queued. Replies may
+     * reach the other end before messages that were queued earlier.
+     * @return false if the stream failed or was closed
+     */
+    public boolean writeControl(NetworkMessage message) {
+        if (closed) {
+            return false;
+        }
+        if (queue == null) {
+            return write(message);
+        }
+        control.add(message);
+        /// The writer may have failed and collected the replies before message got in
+        if (closed && control.remove(message)) {
+            return false;
+        }
+        queue.offer(WAKE);
+        return true;
+    }
+
+    private boolean write(NetworkMessage message) {
+        lock.lock();
         try {
-            outputStream.writeObject(obj);
-            outputStream.flush();  // Ensure data is sent
-        } catch (IOException e) {
-            logger.E(TAG, "Failed to write object to output stream");
+            if (closed) {
+                return false;
+            }
+            encoder.write(message);
+            written.incrementAndGet();
+            flushes.incrementAndGet();
+        } catch (Throwable e) {
+            /// message is refused, the caller still has it
+            fail(e, List.of());
             return false;
+        } finally {
+            lock.unlock();
         }
         return true;
     }
+
+    /**
+     * Writer thread: encodes the queued replies and whatever else is queued and flushes it
+     * together, until the stream is closed or fails
+     */
+    private void drain() {
+        List<NetworkMessage> batch = new ArrayList<>(BATCH);
+        try {
+            while (!closed) {
+                NetworkMessage first = control.isEmpty() ? queue.poll(POLL, TimeUnit.MILLISECONDS) : queue.poll();
+                for (NetworkMessage reply = control.poll(); reply != null; reply = control.poll()) {
+                    batch.add(reply);
+                }
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, Math.max(1, BATCH) - 1);
+                }
+                batch.removeIf(message -> message == WAKE);
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                for (NetworkMessage message : batch) {
+                    encoder.append(message);
+                }
+                written.addAndGet(batch.size());
+                flushes.incrementAndGet();
+                encoder.flush();
+                batch.clear();
+            }
+        } catch (Throwable e) {
+            fail(e, batch);
+        }
+    }
+
+    /**
+     * Closes the stream, keeps the batch and whatever is queued as unsent and tells the owner
+     */
+    private void fail(Throwable e, List<NetworkMessage> batch) {
+        int count;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            failure = e;
+            closed = true;
+            unsent.addAll(batch);
+            unsent.addAll(control);
+            control.clear();
+            if (queue != null) {
+                queue.drainTo(unsent);
+            }
+            unsent.removeIf(message -> message == WAKE);
+            count = unsent.size();
+        } finally {
+            lock.unlock();
+        }
+        logger.E(TAG, "Failed to write object to output stream, " + count + " messages were not sent");
+        if (e instanceof Exception exception) {
+            logger.E(TAG, exception);
+        } else {
+            logger.E(TAG, String.valueOf(e));
+        }
+        if (onFailure != null) {
+            onFailure.run();
+        }
+    }
+
+    /**
+     * @return the messages accepted but not written because the stream failed, in the order
+     * they were accepted, each of them is returned once
+     */
+    public List<NetworkMessage> takeUnsent() {
+        lock.lock();
+        try {
+            List<NetworkMessage> result = new ArrayList<>(unsent);
+            unsent.clear();
+            if (closed && failure != null && queue != null) {
+                queue.drainTo(result);
+                result.removeIf(message -> message == WAKE);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return why writing failed, null while it did not
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Stops the writer, queued messages are dropped and waiting producers give up
+     */
+    public void close() {
+        closed = true;
+        control.clear();
+        if (queue != null) {
+            queue.clear();
+        }
+    }
+
+    /** Messages waiting to be written */
+    public int getQueued() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    /** Deepest the queue got */
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    /** Times a producer found the queue full */
+    public long getStalls() {
+        return stalls.get();
+    }
+
+    public long getStalledNanos() {
+        return stalledNanos.get();
+    }
+
+    public String report() {
+        return getWritten() + " messages in " + getFlushes() + " flushes, " + getQueued() + " queued (at most "
+                + getMaxQueued() + "), producers stalled " + getStalls() + " times for "
+                + getStalledNanos() / 1_000_000 + " ms";
+    }
 }
@@ -2,9 +2,13 @@ package io.github.stcksmsh.kdp.distBuffer;
 
 import rs.ac.bg.etf.sleep.simulation.Event;
 import rs.ac.bg.etf.sleep.simulation.SimBuffer;
+import rs.ac.bg.etf.sleep.simulation.SimEndpoint;
 
 import java.util.*;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 
 /**
@@ -12,6 +16,11 @@ import java.util.function.Consumer;
  * This class serves as the "front end" of the package
  * Used to get elements from and put elements into the buffer
  *
+ * In conservative mode (see {@link #setChannels}) every input channel, a remote output port
+ * connected to a local component, has a clock: the promise its sender made that it will send
+ * nothing earlier. Only events earlier than the smallest clock are handed to the simulator,
+ * the rest wait for the remote nodes to catch up.
+ *
  * @param <T> The type
  *
  * @see DistributedSimBufferManager
@@ -19,9 +28,37 @@ import java.util.function.Consumer;
  *
  */
 public class DistributedSimBuffer<T> implements SimBuffer<T> {
+    /**
+     * In conservative mode {@link #pollEvent(long)} gives up after this many ms without any event
+     * or promise arriving, so a wakeup the simulator holds is not kept waiting for input that
+     * can only follow it
+     */
+    public static long IDLE_WAIT = Long.getLong("kdp.idle.wait", 20);
+
     private final PriorityBlockingQueue<Event<T>> queue;
     private final Consumer<List<Event<T>>> consumer;
 
+    /**
+     * Guards the clocks and the hand out, a lock rather than a monitor so a simulator waiting on
+     * a virtual thread does not pin its carrier
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Signalled on every change that may make an event available */
+    private final Condition available = lock.newCondition();
+    private Map<SimEndpoint, Long> clocks = null;
+    private long safeTime = Long.MAX_VALUE;
+    /** lTime of the latest event handed to the simulator */
+    private long released = 0;
+    /** lTime of the last event handed to the simulator, which may still be executing it */
+    private long taken = Long.MAX_VALUE;
+    /** True while the simulator waits in {@link #getEvent()} and holds no other work */
+    private boolean idle = false;
+    /** Bumped on every change that may make an event safe */
+    private long version = 0;
+    private Consumer<Boolean> progress = blocked -> {};
+    private long blockedCount = 0;
+    private long blockedNanos = 0;
+
     /**
      * Initialises the buffer
      * @param consumer used to "give" events to the manager
@@ -38,6 +75,7 @@ public class DistributedSimBuffer<T> implements SimBuffer<T> {
      */
     void giveEvent(Event<T> event) {
         queue.add(event);
+        changed();
     }
 
     private void sendEvent(Event<T> event) {
@@ -52,7 +90,217 @@ public class DistributedSimBuffer<T> implements SimBuffer<T> {
      * @see #giveEvent(Event)
      */
     void giveEvents(List<Event<T>> events){
-        queue.addAll(events);
+        for (Event<T> event : events) {
+            if (event.ok() || !cancel(event)) {
+                queue.add(event);
+            }
+        }
+        changed();
+    }
+
+    /**
+     * Switches the buffer to conservative mode
+     *
+     * @param channels input channels with the lTime each starts at
+     * @param progress called with true when the simulator blocks on an unsafe event and with
+     *                 false after events were handed out, used to send null messages
+     */
+    void setChannels(Map<SimEndpoint, Long> channels, Consumer<Boolean> progress) {
+        lock.lock();
+        try {
+            this.clocks = new HashMap<>(channels);
+            this.progress = progress;
+            updateSafeTime();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Raises the clock of an input channel, promises never move a clock back
+     */
+    void advance(SimEndpoint channel, long promise) {
+        lock.lock();
+        try {
+            if (clocks == null) {
+                return;
+            }
+            Long clock = clocks.get(channel);
+            if (clock == null || clock >= promise) {
+                return;
+            }
+            clocks.put(channel, promise);
+            updateSafeTime();
+        } finally {
+            lock.unlock();
+        }
+        changed();
+    }
+
+    private void updateSafeTime() {
+        long result = Long.MAX_VALUE;
+        for (long clock : clocks.values()) {
+            result = Math.min(result, clock);
+        }
+        safeTime = result;
+    }
+
+    private void changed() {
+        lock.lock();
+        try {
+            version++;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isConservative() {
+        return clocks != null;
+    }
+
+    /**
+     * @return events with a smaller lTime than this can no longer arrive
+     */
+    public long getSafeTime() {
+        lock.lock();
+        try {
+            return safeTime;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lower bound on the lTime of any event this node will still execute: nothing is earlier
+     * than the pending events, the input clocks or, unless the simulator is idle, the last
+     * event it took (it may still be executing it or hold a wakeup).
+     */
+    public long lowerBound() {
+        lock.lock();
+        try {
+            long result = Math.min(safeTime, idle ? Long.MAX_VALUE : released);
+            Event<T> head = queue.peek();
+            return head == null ? result : Math.min(result, head.getlTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean safeHead() {
+        Event<T> head = queue.peek();
+        return head != null && (clocks == null || head.getlTime() < safeTime);
+    }
+
+    private Event<T> release() {
+        Event<T> event = queue.poll();
+        released = Math.max(released, event.getlTime());
+        taken = event.getlTime();
+        return event;
+    }
+
+    /**
+     * Smallest lTime among the pending events and the last event handed out, this node's share
+     * of the global virtual time together with what the simulator holds itself
+     */
+    public long minimum() {
+        lock.lock();
+        try {
+            Event<T> head = queue.peek();
+            return head == null ? taken : Math.min(taken, head.getlTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands out the head under the lock, so {@link #minimum()} never misses an event in between,
+     * waiting at most until deadline (System.nanoTime()) unless it is zero
+     */
+    private Event<T> take(long deadline) throws InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty()) {
+                if (deadline == 0) {
+                    available.await();
+                    continue;
+                }
+                long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (wait <= 0) {
+                    return null;
+                }
+                available.await(wait, TimeUnit.MILLISECONDS);
+            }
+            return release();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a safe event, at most until deadline (System.nanoTime()) unless it is zero
+     */
+    private Event<T> takeSafe(boolean idle, long deadline) throws InterruptedException {
+        long start = 0;
+        while (true) {
+            long seen;
+            lock.lock();
+            try {
+                if (safeHead()) {
+                    this.idle = false;
+                    Event<T> event = release();
+                    if (start != 0) {
+                        blockedNanos += System.nanoTime() - start;
+                    }
+                    return event;
+                }
+                if (start == 0) {
+                    start = System.nanoTime();
+                    blockedCount++;
+                }
+                this.idle = idle;
+                seen = version;
+            } finally {
+                lock.unlock();
+            }
+            progress.accept(true);
+            lock.lock();
+            try {
+                if (version == seen && !safeHead()) {
+                    long wait = deadline == 0 ? 0 : (deadline - System.nanoTime()) / 1_000_000;
+                    if (deadline != 0 && wait > 0) {
+                        available.await(Math.max(1, Math.min(wait, IDLE_WAIT)), TimeUnit.MILLISECONDS);
+                    } else if (deadline == 0) {
+                        available.await();
+                    }
+                    if (deadline != 0 && version == seen && !safeHead()) {
+                        this.idle = false;
+                        blockedNanos += System.nanoTime() - start;
+                        return null;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public long getBlockedCount() {
+        lock.lock();
+        try {
+            return blockedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBlockedNanos() {
+        lock.lock();
+        try {
+            return blockedNanos;
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
@@ -73,34 +321,121 @@ public class DistributedSimBuffer<T> implements SimBuffer<T> {
     @Override
     public Event<T> getEvent() {
         try{
-            return queue.take();
+            if (isConservative()) {
+                Event<T> event = takeSafe(true, 0);
+                progress.accept(false);
+                return event;
+            }
+            return take(0);
         }catch (InterruptedException e){
             return null;
         }
     }
 
+    @Override
+    public Event<T> pollEvent(long timeout) {
+        try {
+            if (isConservative()) {
+                // the simulator holds a wakeup, so it is not idle while waiting here
+                Event<T> event = takeSafe(false, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(1, timeout)));
+                if (event != null) {
+                    progress.accept(false);
+                }
+                return event;
+            }
+            return take(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(1, timeout)));
+        } catch (InterruptedException e) {
+            /// The simulator delivers its wakeup now, its next getEvent() sees the interrupt
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Drains every event sharing the smallest lTime without waiting for more,
+     * returns an empty list when nothing has been received yet
+     */
     @Override
     public List<Event<T>> getEvents() {
         List<Event<T>> events = new LinkedList<>();
-        if (queue.isEmpty()) {
-            // Wait for an event to be received
+        if (isConservative()) {
+            lock.lock();
+            try {
+                if (safeHead()) {
+                    Event<T> first = release();
+                    events.add(first);
+                    while (safeHead() && queue.peek().getlTime() == first.getlTime()) {
+                        events.add(release());
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (!events.isEmpty()) {
+                progress.accept(false);
+            }
             return events;
         }
+        lock.lock();
         try {
-            events.add(queue.take());
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            if (queue.isEmpty()) {
+                return events;
+            }
+            Event<T> first = release();
+            events.add(first);
+            Event<T> next;
+            while ((next = queue.poll()) != null) {
+                if (next.getlTime() != first.getlTime()) {
+                    // an event received in the meantime may be earlier than peek() promised
+                    queue.add(next);
+                    break;
+                }
+                events.add(next);
+            }
+        } finally {
+            lock.unlock();
         }
         return events;
     }
 
+    /**
+     * In conservative mode an unsafe event does not count, the buffer is empty until it becomes
+     * safe
+     */
     @Override
     public boolean isEmpty() {
+        if (isConservative()) {
+            lock.lock();
+            try {
+                return !safeHead();
+            } finally {
+                lock.unlock();
+            }
+        }
         return queue.isEmpty();
     }
 
+    /**
+     * Events put here may still be on their way to other nodes, and arriving ones may be shared
+     * with the manager, so the simulator must not recycle them
+     */
+    @Override
+    public boolean ownsEvents() {
+        return false;
+    }
+
+    /**
+     * Anti-messages from other nodes are annihilated here when their event is still queued, the
+     * rest are handed to the simulator
+     */
+    @Override
+    public boolean cancel(Event<T> anti) {
+        return queue.removeIf(event -> event.matches(anti));
+    }
+
     @Override
     public long getMinrank() {
-        return queue.isEmpty() ? Long.MAX_VALUE : queue.peek().getlTime();
+        Event<T> head = queue.peek();
+        return head == null ? Long.MAX_VALUE : head.getlTime();
     }
 }
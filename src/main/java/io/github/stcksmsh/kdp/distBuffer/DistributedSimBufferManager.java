@@ -4,28 +4,141 @@ import io.github.stcksmsh.kdp.common.Logger;
 import io.github.stcksmsh.kdp.common.NetworkMessage;
 import rs.ac.bg.etf.sleep.simulation.Event;
 import rs.ac.bg.etf.sleep.simulation.Netlist;
+import rs.ac.bg.etf.sleep.simulation.SimEndpoint;
+import rs.ac.bg.etf.sleep.simulation.Simulator;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
 
 /**
  * Part of the distributed buffer system
  * Manages local buffer instances and communicates with the router
  * Only used on a worker node, it receives messages fromthe router and forwards them
  * to the local buffer instances which work the same job
+ * <p>
+ * With {@link #CONSERVATIVE} set, jobs split across nodes are synchronised the Chandy-Misra-Bryant
+ * way: for every local output port connected to a remote component the manager promises that
+ * nothing earlier than the node's lower bound plus the port's lookahead will be sent, and the
+ * buffers on other nodes only hand out events earlier than every promise they hold. Promises
+ * travel with every event list and, when they have to, in separate null messages. This needs a
+ * positive lookahead on every cycle of connections that crosses nodes, otherwise the nodes wait
+ * for each other forever.
+ * <p>
+ * Every manager also takes part in the job's global virtual time computation (Mattern's
+ * algorithm, coordinated by the router): event lists carry the GVT round they were sent in, and
+ * a manager asked for round r reports how many events it sent in earlier rounds minus how many it
+ * received, along with the smallest lTime it may still execute or has sent since round r began.
+ * Once the balances of all managers add up to zero no earlier event is in transit and the
+ * smallest of the minimums is the GVT.
  *
  * @see DistributedSimBuffer
  * @see DistributedSimBufferRouter
  */
 public class DistributedSimBufferManager<T> {
+    /**
+     * Enables the conservative mode for jobs created from now on
+     */
+    public static boolean CONSERVATIVE = Boolean.getBoolean("kdp.conservative");
+    /**
+     * A null message carries a port only when its promise grew by at least this much since it was
+     * last sent, larger values mean fewer but less useful null messages
+     */
+    public static long NULL_DELTA = Long.getLong("kdp.null.delta", 1);
+    /**
+     * Minimum number of ms between two null messages sent while the simulator is still busy, a
+     * blocked simulator always sends at once
+     */
+    public static long NULL_INTERVAL = Long.getLong("kdp.null.interval", 10);
+
     private final Logger logger;
     private final String TAG;
     private final Map<String, DistributedSimBuffer<T>> buffers;
     private final Map<String, Netlist<T>> netLists;
+    private final Map<String, Channels> channels;
+    private final Map<String, Gvt> gvts;
     private final Consumer<NetworkMessage.EventListMessage<T>> sendEvents;
+    private final Consumer<NetworkMessage.NullMessage> sendNullMessage;
+
+    /**
+     * Output ports of one job that lead to other nodes, with what was promised through them
+     */
+    private static class Channels {
+        final long[] srcIds;
+        final int[] srcPorts;
+        final long[] lookahead;
+        final long[] sent;
+        long lastSent = 0;
+        long eventMessages = 0;
+        long eventsSent = 0;
+        long nullMessages = 0;
+        long promisesSent = 0;
+        long promisesReceived = 0;
+
+        Channels(List<SimEndpoint> ports, Netlist<?> netlist) {
+            int n = ports.size();
+            srcIds = new long[n];
+            srcPorts = new int[n];
+            lookahead = new long[n];
+            sent = new long[n];
+            for (int i = 0; i < n; i++) {
+                SimEndpoint port = ports.get(i);
+                srcIds[i] = port.getComponentID();
+                srcPorts[i] = port.getComponentPort();
+                lookahead[i] = netlist.getLookahead(srcIds[i], srcPorts[i]);
+                sent[i] = Long.MIN_VALUE;
+            }
+        }
+    }
+
+    /**
+     * GVT round state of one job, counters are in events
+     */
+    private static class Gvt {
+        long round = 0;
+        long sentOld = 0;
+        long receivedOld = 0;
+        long sentCurrent = 0;
+        long receivedCurrent = 0;
+        /** Received from managers that already started the next round */
+        long receivedNext = 0;
+        /** Smallest lTime sent in the current round */
+        long sentMinimum = Long.MAX_VALUE;
+        long value = Long.MIN_VALUE;
+        LongSupplier floor = () -> Long.MIN_VALUE;
+        LongConsumer listener = gvt -> {};
+
+        void startRound(long round) {
+            sentOld += sentCurrent;
+            receivedOld += receivedCurrent;
+            sentCurrent = 0;
+            if (round == this.round + 1) {
+                receivedCurrent = receivedNext;
+            } else {
+                receivedOld += receivedNext;
+                receivedCurrent = 0;
+            }
+            receivedNext = 0;
+            sentMinimum = Long.MAX_VALUE;
+            this.round = round;
+        }
+
+        void received(long round, int events) {
+            if (round < this.round) {
+                receivedOld += events;
+            } else if (round == this.round) {
+                receivedCurrent += events;
+            } else {
+                receivedNext += events;
+            }
+        }
+    }
 
     /**
      * Initialises the manager
@@ -33,11 +146,25 @@ public class DistributedSimBufferManager<T> {
      * @param logger The logger to use
      */
     public DistributedSimBufferManager(Logger logger, Consumer<NetworkMessage.EventListMessage<T>> sendEvents) {
+        this(logger, sendEvents, msg -> {});
+    }
+
+    /**
+     * Initialises the manager
+     *
+     * @param logger The logger to use
+     * @param sendNullMessage used to send null messages of the conservative mode
+     */
+    public DistributedSimBufferManager(Logger logger, Consumer<NetworkMessage.EventListMessage<T>> sendEvents,
+                                       Consumer<NetworkMessage.NullMessage> sendNullMessage) {
         this.logger = logger;
         this.TAG = Logger.getTAG();
         this.sendEvents = sendEvents;
-        this.buffers = new HashMap<>();
-        this.netLists = new HashMap<>();
+        this.sendNullMessage = sendNullMessage;
+        this.buffers = new ConcurrentHashMap<>();
+        this.netLists = new ConcurrentHashMap<>();
+        this.channels = new ConcurrentHashMap<>();
+        this.gvts = new ConcurrentHashMap<>();
     }
 
     /**
@@ -46,28 +173,65 @@ public class DistributedSimBufferManager<T> {
      * @param jobId The ID of the job
      * @param events The events to give
      */
-    public void giveEvents(String jobId, List<Event<T>> events) {
+    public int giveEvents(String jobId, List<Event<T>> events) {
         logger.I(TAG, "Received events for job " + jobId + " with size " + events.size());
         DistributedSimBuffer<T> buffer = buffers.get(jobId);
         Netlist<T> netlist = netLists.get(jobId);
         if (buffer == null) {
             logger.E(TAG, "No buffer for job " + jobId);
-            return;
+            return 0;
         }
         if (netlist == null) {
             logger.E(TAG, "No netlist for job " + jobId);
-            return;
+            return 0;
         }
         List<Event<T>> filteredEvents = new ArrayList<>();
         for(Event<T> e : events){
             long dstId = e.getDstID();
-            if(netlist.getComponent(dstId) == null){
+            if(!netlist.contains(dstId)){
                 logger.E(TAG, "Event destination " + dstId + " not found in netlist");
                 continue;
             }
             filteredEvents.add(e);
         }
         buffer.giveEvents(filteredEvents);
+        return filteredEvents.size();
+    }
+
+    /**
+     * Gives the events of the list to their buffer, then applies the promises sent with them
+     */
+    public void giveEventList(EventList<T> eventList) {
+        Gvt gvt = gvts.get(eventList.getJobId());
+        if (gvt == null) {
+            giveEvents(eventList.getJobId(), eventList.getEvents());
+        } else {
+            // counted together with the buffer update, so a report sees both or neither
+            synchronized (gvt) {
+                gvt.received(eventList.getRound(), giveEvents(eventList.getJobId(), eventList.getEvents()));
+            }
+        }
+        if (eventList.getPromises() != null) {
+            givePromises(eventList.getPromises());
+        }
+    }
+
+    /**
+     * Raises the input channel clocks of the job's buffer, promises about ports this node does not
+     * listen to are ignored
+     */
+    public void givePromises(Promises promises) {
+        DistributedSimBuffer<T> buffer = buffers.get(promises.getJobId());
+        Channels jobChannels = channels.get(promises.getJobId());
+        if (buffer == null || jobChannels == null) {
+            return;
+        }
+        for (int i = 0; i < promises.size(); i++) {
+            buffer.advance(new SimEndpoint(promises.getSrcId(i), promises.getSrcPort(i)), promises.getTime(i));
+        }
+        synchronized (jobChannels) {
+            jobChannels.promisesReceived += promises.size();
+        }
     }
 
     /**
@@ -79,33 +243,231 @@ public class DistributedSimBufferManager<T> {
     public DistributedSimBuffer<T> newJob(String jobId, Netlist<T> netlist) {
         logger.I(TAG, "Received new job with ID: " + jobId);
         netLists.put(jobId, netlist);
+        Map<SimEndpoint, Long> inputs = new HashMap<>();
+        List<SimEndpoint> outputs = new ArrayList<>();
+        for (Map.Entry<SimEndpoint, List<SimEndpoint>> entry : netlist.getConnections().entrySet()) {
+            SimEndpoint src = entry.getKey();
+            boolean localSrc = netlist.contains(src.getComponentID());
+            boolean remoteDst = false;
+            for (SimEndpoint dst : entry.getValue()) {
+                boolean localDst = netlist.contains(dst.getComponentID());
+                if (!localSrc && localDst) {
+                    inputs.put(src, 0L);
+                }
+                remoteDst |= !localDst;
+            }
+            if (localSrc && remoteDst) {
+                outputs.add(src);
+            }
+        }
+        Channels jobChannels = new Channels(outputs, netlist);
+        channels.put(jobId, jobChannels);
+        Gvt gvt = new Gvt();
+        gvts.put(jobId, gvt);
         DistributedSimBuffer<T> buffer = new DistributedSimBuffer<>(events -> {
             List<Event<T>> filteredEvents = new ArrayList<>();
             for (Event<T> e : events) {
                 long srcId = e.getSrcID();
                 long dstId = e.getDstID();
-                if(netlist.getComponent(srcId) == null){
+                if(!netlist.contains(srcId)){
                     logger.E(TAG, "Event source " + srcId + " not found in netlist");
                     continue;
                 }
-                if(netlist.getComponent(dstId) == null){
+                if(!netlist.contains(dstId)){
                     filteredEvents.add(e);
                 }
             }
             if(!filteredEvents.isEmpty()){
+                Promises promises = promises(jobId, 0, true);
+                synchronized (jobChannels) {
+                    jobChannels.eventMessages++;
+                    jobChannels.eventsSent += filteredEvents.size();
+                }
+                long round;
+                synchronized (gvt) {
+                    round = gvt.round;
+                    gvt.sentCurrent += filteredEvents.size();
+                    for (Event<T> e : filteredEvents) {
+                        gvt.sentMinimum = Math.min(gvt.sentMinimum, e.getlTime());
+                    }
+                }
                 sendEvents.accept(new NetworkMessage.EventListMessage<>(
-                        new EventList<>(jobId, filteredEvents)
+                        new EventList<>(jobId, filteredEvents, promises, round)
                 ));
             }
         });
         buffers.put(jobId, buffer);
+        if (CONSERVATIVE && !inputs.isEmpty()) {
+            logger.I(TAG, "Job " + jobId + " runs conservatively with " + inputs.size() + " input and "
+                    + outputs.size() + " output channels");
+            buffer.setChannels(inputs, blocked -> sendPromises(jobId, blocked));
+        }
         return buffer;
     }
 
+    /**
+     * Collects the promises that grew by at least delta since they were last sent and records
+     * them as sent
+     *
+     * @return null when there is nothing worth sending
+     */
+    private Promises promises(String jobId, long delta, boolean piggyback) {
+        DistributedSimBuffer<T> buffer = buffers.get(jobId);
+        Channels jobChannels = channels.get(jobId);
+        if (!CONSERVATIVE || buffer == null || jobChannels == null || jobChannels.sent.length == 0) {
+            return null;
+        }
+        long lowerBound = buffer.lowerBound();
+        synchronized (jobChannels) {
+            int n = jobChannels.sent.length;
+            long[] srcIds = new long[n];
+            int[] srcPorts = new int[n];
+            long[] times = new long[n];
+            int k = 0;
+            for (int i = 0; i < n; i++) {
+                long promise = lowerBound + jobChannels.lookahead[i];
+                if (promise < lowerBound) {
+                    promise = Long.MAX_VALUE;
+                }
+                long sent = jobChannels.sent[i];
+                if (promise > sent && (sent == Long.MIN_VALUE || promise - sent >= delta)) {
+                    jobChannels.sent[i] = promise;
+                    srcIds[k] = jobChannels.srcIds[i];
+                    srcPorts[k] = jobChannels.srcPorts[i];
+                    times[k++] = promise;
+                }
+            }
+            if (k == 0) {
+                return null;
+            }
+            jobChannels.promisesSent += k;
+            if (!piggyback) {
+                jobChannels.nullMessages++;
+                jobChannels.lastSent = System.currentTimeMillis();
+            }
+            return new Promises(jobId, Arrays.copyOf(srcIds, k), Arrays.copyOf(srcPorts, k), Arrays.copyOf(times, k));
+        }
+    }
+
+    /**
+     * Sends a null message for the job, throttled by NULL_DELTA and NULL_INTERVAL unless the
+     * simulator is blocked, then any progress is sent
+     */
+    private void sendPromises(String jobId, boolean blocked) {
+        Channels jobChannels = channels.get(jobId);
+        if (jobChannels == null) {
+            return;
+        }
+        if (!blocked) {
+            synchronized (jobChannels) {
+                if (System.currentTimeMillis() - jobChannels.lastSent < NULL_INTERVAL) {
+                    return;
+                }
+            }
+        }
+        Promises promises = promises(jobId, blocked ? 1 : Math.max(1, NULL_DELTA), false);
+        if (promises != null) {
+            sendNullMessage.accept(new NetworkMessage.NullMessage(promises));
+        }
+    }
+
+    /**
+     * Lets the GVT computation see what the simulator of the job holds outside of its buffer and
+     * passes it every new GVT
+     */
+    public void attach(String jobId, Simulator<T> simulator) {
+        Gvt gvt = gvts.get(jobId);
+        if (gvt == null) {
+            logger.E(TAG, "No job " + jobId + " to attach a simulator to");
+            return;
+        }
+        synchronized (gvt) {
+            gvt.floor = simulator::getFloor;
+            gvt.listener = simulator::setGvt;
+        }
+    }
+
+    /**
+     * Answers a GVT request, starting the requested round first if this node is still in an
+     * earlier one
+     *
+     * @return null for an unknown job
+     */
+    public NetworkMessage.GvtReport gvtReport(String jobId, long round) {
+        Gvt gvt = gvts.get(jobId);
+        DistributedSimBuffer<T> buffer = buffers.get(jobId);
+        if (gvt == null || buffer == null) {
+            return null;
+        }
+        synchronized (gvt) {
+            if (round > gvt.round) {
+                gvt.startRound(round);
+            }
+            long minimum = Math.min(buffer.minimum(), Math.min(gvt.floor.getAsLong(), gvt.sentMinimum));
+            return new NetworkMessage.GvtReport(jobId, gvt.round, gvt.sentOld - gvt.receivedOld, minimum);
+        }
+    }
+
+    /**
+     * Passes a new GVT of the job to its simulator, older values are ignored
+     */
+    public void giveGvt(String jobId, long value) {
+        Gvt gvt = gvts.get(jobId);
+        if (gvt == null) {
+            return;
+        }
+        LongConsumer listener;
+        synchronized (gvt) {
+            if (value <= gvt.value) {
+                return;
+            }
+            gvt.value = value;
+            listener = gvt.listener;
+        }
+        listener.accept(value);
+    }
+
+    /**
+     * @return the latest GVT of the job, Long.MIN_VALUE before the first one
+     */
+    public long getGvt(String jobId) {
+        Gvt gvt = gvts.get(jobId);
+        if (gvt == null) {
+            return Long.MIN_VALUE;
+        }
+        synchronized (gvt) {
+            return gvt.value;
+        }
+    }
+
+    /**
+     * @return event and null message counters of the job
+     */
+    public String report(String jobId) {
+        Channels jobChannels = channels.get(jobId);
+        DistributedSimBuffer<T> buffer = buffers.get(jobId);
+        if (jobChannels == null || buffer == null) {
+            return "No job " + jobId;
+        }
+        synchronized (jobChannels) {
+            return "Job " + jobId + ": " + jobChannels.eventsSent + " events in " + jobChannels.eventMessages
+                    + " messages, " + jobChannels.nullMessages + " null messages (" + String.format("%.2f",
+                    jobChannels.nullMessages / (double) Math.max(1, jobChannels.eventMessages))
+                    + " per event message), " + jobChannels.promisesSent + " promises sent, "
+                    + jobChannels.promisesReceived + " received, blocked " + buffer.getBlockedCount()
+                    + " times for " + buffer.getBlockedNanos() / 1_000_000 + " ms";
+        }
+    }
+
     public void removeJob(String jobId) {
         logger.I(TAG, "Removing job " + jobId);
+        if (channels.containsKey(jobId)) {
+            logger.I(TAG, report(jobId));
+        }
         buffers.remove(jobId);
         netLists.remove(jobId);
+        channels.remove(jobId);
+        gvts.remove(jobId);
     }
 
-}
\ No newline at end of file
+}
@@ -3,16 +3,30 @@ package io.github.stcksmsh.kdp.distBuffer;
 import io.github.stcksmsh.kdp.common.Logger;
 import io.github.stcksmsh.kdp.common.NetworkMessage;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Consumer;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 /**
  * Part of the distributed buffer system
  * Manages the routing of messages between buffer instances
  * Only used on a server node, it receives messages from managers and forwards them
  * to other managers which work the same job on other nodes
+ * <p>
+ * A job added with the owners of its components has every event list split by destination, so
+ * each event only reaches the manager that owns its destination. The promises of the list go to
+ * every other manager, in a null message if they have no events of the list. Without owners the
+ * list goes to every manager of the job.
+ * <p>
+ * The router also coordinates the global virtual time of every job: each GVT_INTERVAL ms it
+ * asks the job's managers for their reports and, once their balances add up to zero, sends them
+ * the smallest reported minimum. A round with events still in transit is asked again on the next
+ * tick.
  *
  * @see DistributedSimBuffer
  * @see DistributedSimBufferManager
@@ -21,7 +35,8 @@ public class DistributedSimBufferRouter{
     private final Logger logger;
     private final String TAG;
     /**
-     * Maps manager ids to their sockets
+     * Maps manager ids to their sockets, a stream must take messages from several threads at
+     * once and should not block the caller for long
      */
     private final Map<String, Consumer<NetworkMessage>> managerStreams;
     /**
@@ -32,6 +47,26 @@ public class DistributedSimBufferRouter{
      * Maps job ids to the manager that manages them
      */
     private final Map<String, List<String>> jobManagers;
+    /**
+     * Maps job ids to the manager owning each component of the job
+     */
+    private final Map<String, Routes> jobRoutes;
+    /**
+     * ms between two GVT requests of a job, 0 disables the computation
+     */
+    public static long GVT_INTERVAL = Long.getLong("kdp.gvt.interval", 500);
+    private final Map<String, GvtRound> gvtRounds;
+
+    /**
+     * GVT computation state of one job
+     */
+    private static class GvtRound {
+        long round = 0;
+        boolean done = true;
+        boolean waiting = false;
+        long gvt = Long.MIN_VALUE;
+        final Map<String, NetworkMessage.GvtReport> reports = new HashMap<>();
+    }
 
 
     public DistributedSimBufferRouter(Logger logger) {
@@ -40,6 +75,16 @@ public class DistributedSimBufferRouter{
         this.managerStreams = new ConcurrentHashMap<>();
         this.managerJobs = new ConcurrentHashMap<>();
         this.jobManagers = new ConcurrentHashMap<>();
+        this.jobRoutes = new ConcurrentHashMap<>();
+        this.gvtRounds = new ConcurrentHashMap<>();
+        if (GVT_INTERVAL > 0) {
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "gvt");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.scheduleWithFixedDelay(this::requestGvt, GVT_INTERVAL, GVT_INTERVAL, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
@@ -59,11 +104,26 @@ public class DistributedSimBufferRouter{
      * @param managerIds The IDs of the managers that manage the job
      */
     public void addJob(String jobId, List<String> managerIds) {
+        addJob(jobId, managerIds, null);
+    }
+
+    /**
+     * Adds a job to the router
+     * @param jobId The ID of the job
+     * @param managerIds The IDs of the managers that manage the job
+     * @param owners Maps the job's component ids to the managers that simulate them, null to
+     *               send every event list to every manager
+     */
+    public void addJob(String jobId, List<String> managerIds, Map<Long, String> owners) {
         logger.D(TAG, "Adding job '" + jobId + "' with managers " + managerIds);
+        if (owners != null) {
+            jobRoutes.put(jobId, new Routes(owners));
+        }
         jobManagers.put(jobId, new CopyOnWriteArrayList<>(managerIds));
         for (String managerId : managerIds) {
             managerJobs.get(managerId).add(jobId);
         }
+        gvtRounds.put(jobId, new GvtRound());
     }
 
     /**
@@ -81,6 +141,8 @@ public class DistributedSimBufferRouter{
             managerJobs.get(managerId).remove(jobId);
         }
         jobManagers.remove(jobId);
+        jobRoutes.remove(jobId);
+        gvtRounds.remove(jobId);
     }
 
     /**
@@ -99,17 +161,125 @@ public class DistributedSimBufferRouter{
             logger.E(TAG, "Received event list for unknown job '" + eventList.getJobId() + "'");
             return;
         }
-        for (String managerId : jobManagers.get(eventList.getJobId())) {
-            /// TODO: Only send event to the worker which has the component with the matching destId
-            try {
-                Consumer<NetworkMessage> managerStream = managerStreams.get(managerId);
-                synchronized (managerStream) {
-                    managerStream.accept(message);
+        Routes routes = jobRoutes.get(eventList.getJobId());
+        if (routes == null) {
+            send(jobManagers.get(eventList.getJobId()), message, null);
+            return;
+        }
+        int dropped = routes.forward(eventListMessage, workerId, jobManagers.get(eventList.getJobId()), this::send);
+        if (dropped > 0) {
+            logger.E(TAG, "Dropped " + dropped + " events of job '" + eventList.getJobId() + "' that no manager owns");
+        }
+    }
+
+    /**
+     * Starts the next GVT round of every job that is not waiting for reports, or repeats the
+     * last one if it found events in transit
+     */
+    private void requestGvt() {
+        for (Map.Entry<String, GvtRound> entry : gvtRounds.entrySet()) {
+            String jobId = entry.getKey();
+            GvtRound state = entry.getValue();
+            List<String> managers = jobManagers.get(jobId);
+            if (managers == null) {
+                continue;
+            }
+            NetworkMessage request;
+            synchronized (state) {
+                if (state.waiting) {
+                    continue;
+                }
+                if (state.done) {
+                    state.round++;
                 }
-            } catch (Exception e) {
-                logger.E(TAG, "Failed to forward event list to manager");
-                logger.E(e);
+                state.done = false;
+                state.waiting = true;
+                state.reports.clear();
+                request = new NetworkMessage.GvtRequest(jobId, state.round);
             }
+            send(managers, request, null);
+        }
+    }
+
+    /**
+     * Collects a manager's GVT report, the last one of a round decides it
+     * @param message The message to handle
+     */
+    public void handleGvtReport(NetworkMessage message, String workerId) {
+        if(!(message instanceof NetworkMessage.GvtReport report)){
+            logger.E(TAG, "Received non-GVT report message");
+            return;
+        }
+        GvtRound state = gvtRounds.get(report.getJobId());
+        List<String> managers = jobManagers.get(report.getJobId());
+        if (state == null || managers == null) {
+            logger.E(TAG, "Received GVT report for unknown job '" + report.getJobId() + "'");
+            return;
+        }
+        NetworkMessage result = null;
+        synchronized (state) {
+            if (!state.waiting || report.getRound() != state.round) {
+                return;
+            }
+            state.reports.put(workerId, report);
+            if (state.reports.size() < managers.size()) {
+                return;
+            }
+            state.waiting = false;
+            long balance = 0;
+            long gvt = Long.MAX_VALUE;
+            for (NetworkMessage.GvtReport r : state.reports.values()) {
+                balance += r.getBalance();
+                gvt = Math.min(gvt, r.getMinimum());
+            }
+            if (balance != 0) {
+                logger.D(TAG, "GVT round " + state.round + " of job '" + report.getJobId() + "' has " + balance
+                        + " events in transit");
+                return;
+            }
+            state.done = true;
+            if (gvt > state.gvt) {
+                state.gvt = gvt;
+                result = new NetworkMessage.GvtMessage(report.getJobId(), gvt);
+            }
+        }
+        if (result != null) {
+            send(managers, result, null);
+        }
+    }
+
+    private void send(List<String> managers, NetworkMessage message, String except) {
+        for (String managerId : managers) {
+            if (!managerId.equals(except)) {
+                send(managerId, message);
+            }
+        }
+    }
+
+    private void send(String managerId, NetworkMessage message) {
+        try {
+            managerStreams.get(managerId).accept(message);
+        } catch (Exception e) {
+            logger.E(TAG, "Failed to send " + message.getType() + " to manager");
+            logger.E(e);
+        }
+    }
+
+    /**
+     * Forwards a null message to every other manager of its job
+     * @param message The message to handle
+     */
+    public void handleNullMessage(NetworkMessage message, String workerId) {
+        if(!(message instanceof NetworkMessage.NullMessage nullMessage)){
+            logger.E(TAG, "Received non-null message");
+            return;
+        }
+        String jobId = nullMessage.getPromises().getJobId();
+        List<String> managers = jobManagers.get(jobId);
+        if(managers == null){
+            logger.E(TAG, "Received null message for unknown job '" + jobId + "'");
+            return;
         }
+        send(managers, message, workerId);
     }
 }
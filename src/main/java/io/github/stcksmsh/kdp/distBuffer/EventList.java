@@ -8,10 +8,28 @@ import java.util.List;
 public class EventList<T> implements Serializable {
     private final String jobId;
     private final List<Event<T>> events;
+    /**
+     * Promises of the sender taken when the events were sent, applied after the events
+     */
+    private final Promises promises;
+    /**
+     * GVT round of the sender when the events were sent
+     */
+    private final long round;
 
     public EventList(String jobId, List<Event<T>> events) {
+        this(jobId, events, null);
+    }
+
+    public EventList(String jobId, List<Event<T>> events, Promises promises) {
+        this(jobId, events, promises, 0);
+    }
+
+    public EventList(String jobId, List<Event<T>> events, Promises promises, long round) {
         this.jobId = jobId;
         this.events = events;
+        this.promises = promises;
+        this.round = round;
     }
 
     public String getJobId() {
@@ -22,4 +40,12 @@ public class EventList<T> implements Serializable {
         return events;
     }
 
+    public Promises getPromises() {
+        return promises;
+    }
+
+    public long getRound() {
+        return round;
+    }
+
 }
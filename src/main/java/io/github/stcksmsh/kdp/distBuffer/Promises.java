@@ -0,0 +1,48 @@
+package io.github.stcksmsh.kdp.distBuffer;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+/**
+ * Lookahead based promises of one node for one job, the payload of a null message
+ * Entry i promises that component srcIds[i] sends nothing earlier than times[i] through port
+ * srcPorts[i]
+ *
+ * @see DistributedSimBufferManager
+ */
+public class Promises implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final String jobId;
+    private final long[] srcIds;
+    private final int[] srcPorts;
+    private final long[] times;
+
+    public Promises(String jobId, long[] srcIds, int[] srcPorts, long[] times) {
+        this.jobId = jobId;
+        this.srcIds = srcIds;
+        this.srcPorts = srcPorts;
+        this.times = times;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    public long getSrcId(int i) {
+        return srcIds[i];
+    }
+
+    public int getSrcPort(int i) {
+        return srcPorts[i];
+    }
+
+    public long getTime(int i) {
+        return times[i];
+    }
+}
@@ -0,0 +1,72 @@
+package io.github.stcksmsh.kdp.distBuffer;
+
+import io.github.stcksmsh.kdp.common.NetworkMessage;
+import rs.ac.bg.etf.sleep.simulation.Event;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Part of the distributed buffer system
+ * Knows which manager owns each component of a job and splits event lists among them, used by
+ * the router and by workers that send their events to each other directly
+ *
+ * @see DistributedSimBufferRouter
+ */
+public class Routes {
+    private final Map<Long, String> owners;
+
+    /**
+     * @param owners Maps the job's component ids to the managers that simulate them
+     */
+    public Routes(Map<Long, String> owners) {
+        this.owners = new HashMap<>(owners);
+    }
+
+    /**
+     * @return the manager that owns the component, null if there is none
+     */
+    public String getOwner(long componentId) {
+        return owners.get(componentId);
+    }
+
+    /**
+     * Sends every manager of managers the events of message that it owns, along with the list's
+     * promises and GVT round, or the message itself when all of its events have that one owner.
+     * Every other manager except sender gets the promises in a null message.
+     *
+     * @return the number of events whose destination has no owner, they are dropped
+     */
+    public <T> int forward(NetworkMessage.EventListMessage<T> message, String sender, List<String> managers,
+                           BiConsumer<String, NetworkMessage> send) {
+        EventList<T> eventList = message.getEventList();
+        Map<String, List<Event<T>>> split = new HashMap<>();
+        int dropped = 0;
+        for (Event<T> event : eventList.getEvents()) {
+            String owner = owners.get(event.getDstID());
+            if (owner == null) {
+                dropped++;
+                continue;
+            }
+            split.computeIfAbsent(owner, k -> new ArrayList<>()).add(event);
+        }
+        boolean whole = dropped == 0 && split.size() == 1;
+        for (String managerId : managers) {
+            List<Event<T>> events = split.get(managerId);
+            NetworkMessage forward;
+            if (events != null) {
+                forward = whole ? message : new NetworkMessage.EventListMessage<>(new EventList<>(eventList.getJobId(),
+                        events, eventList.getPromises(), eventList.getRound()));
+            } else if (eventList.getPromises() != null && !managerId.equals(sender)) {
+                forward = new NetworkMessage.NullMessage(eventList.getPromises());
+            } else {
+                continue;
+            }
+            send.accept(managerId, forward);
+        }
+        return dropped;
+    }
+}
@@ -0,0 +1,255 @@
+package io.github.stcksmsh.kdp.server;
+
+import io.github.stcksmsh.kdp.common.BufferPool;
+import io.github.stcksmsh.kdp.common.MessageCodec;
+import io.github.stcksmsh.kdp.common.NetworkMessage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A worker's socket on the server, owned by one {@link EventLoop}
+ * <p>
+ * Frames are read and written without blocking. Outgoing frames are encoded by the sender into
+ * pooled direct buffers and written by the owning loop once the socket is writable. Any thread
+ * may send, everything else runs on the owning loop.
+ */
+class Connection {
+    /**
+     * Pending outgoing bytes past which a connection is congested, the loop then stops reading
+     * from the connections whose messages it was forwarding until it drains below LOW
+     */
+    static long HIGH = Long.getLong("kdp.server.high", 8L << 20);
+    static long LOW = Long.getLong("kdp.server.low", 2L << 20);
+
+    final String id = UUID.randomUUID().toString();
+    final SocketChannel channel;
+    final EventLoop loop;
+    SelectionKey key;
+    boolean signedOn = false;
+    boolean pingReceived = true;
+
+    private final MessageCodec.Decoder decoder = new MessageCodec.Decoder();
+    private ByteBuffer in;
+    private byte[] payload = new byte[1024];
+    private int type;
+    /** Payload bytes of the frame being read, -1 while its header was not read */
+    private int length = -1;
+    private int filled;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+    private final MessageCodec.Encoder encoder = new MessageCodec.Encoder(new Sink());
+    private long pending = 0;
+    private volatile boolean closed = false;
+    /** Connections that stopped reading until this one drains */
+    private final List<Connection> waiters = new ArrayList<>();
+
+    Connection(SocketChannel channel, EventLoop loop) {
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    /**
+     * Encodes message for this connection, never blocks
+     * @return false when the connection is closed
+     */
+    boolean send(NetworkMessage message) {
+        boolean wake;
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            wake = pending == 0;
+            encoder.write(message);
+            if (pending > HIGH) {
+                EventLoop.congested(this);
+            }
+        } catch (IOException e) {
+            return false;
+        } finally {
+            lock.unlock();
+        }
+        if (wake) {
+            loop.wantWrite(this);
+        }
+        return true;
+    }
+
+    /**
+     * Reads what the socket has and hands every whole frame to handler
+     * @return false when the peer closed the connection
+     */
+    boolean read(EventLoop.Handler handler) throws IOException {
+        if (in == null) {
+            in = BufferPool.acquire();
+        }
+        int n = channel.read(in);
+        in.flip();
+        while (true) {
+            if (length < 0) {
+                if (in.remaining() < MessageCodec.HEADER) {
+                    break;
+                }
+                int version = in.get() & 0xff;
+                if (version != MessageCodec.VERSION) {
+                    throw new StreamCorruptedException("Unsupported protocol version " + version);
+                }
+                type = in.get() & 0xff;
+                length = in.getInt();
+                filled = 0;
+                if (payload.length < length) {
+                    payload = new byte[Math.max(length, payload.length * 2)];
+                }
+            }
+            int chunk = Math.min(in.remaining(), length - filled);
+            in.get(payload, filled, chunk);
+            filled += chunk;
+            if (filled < length) {
+                break;
+            }
+            length = -1;
+            NetworkMessage message = decoder.decode(type, payload, filled);
+            if (message != null) {
+                handler.handle(this, message);
+                if (closed) {
+                    return false;
+                }
+            }
+        }
+        if (in.hasRemaining()) {
+            in.compact();
+        } else {
+            BufferPool.release(in);
+            in = null;
+        }
+        return n >= 0;
+    }
+
+    /**
+     * Writes as much as the socket takes, called by the loop when it is writable
+     * @return true when nothing is left to write
+     */
+    boolean write() throws IOException {
+        List<Connection> resumed = null;
+        boolean empty;
+        lock.lock();
+        try {
+            while (!out.isEmpty()) {
+                ByteBuffer buffer = out.peek();
+                buffer.flip();
+                pending -= channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    buffer.compact();
+                    break;
+                }
+                BufferPool.release(out.poll());
+            }
+            empty = out.isEmpty();
+            if (pending < LOW && !waiters.isEmpty()) {
+                resumed = new ArrayList<>(waiters);
+                waiters.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (resumed != null) {
+            for (Connection waiter : resumed) {
+                waiter.loop.resumeRead(waiter);
+            }
+        }
+        return empty;
+    }
+
+    /**
+     * Stops reading from waiter until this connection drains
+     */
+    void hold(Connection waiter) {
+        lock.lock();
+        try {
+            if (closed || pending < LOW) {
+                return;
+            }
+            if (!waiters.contains(waiter)) {
+                waiters.add(waiter);
+            }
+        } finally {
+            lock.unlock();
+        }
+        waiter.loop.pauseRead(waiter);
+    }
+
+    void close() {
+        List<Connection> resumed;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (ByteBuffer buffer : out) {
+                BufferPool.release(buffer);
+            }
+            out.clear();
+            pending = 0;
+            resumed = new ArrayList<>(waiters);
+            waiters.clear();
+        } finally {
+            lock.unlock();
+        }
+        if (in != null) {
+            BufferPool.release(in);
+            in = null;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        for (Connection waiter : resumed) {
+            waiter.loop.resumeRead(waiter);
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Where the encoder's frames go, called with the lock held
+     */
+    private class Sink extends OutputStream {
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) {
+            pending += count;
+            while (count > 0) {
+                ByteBuffer tail = out.peekLast();
+                if (tail == null || !tail.hasRemaining()) {
+                    tail = BufferPool.acquire();
+                    out.add(tail);
+                }
+                int chunk = Math.min(count, tail.remaining());
+                tail.put(bytes, offset, chunk);
+                offset += chunk;
+                count -= chunk;
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package io.github.stcksmsh.kdp.server;
+
+import io.github.stcksmsh.kdp.common.Logger;
+import io.github.stcksmsh.kdp.common.NetworkMessage;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread serving many {@link Connection}s
+ * <p>
+ * The loop reads frames and hands them to its handler, writes the frames other threads sent,
+ * pings its signed on connections and, when it owns the server socket, accepts new connections
+ * and spreads them over all loops. Work for a loop from another thread is queued as a task and
+ * the selector is woken up.
+ */
+class EventLoop implements Runnable {
+    /**
+     * Handles a message on the loop of the connection it came from, must not block
+     */
+    interface Handler {
+        void handle(Connection connection, NetworkMessage message);
+
+        /** Called once a connection is closed, after its last message */
+        void closed(Connection connection);
+    }
+
+    private static final ThreadLocal<EventLoop> current = new ThreadLocal<>();
+
+    private final Selector selector;
+    private final Handler handler;
+    private final Logger logger;
+    private final String TAG = Logger.getTAG();
+    private final long pingTimeout;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final List<Connection> connections = new ArrayList<>();
+    /** Connections a message just sent to congested, see {@link Connection#HIGH} */
+    private final List<Connection> congested = new ArrayList<>();
+    private EventLoop[] group;
+    private int next = 0;
+
+    EventLoop(Handler handler, Logger logger, long pingTimeout) throws IOException {
+        this.selector = Selector.open();
+        this.handler = handler;
+        this.logger = logger;
+        this.pingTimeout = pingTimeout;
+    }
+
+    /**
+     * Accepts connections on server from this loop, handing them to the loops of group in turn
+     */
+    void accept(ServerSocketChannel server, EventLoop[] group) throws IOException {
+        this.group = group;
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT, server);
+    }
+
+    /**
+     * Records that a message sent from the current thread pushed target past its high water
+     * mark, only loop threads react to it
+     */
+    static void congested(Connection target) {
+        EventLoop loop = current.get();
+        if (loop != null) {
+            loop.congested.add(target);
+        }
+    }
+
+    void execute(Runnable task) {
+        if (current.get() == this) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    void wantWrite(Connection connection) {
+        execute(() -> interest(connection, SelectionKey.OP_WRITE, true));
+    }
+
+    void pauseRead(Connection connection) {
+        execute(() -> interest(connection, SelectionKey.OP_READ, false));
+    }
+
+    void resumeRead(Connection connection) {
+        execute(() -> interest(connection, SelectionKey.OP_READ, true));
+    }
+
+    void close(Connection connection) {
+        execute(() -> closed(connection));
+    }
+
+    private void interest(Connection connection, int op, boolean on) {
+        SelectionKey key = connection.key;
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        key.interestOps(on ? key.interestOps() | op : key.interestOps() & ~op);
+    }
+
+    private void register(SocketChannel channel) {
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(channel, this);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+        } catch (IOException e) {
+            logger.E(TAG, "Failed to register connection");
+            logger.E(e);
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        current.set(this);
+        long nextPing = System.currentTimeMillis() + pingTimeout;
+        while (true) {
+            try {
+                selector.select(Math.max(1, nextPing - System.currentTimeMillis()));
+            } catch (IOException e) {
+                logger.E(TAG, "Selector failed");
+                logger.E(e);
+                break;
+            }
+            for (SelectionKey key : selector.selectedKeys()) {
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.attachment() instanceof ServerSocketChannel server) {
+                    acceptAll(server);
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isWritable() && connection.write()) {
+                        interest(connection, SelectionKey.OP_WRITE, false);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        boolean open = connection.read(handler);
+                        for (Connection target : congested) {
+                            target.hold(connection);
+                        }
+                        congested.clear();
+                        if (!open) {
+                            logger.E(TAG, "Client " + connection.channel.socket().getInetAddress() + " disconnected");
+                            closed(connection);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    logger.E(TAG, "Connection failed");
+                    logger.E(e);
+                    congested.clear();
+                    closed(connection);
+                }
+            }
+            selector.selectedKeys().clear();
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            if (System.currentTimeMillis() >= nextPing) {
+                ping();
+                nextPing = System.currentTimeMillis() + pingTimeout;
+            }
+        }
+        for (Connection connection : new ArrayList<>(connections)) {
+            connection.close();
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void acceptAll(ServerSocketChannel server) {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (IOException e) {
+                logger.E(TAG, "Failed to accept client connection");
+                logger.E(e);
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            EventLoop loop = group[next++ % group.length];
+            loop.execute(() -> loop.register(channel));
+        }
+    }
+
+    /**
+     * Closes the signed on connections that did not answer the last ping and pings the rest
+     */
+    private void ping() {
+        for (Connection connection : new ArrayList<>(connections)) {
+            if (!connection.signedOn) {
+                continue;
+            }
+            if (!connection.pingReceived) {
+                logger.W(TAG, "Client " + connection.channel.socket().getInetAddress() + " is not responding, closing connection");
+                closed(connection);
+                continue;
+            }
+            connection.pingReceived = false;
+            connection.send(new NetworkMessage.PingRequest());
+        }
+    }
+
+    private void closed(Connection connection) {
+        if (!connections.remove(connection)) {
+            return;
+        }
+        connection.close();
+        try {
+            handler.closed(connection);
+        } catch (RuntimeException e) {
+            logger.E(TAG, "Failed to clean up after connection");
+            logger.E(e);
+        }
+    }
+}
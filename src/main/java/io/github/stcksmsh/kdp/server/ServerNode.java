@@ -14,33 +14,50 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.lang.reflect.Field;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ServerNode extends Node {
     private final String TAG;
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverSocket;
     private final DistributedSimBufferRouter router;
     private final int serverPort;
     private final Map<String, WorkerInfo> workers;
     private final Map<String, JobInfo> jobs;
 
-    record JobInfo(List<String> workers, Netlist<Object> netlist, double difficulty, long endTime) {
+    /**
+     * @param compressed Whether the job's event payloads are compressed on the wire
+     * @param finished The workers that finished their part of the job
+     */
+    record JobInfo(List<String> workers, Netlist<Object> netlist, double difficulty, long endTime, boolean compressed,
+                   Set<String> finished) {
         static String generateJobId() {
             return UUID.randomUUID().toString();
         }
     }
-    record WorkerInfo(SynchronizedObjectOutputStream workerOut, SynchronisedObjectInputStream workerIn, List<Pair<String, Double>> jobs, Double totalDifficluty) {
-        static String generateWorkerId() {
-            return UUID.randomUUID().toString();
-        }
+    /**
+     * @param peer Where other workers reach this one, null when they cannot
+     */
+    record WorkerInfo(Connection connection, InetSocketAddress peer, List<Pair<String, Double>> jobs, Double totalDifficluty) {
     }
 
+    /**
+     * Selector threads serving the worker connections, their number does not grow with the
+     * number of workers
+     */
+    public static int LOOPS = Integer.getInteger("kdp.server.loops", Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private EventLoop[] loops;
+
+    /**
+     * Whether new jobs compress their event payloads, which trades CPU time on every node for
+     * bandwidth, see {@link MessageCodec#setCompressed}
+     */
+    public static boolean COMPRESS = Boolean.getBoolean("kdp.compress");
+
 
     public ServerNode(String logFilename, int serverPort) {
         super(logFilename);
@@ -56,10 +73,12 @@ public class ServerNode extends Node {
         logger.I(TAG, "Starting server node");
         for (int i = 0; i < RETRY_COUNT; i++) {
             try {
-                serverSocket = new ServerSocket(serverPort);
+                serverSocket = ServerSocketChannel.open();
+                serverSocket.bind(new InetSocketAddress(serverPort));
                 break;
             } catch (IOException e) {
                 logger.E(TAG, "Failed to create server socket, retrying...");
+                serverSocket = null;
                 try {
                     Thread.sleep(RETRY_TIMEOUT);
                 } catch (InterruptedException ex) {
@@ -72,98 +91,136 @@ public class ServerNode extends Node {
             logger.E(TAG, "Failed to create server socket");
             return;
         }
-        running = true;
-        new Thread(this::run).start();
-    }
-
-    private boolean running;
+        EventLoop.Handler handler = new EventLoop.Handler() {
+            @Override
+            public void handle(Connection connection, NetworkMessage message) {
+                handleMessage(connection, message);
+            }
 
-    private void run() {
-        while (running) {
-            try {
-                Socket clientSocket = serverSocket.accept();
-                new Thread(() -> handleClient(clientSocket)).start();
-            } catch (IOException e) {
-                logger.E(TAG, "Failed to accept client connection");
-                logger.E(e);
+            @Override
+            public void closed(Connection connection) {
+                if (connection.signedOn) {
+                    workerDisconnected(connection.id);
+                }
+            }
+        };
+        try {
+            loops = new EventLoop[Math.max(1, LOOPS)];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(handler, logger, PING_TIMEOUT);
             }
+            loops[0].accept(serverSocket, loops);
+        } catch (IOException e) {
+            logger.E(TAG, "Failed to open selectors");
+            logger.E(e);
+            return;
+        }
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "loop-" + i).start();
         }
     }
 
     private static final long PING_TIMEOUT = 1000;
-    private void handleClient(@NotNull Socket clientSocket) {
-        try {
-            SynchronizedObjectOutputStream clientOutput = new SynchronizedObjectOutputStream(clientSocket.getOutputStream(), logger);
-            SynchronisedObjectInputStream clientInput = new SynchronisedObjectInputStream(clientSocket.getInputStream(), logger);
-            AtomicBoolean pingReceived = new AtomicBoolean(true);
-            String newManagerId = WorkerInfo.generateWorkerId();
-            Thread pingThread = new Thread(() -> {
-                while (running && clientSocket.isConnected()) {
-                    try {
-                        Thread.sleep(PING_TIMEOUT);
-                    } catch (InterruptedException e) {
-                        logger.E(TAG, "Interrupted while waiting to send ping request");
-                        logger.E(e);
-                    }
-                    if (!pingReceived.getAcquire()) {
-                        logger.W(TAG, "Client " + clientSocket.getInetAddress() + " is not responding, closing connection");
-                        workerDisconnected(newManagerId);
-                        break;
+
+    /**
+     * Handles a message from a worker, runs on the worker connection's loop
+     */
+    private void handleMessage(Connection connection, NetworkMessage message) {
+        boolean signedOn = connection.signedOn;
+        String managerId = connection.id;
+        switch (message.getType()) {
+            case SIGN_ON_REQUEST -> {
+                if (signedOn) {
+                    logger.E(TAG, "Received sign on request after signing on");
+                    break;
+                }
+                router.addManager(managerId, msg -> {
+                    if (!connection.send(msg)) {
+                        logger.E(TAG, "Failed to send event list to manager: " + managerId);
                     }
-                    pingReceived.setRelease(false);
-                    clientOutput.writeObject(new NetworkMessage.PingRequest());
+                });
+                logger.I(TAG, "Manager signed on: " + managerId);
+                int peerPort = ((NetworkMessage.SignOnRequest) message).getPeerPort();
+                InetSocketAddress peer = peerPort > 0
+                        ? new InetSocketAddress(connection.channel.socket().getInetAddress(), peerPort) : null;
+                workers.put(managerId, new WorkerInfo(connection, peer, new CopyOnWriteArrayList<>(), 0.0));
+                connection.send(new NetworkMessage.SignOnResponse());
+                connection.signedOn = true;
+            }
+            case EVENT_LIST -> {
+                if (!signedOn) {
+                    logger.E(TAG, "Received event list before signing on");
+                    break;
                 }
-            });
-            boolean signedOn = false;
-            while (clientSocket.isConnected()) {
-                NetworkMessage message = (NetworkMessage) clientInput.readObject();
-                if (message == null) {
-                    logger.E(TAG, "Client " + clientSocket.getInetAddress() + " disconnected");
+                router.handleEventList(message, managerId);
+            }
+            case NULL_MESSAGE -> {
+                if (!signedOn) {
+                    logger.E(TAG, "Received null message before signing on");
                     break;
                 }
-                switch (message.getType()) {
-                    case SIGN_ON_REQUEST -> {
-                        if (signedOn) {
-                            logger.E(TAG, "Received sign on request after signing on");
-                            break;
-                        }
-                        router.addManager(newManagerId, msg -> {
-                            if (!clientOutput.writeObject(msg)) {
-                                logger.E(TAG, "Failed to send event list to manager: " + newManagerId);
-                            }
-                        });
-                        logger.I(TAG, "Manager signed on: " + newManagerId);
-                        workers.put(newManagerId, new WorkerInfo(clientOutput, clientInput, new CopyOnWriteArrayList<>(), 0.0));
-                        clientOutput.writeObject(new NetworkMessage.SignOnResponse());
-                        signedOn = true;
-                        pingThread.start();
-                    }
-                    case EVENT_LIST -> {
-                        if (!signedOn) {
-                            logger.E(TAG, "Received event list before signing on");
-                            break;
-                        }
-                        router.handleEventList(message, newManagerId);
-                    }
-                    case PING_RESPONSE -> {
-                        if (!signedOn) {
-                            logger.E(TAG, "Received ping response before signing on");
-                            break;
-                        }
-                        if (pingReceived.getAcquire()) {
-                            logger.W(TAG, "Received unexpected ping response from manager");
-                        } else {
-                            pingReceived.setRelease(true);
-                        }
-                    }
-                    default ->
-                            logger.E(TAG, "Received unexpected message type '" + message.getType() + "' from manager " + clientSocket.getInetAddress());
+                router.handleNullMessage(message, managerId);
+            }
+            case GVT_REPORT -> {
+                if (!signedOn) {
+                    logger.E(TAG, "Received GVT report before signing on");
+                    break;
                 }
+                router.handleGvtReport(message, managerId);
             }
-            pingThread.interrupt();
-        } catch (IOException e) {
-            logger.E(TAG, "Failed to accept client connection");
-            logger.E(e);
+            case PING_RESPONSE -> {
+                if (!signedOn) {
+                    logger.E(TAG, "Received ping response before signing on");
+                    break;
+                }
+                if (connection.pingReceived) {
+                    logger.W(TAG, "Received unexpected ping response from manager");
+                } else {
+                    connection.pingReceived = true;
+                }
+            }
+            case JOB_DONE -> {
+                if (!signedOn) {
+                    logger.E(TAG, "Received job done message before signing on");
+                    break;
+                }
+                jobDone(((NetworkMessage.JobDoneMessage) message).getJobId(), managerId);
+            }
+            default ->
+                    logger.E(TAG, "Received unexpected message type '" + message.getType() + "' from manager " + connection.channel.socket().getInetAddress());
+        }
+    }
+
+    /**
+     * Records that a worker finished its part of a job. Once all of them did, the job is
+     * dropped here and the workers are told to drop it as they would a killed one, no events
+     * of it are left in transit then.
+     */
+    private void jobDone(String jobId, String workerId) {
+        JobInfo info = jobs.get(jobId);
+        if (info == null) {
+            logger.W(TAG, "Worker " + workerId + " finished unknown job " + jobId);
+            return;
+        }
+        info.finished().add(workerId);
+        if (!info.finished().containsAll(info.workers()) || !jobs.remove(jobId, info)) {
+            return;
+        }
+        logger.I(TAG, "Job " + jobId + " finished");
+        NetworkMessage msg = new NetworkMessage.KillJobMessage(jobId);
+        for (String worker : info.workers()) {
+            WorkerInfo workerInfo = workers.get(worker);
+            if (workerInfo == null) {
+                continue;
+            }
+            workerInfo.jobs.removeIf(job -> job.getFirst().equals(jobId));
+            if (!workerInfo.connection.send(msg)) {
+                logger.E(TAG, "Failed to send kill job message to worker: " + worker);
+            }
+        }
+        router.removeJob(jobId);
+        for (String line : MessageCodec.endJob(jobId)) {
+            logger.I(TAG, line);
         }
     }
 
@@ -171,44 +228,69 @@ public class ServerNode extends Node {
         for(Pair<String, Double> info : workers.get(workerId).jobs) {
             NetworkMessage msg = new NetworkMessage.KillJobMessage(info.getFirst());
             for(String worker: jobs.get(info.getFirst()).workers) {
-                if (!workers.get(worker).workerOut.writeObject(msg)) {
+                if (!workers.get(worker).connection.send(msg)) {
                     logger.E(TAG, "Failed to send kill job message to worker: " + worker);
                 }
             }
             router.removeJob(info.getFirst());
+            for (String line : MessageCodec.endJob(info.getFirst())) {
+                logger.I(TAG, line);
+            }
         }
         workers.remove(workerId);
         Netlist netlist = jobs.get(workerId).netlist;
         long endTime = jobs.get(workerId).endTime;
+        boolean compressed = jobs.get(workerId).compressed;
         jobs.remove(workerId);
-        handleNewJob(netlist, endTime);
+        handleNewJob(netlist, endTime, compressed);
     }
 
     @Nullable
-    private String handleNewJob(Netlist<Object> netlist, long endTime) {
+    private String handleNewJob(Netlist<Object> netlist, long endTime, boolean compressed) {
         /// Distribute the job to the workers while keeping it balanced
         String jobId = JobInfo.generateJobId();
         List<Double> difficulties = calculateComponentDifficulties(netlist);
         JobInfo info = new JobInfo(new ArrayList<>(), netlist,
-                difficulties.stream().mapToDouble(Double::doubleValue).sum(), endTime);
+                difficulties.stream().mapToDouble(Double::doubleValue).sum(), endTime, compressed,
+                ConcurrentHashMap.newKeySet());
+        /// Set before the workers hear of the job, the router forwards its events from then on
+        MessageCodec.setCompressed(jobId, compressed);
         PriorityQueue<Pair<String, Double>> pq = new PriorityQueue<>(Comparator.comparingDouble(Pair::getSecond));
         for (String workerId : workers.keySet()) {
             logger.D(TAG, "Worker: " + workerId + " has difficulty: " + workers.get(workerId).totalDifficluty);
             pq.add(new Pair<>(workerId, workers.get(workerId).totalDifficluty));
         }
         Map<String, Netlist> workerNetlists = new HashMap<>();
+        Map<Long, String> owners = new HashMap<>();
         for(int i = 0; i < difficulties.size(); i ++){
             double difficulty = difficulties.get(i);
-            SimComponent<Object> component = netlist.getComponent(i + 1);
+            SimComponent<Object> component = netlist.getComponentAt(i);
+            long componentId = netlist.getComponentId(i);
             Pair<String, Double> worker = pq.poll();
             if(worker == null){
                 logger.E(TAG, "Failed to distribute job to workers");
                 return null;
             }
             workerNetlists.putIfAbsent(worker.getFirst(), new Netlist<>());
-            workerNetlists.get(worker.getFirst()).addComponent(i + 1, component);
+            workerNetlists.get(worker.getFirst()).addComponent(componentId, component);
+            owners.put(componentId, worker.getFirst());
             pq.add(new Pair<>(worker.getFirst(), worker.getSecond() + difficulty));
         }
+        /// Workers exchange events directly when all of them can be reached, otherwise through the router
+        Map<String, InetSocketAddress> peers = new HashMap<>();
+        for (String workerId : workerNetlists.keySet()) {
+            InetSocketAddress peer = workers.get(workerId).peer;
+            if (peer == null) {
+                peers = null;
+                break;
+            }
+            peers.put(workerId, peer);
+        }
+        /// Add the job to the jobs map and the router before any worker hears of it, a worker may
+        /// send its events or finish right away
+        info.workers.addAll(workerNetlists.keySet());
+        jobs.put(jobId, info);
+        router.addJob(jobId, info.workers, owners);
         while(!pq.isEmpty()){
             Pair<String, Double> worker = pq.poll();
             if(!workerNetlists.containsKey(worker.getFirst())){
@@ -216,35 +298,39 @@ public class ServerNode extends Node {
             }
             Netlist<Object> workerNetlist = workerNetlists.get(worker.getFirst());
             /// Now add the necessary connections to this netlist
+            /// Incoming ones are the input channels the conservative mode waits on
             for (Map.Entry<SimEndpoint, List<SimEndpoint>> entry : netlist.getConnections().entrySet()) {
                 SimEndpoint src = entry.getKey();
-                if (!workerNetlist.getComponents().containsKey(src.componentID)) {
-                    continue;
-                }
+                boolean localSrc = workerNetlist.contains(src.componentID);
                 for (SimEndpoint dst : entry.getValue()) {
-                    workerNetlist.addConnection(src.componentID, src.componentPort, dst.componentID, dst.componentPort);
+                    if (!localSrc && !workerNetlist.contains(dst.componentID)) {
+                        continue;
+                    }
+                    workerNetlist.addConnection(src.componentID, src.componentPort, dst.componentID, dst.componentPort,
+                            netlist.getLookahead(src.componentID, src.componentPort));
                 }
             }
-            NetworkMessage.NewJobMessage<Object> msg = new NetworkMessage.NewJobMessage<>(jobId, workerNetlist, endTime);
-            if (!workers.get(worker.getFirst()).workerOut.writeObject(msg)) {
+            NetworkMessage.NewJobMessage<Object> msg = peers == null
+                    ? new NetworkMessage.NewJobMessage<>(jobId, workerNetlist, endTime, null, null, null, compressed)
+                    : new NetworkMessage.NewJobMessage<>(jobId, workerNetlist, endTime, worker.getFirst(), owners, peers, compressed);
+            if (!workers.get(worker.getFirst()).connection.send(msg)) {
                 logger.E(TAG, "Failed to send new job message to worker: " + worker.getFirst());
+                jobs.remove(jobId);
+                router.removeJob(jobId);
+                MessageCodec.setCompressed(jobId, false);
                 return null;
             }
-            info.workers.add(worker.getFirst());
             workers.get(worker.getFirst()).jobs.add(new Pair<>(jobId, worker.getSecond() - workers.get(worker.getFirst()).totalDifficluty));
-            workers.replace(worker.getFirst(), new WorkerInfo(workers.get(worker.getFirst()).workerOut, workers.get(worker.getFirst()).workerIn,
+            workers.replace(worker.getFirst(), new WorkerInfo(workers.get(worker.getFirst()).connection, workers.get(worker.getFirst()).peer,
                     workers.get(worker.getFirst()).jobs, worker.getSecond()));
         }
 
-        /// Then add the job to the jobs map and the router
-        jobs.put(jobId, info);
-        router.addJob(jobId, info.workers);
         /// Finally return the job id
         return jobId;
     }
 
     private List<Double> calculateComponentDifficulties(Netlist<Object> netlist) {
-        List<Double> difficulties = Collections.nCopies(netlist.getComponents().size(), 0.0);
+        List<Double> difficulties = Collections.nCopies(netlist.getComponentCount(), 0.0);
         /// Calculate the difficulties of the components
         return difficulties;
     }
@@ -270,7 +356,7 @@ public class ServerNode extends Node {
         }
         Netlist<Object> netlist = serverNode.loadNetlistFromFiles("komponente2-5000.txt", "veze2-5000.txt");
         System.out.println("Netlist loaded");
-        serverNode.handleNewJob(netlist, 10);
+        serverNode.handleNewJob(netlist, 10, COMPRESS);
         System.out.println("Job added");
         serverNode.logger.I(serverNode.TAG, "Job added");
     }
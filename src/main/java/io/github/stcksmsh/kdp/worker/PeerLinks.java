@@ -0,0 +1,230 @@
+package io.github.stcksmsh.kdp.worker;
+
+import io.github.stcksmsh.kdp.common.Logger;
+import io.github.stcksmsh.kdp.common.NetworkMessage;
+import io.github.stcksmsh.kdp.common.SynchronisedObjectInputStream;
+import io.github.stcksmsh.kdp.common.SynchronizedObjectOutputStream;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Direct connections between workers, so event lists and null messages take one hop instead of
+ * going through the server
+ * <p>
+ * A worker listens on a port of its own for the other workers and opens a connection to a peer
+ * the first time it sends it something. Connections only carry messages one way, everything a
+ * peer sends arrives on the connection it opened. A peer that could not be reached is not tried
+ * again, its messages go to the server, which forwards them.
+ * <p>
+ * Messages to one peer keep their order. When its connection fails the peer counts as
+ * unreachable, the messages the connection had not got out go to the server first, in order,
+ * and everything after them follows the same way. Messages from flushes that completed before
+ * the failure were handed to the socket and are not sent again, a peer that still reads them
+ * may do so after the first of the rerouted ones arrived, a peer that died loses them with the
+ * job.
+ */
+class PeerLinks {
+    /**
+     * ms to wait for a peer to accept a connection
+     */
+    public static int CONNECT_TIMEOUT = Integer.getInteger("kdp.peer.timeout", 2000);
+
+    private final Logger logger;
+    private final String TAG;
+    private final Consumer<NetworkMessage> handler;
+    private final Consumer<NetworkMessage> server;
+    private final Map<String, InetSocketAddress> addresses = new ConcurrentHashMap<>();
+    private final Map<String, SynchronizedObjectOutputStream> links = new ConcurrentHashMap<>();
+    private final Set<String> unreachable = ConcurrentHashMap.newKeySet();
+    /**
+     * Held while sending to a peer, connecting to it or rerouting its messages, locks rather than
+     * monitors as senders may be virtual threads
+     */
+    private final Map<String, ReentrantLock> locks = new ConcurrentHashMap<>();
+    private final AtomicInteger readers = new AtomicInteger();
+    private ServerSocket listener;
+
+    /**
+     * @param handler Takes the messages peers send, called on the thread reading their connection
+     * @param server  Sends a message to the server, which forwards it to the peer
+     */
+    PeerLinks(Logger logger, Consumer<NetworkMessage> handler, Consumer<NetworkMessage> server) {
+        this.logger = logger;
+        this.TAG = Logger.getTAG();
+        this.handler = handler;
+        this.server = server;
+    }
+
+    /**
+     * Starts listening for peers
+     * @param port The port to listen on, 0 for any free one
+     * @return the port listened on, 0 if listening failed
+     */
+    int start(int port) {
+        try {
+            listener = new ServerSocket(port);
+        } catch (IOException e) {
+            logger.E(TAG, "Failed to listen for peers, events will go through the server");
+            logger.E(e);
+            return 0;
+        }
+        Thread acceptor = new Thread(this::accept, "peer-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.I(TAG, "Listening for peers on port " + listener.getLocalPort());
+        return listener.getLocalPort();
+    }
+
+    private void accept() {
+        while (!listener.isClosed()) {
+            try {
+                Socket socket = listener.accept();
+                socket.setTcpNoDelay(true);
+                SynchronisedObjectInputStream in = new SynchronisedObjectInputStream(socket.getInputStream(), logger);
+                Thread reader = new Thread(() -> read(socket, in), "peer-" + readers.incrementAndGet());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                logger.E(TAG, "Failed to accept peer connection");
+                logger.E(e);
+            }
+        }
+    }
+
+    private void read(Socket socket, SynchronisedObjectInputStream in) {
+        while (true) {
+            NetworkMessage message = (NetworkMessage) in.readObject();
+            if (message == null) {
+                logger.I(TAG, "Peer " + socket.getInetAddress() + " disconnected");
+                break;
+            }
+            handler.accept(message);
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Adds the addresses of peers, known ones keep their connections
+     */
+    void addPeers(Map<String, InetSocketAddress> peers) {
+        addresses.putAll(peers);
+    }
+
+    /**
+     * Queues message for the peer, connecting to it first if needed, or sends it through the
+     * server when the peer is unknown or unreachable
+     */
+    void send(String peerId, NetworkMessage message) {
+        ReentrantLock lock = locks.computeIfAbsent(peerId, k -> new ReentrantLock());
+        lock.lock();
+        try {
+            SynchronizedObjectOutputStream link = links.get(peerId);
+            if (link == null) {
+                link = connect(peerId);
+            }
+            if (link != null && link.writeObject(message)) {
+                return;
+            }
+            if (link != null && link.isClosed()) {
+                reroute(peerId);
+            }
+            server.accept(message);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by a link that failed, on its writer thread
+     */
+    private void failed(String peerId) {
+        ReentrantLock lock = locks.computeIfAbsent(peerId, k -> new ReentrantLock());
+        lock.lock();
+        try {
+            reroute(peerId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the peer unreachable and sends what its link did not get out through the server, with
+     * the peer's lock held. Job done messages only concern the link and are dropped with it.
+     */
+    private void reroute(String peerId) {
+        SynchronizedObjectOutputStream link = links.remove(peerId);
+        if (link == null) {
+            return;
+        }
+        unreachable.add(peerId);
+        List<NetworkMessage> unsent = link.takeUnsent();
+        logger.W(TAG, "Lost the connection to peer " + peerId + ", its " + unsent.size()
+                + " unsent messages and everything after them go through the server");
+        for (NetworkMessage message : unsent) {
+            if (message.getType() != NetworkMessage.MessageType.JOB_DONE) {
+                server.accept(message);
+            }
+        }
+    }
+
+    /**
+     * Tells a connected peer that a job is over, the connection's job handle is released on both
+     * ends. A peer this worker never connected to has no handle to release.
+     */
+    void release(String peerId, NetworkMessage.JobDoneMessage message) {
+        SynchronizedObjectOutputStream link = links.get(peerId);
+        if (link != null) {
+            link.writeObject(message);
+        }
+    }
+
+    /**
+     * Opens the link to the peer, with its lock held
+     * @return null when the peer is unknown or unreachable
+     */
+    private SynchronizedObjectOutputStream connect(String peerId) {
+        if (unreachable.contains(peerId)) {
+            return null;
+        }
+        InetSocketAddress address = addresses.get(peerId);
+        if (address == null) {
+            return null;
+        }
+        SynchronizedObjectOutputStream link;
+        try {
+            Socket socket = new Socket();
+            socket.connect(address, CONNECT_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            link = SynchronizedObjectOutputStream.open(socket.getOutputStream(), logger, () -> failed(peerId));
+        } catch (IOException e) {
+            logger.W(TAG, "Failed to connect to peer " + peerId + " at " + address + ", its events will go through the server");
+            unreachable.add(peerId);
+            return null;
+        }
+        logger.I(TAG, "Connected to peer " + peerId + " at " + address);
+        links.put(peerId, link);
+        return link;
+    }
+
+    /**
+     * @return what was written to each connected peer
+     */
+    String report() {
+        StringBuilder report = new StringBuilder();
+        links.forEach((peerId, link) -> report.append("peer ").append(peerId).append(": ").append(link.report()).append('\n'));
+        return report.toString().trim();
+    }
+}
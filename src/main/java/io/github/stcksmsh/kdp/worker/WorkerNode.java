@@ -4,12 +4,14 @@ package io.github.stcksmsh.kdp.worker;
 import io.github.stcksmsh.kdp.common.*;
 import io.github.stcksmsh.kdp.distBuffer.DistributedSimBuffer;
 import io.github.stcksmsh.kdp.distBuffer.DistributedSimBufferManager;
+import io.github.stcksmsh.kdp.distBuffer.Routes;
 import rs.ac.bg.etf.sleep.simulation.*;
 
 import java.io.IOException;
 import java.net.Socket;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class WorkerNode extends Node {
     private final String TAG;
@@ -20,6 +22,44 @@ public class WorkerNode extends Node {
     private SynchronisedObjectInputStream serverNodeIn = null;
     private final DistributedSimBufferManager<Object> bufferManager;
     private final Map<String, Thread> simulators = new ConcurrentHashMap<>();
+    /**
+     * Simulator used for new jobs: multithread (conservative, the default), single or optimistic
+     * (Time Warp)
+     */
+    public static String SIMULATOR = System.getProperty("kdp.simulator", "multithread");
+    /**
+     * Jobs run on virtual threads unless kdp.virtual is false, their carriers are bounded by
+     * jdk.virtualThreadScheduler.parallelism
+     */
+    public static boolean VIRTUAL = Boolean.parseBoolean(System.getProperty("kdp.virtual", "true"));
+    private final AtomicInteger simulatorCount = new AtomicInteger();
+    /**
+     * Workers send each other their events directly unless kdp.p2p is false, the server then
+     * forwards them
+     */
+    public static boolean P2P = Boolean.parseBoolean(System.getProperty("kdp.p2p", "true"));
+    /**
+     * Port other workers connect to, 0 for any free one
+     */
+    public static int PEER_PORT = Integer.getInteger("kdp.peer.port", 0);
+    private final PeerLinks peers;
+    /**
+     * Jobs whose events go to their owners directly, by job id
+     */
+    private final Map<String, JobRoutes> routes = new ConcurrentHashMap<>();
+    /**
+     * True for the jobs this worker runs, false once they are killed. Peers may send a job's
+     * events before the server's new job message arrives, those wait in early.
+     */
+    private final Map<String, Boolean> jobs = new HashMap<>();
+    private final Map<String, List<NetworkMessage>> early = new HashMap<>();
+
+    /**
+     * @param self The id the server knows this worker by
+     * @param managers Every worker of the job, this one included
+     */
+    private record JobRoutes(String self, Routes routes, List<String> managers) {
+    }
 
 
     public WorkerNode(String logFilename, String serverNodeAddress, int serverNodePort) {
@@ -27,7 +67,8 @@ public class WorkerNode extends Node {
         this.TAG = Logger.getTAG();
         this.serverNodeAddress = serverNodeAddress;
         this.serverNodePort = serverNodePort;
-        this.bufferManager = new DistributedSimBufferManager<Object>(logger, this::sendEventList);
+        this.bufferManager = new DistributedSimBufferManager<Object>(logger, this::sendEventList, this::sendNullMessage);
+        this.peers = new PeerLinks(logger, this::handlePeerMessage, message -> serverNodeOut.writeObject(message));
     }
 
     @Override
@@ -54,7 +95,7 @@ public class WorkerNode extends Node {
         }
         /// Then make the input and output streams
         try{
-            serverNodeOut = new SynchronizedObjectOutputStream(serverNodeSocket.getOutputStream(), logger);
+            serverNodeOut = SynchronizedObjectOutputStream.open(serverNodeSocket.getOutputStream(), logger);
             serverNodeIn = new SynchronisedObjectInputStream(serverNodeSocket.getInputStream(), logger);
         }catch (IOException e){
             logger.E(TAG, e);
@@ -66,7 +107,8 @@ public class WorkerNode extends Node {
 
 
         running = true;
-        serverNodeOut.writeObject(new NetworkMessage.SignOnRequest());
+        int peerPort = P2P ? peers.start(PEER_PORT) : 0;
+        serverNodeOut.writeObject(new NetworkMessage.SignOnRequest(peerPort));
 
         NetworkMessage signOnResponse = (NetworkMessage) serverNodeIn.readObject();
         if( signOnResponse == null ){
@@ -103,9 +145,24 @@ public class WorkerNode extends Node {
                     logger.D(TAG, "Received event list for job " + eventListMessage.getEventList().getJobId() + " from server node");
                     handleEventList(eventListMessage);
                 }
+                case NULL_MESSAGE -> {
+                    NetworkMessage.NullMessage nullMessage = (NetworkMessage.NullMessage) message;
+                    bufferManager.givePromises(nullMessage.getPromises());
+                }
+                case GVT_REQUEST -> {
+                    NetworkMessage.GvtRequest request = (NetworkMessage.GvtRequest) message;
+                    NetworkMessage.GvtReport report = bufferManager.gvtReport(request.getJobId(), request.getRound());
+                    if (report != null) {
+                        serverNodeOut.writeControl(report);
+                    }
+                }
+                case GVT -> {
+                    NetworkMessage.GvtMessage gvtMessage = (NetworkMessage.GvtMessage) message;
+                    bufferManager.giveGvt(gvtMessage.getJobId(), gvtMessage.getGvt());
+                }
                 case PING_REQUEST -> {
                     logger.D(TAG, "Received ping request from server node");
-                    serverNodeOut.writeObject(new NetworkMessage.PingResponse());
+                    serverNodeOut.writeControl(new NetworkMessage.PingResponse());
                 }
                 case KILL_JOB -> {
                     NetworkMessage.KillJobMessage killJobMessage = (NetworkMessage.KillJobMessage) message;
@@ -120,26 +177,120 @@ public class WorkerNode extends Node {
         }
     }
 
-    private void sendEventList(NetworkMessage.EventListMessage eventListMessage){
-        logger.D(TAG, "Sending event list for job " + eventListMessage.getEventList().getJobId() + " to server node with size " + eventListMessage.getEventList().getEvents().size());
-        serverNodeOut.writeObject(eventListMessage);
+    private void sendEventList(NetworkMessage.EventListMessage<Object> eventListMessage){
+        String jobId = eventListMessage.getEventList().getJobId();
+        JobRoutes job = routes.get(jobId);
+        if (job == null) {
+            logger.D(TAG, "Sending event list for job " + jobId + " to server node with size " + eventListMessage.getEventList().getEvents().size());
+            serverNodeOut.writeObject(eventListMessage);
+            return;
+        }
+        int dropped = job.routes.forward(eventListMessage, job.self, job.managers, this::sendToPeer);
+        if (dropped > 0) {
+            logger.E(TAG, "Dropped " + dropped + " events of job " + jobId + " that no worker owns");
+        }
+    }
+
+    private void sendNullMessage(NetworkMessage.NullMessage nullMessage){
+        JobRoutes job = routes.get(nullMessage.getPromises().getJobId());
+        if (job == null) {
+            serverNodeOut.writeObject(nullMessage);
+            return;
+        }
+        for (String managerId : job.managers) {
+            if (!managerId.equals(job.self)) {
+                sendToPeer(managerId, nullMessage);
+            }
+        }
+    }
+
+    /**
+     * Sends message to a peer directly, or through the server if the peer cannot be reached. The
+     * server forwards it to the owners of its events, for a null message to every other worker.
+     * Either way it stays behind what was sent to the peer before, see {@link PeerLinks}.
+     */
+    private void sendToPeer(String peerId, NetworkMessage message) {
+        peers.send(peerId, message);
+    }
+
+    /**
+     * Takes an event list or null message from a peer, holding it back until its job starts. A
+     * job done message only ends the job's handle on the connection, which the decoder did.
+     */
+    private void handlePeerMessage(NetworkMessage message) {
+        if (message.getType() == NetworkMessage.MessageType.JOB_DONE) {
+            return;
+        }
+        String jobId = switch (message.getType()) {
+            case EVENT_LIST -> ((NetworkMessage.EventListMessage<?>) message).getEventList().getJobId();
+            case NULL_MESSAGE -> ((NetworkMessage.NullMessage) message).getPromises().getJobId();
+            default -> null;
+        };
+        if (jobId == null) {
+            logger.W(TAG, "Received unexpected message type '" + message.getType() + "' from a peer");
+            return;
+        }
+        synchronized (jobs) {
+            Boolean running = jobs.get(jobId);
+            if (running == null) {
+                early.computeIfAbsent(jobId, k -> new ArrayList<>()).add(message);
+                return;
+            }
+            if (running) {
+                give(message);
+            }
+        }
+    }
+
+    private void give(NetworkMessage message) {
+        if (message instanceof NetworkMessage.EventListMessage<?> eventListMessage) {
+            handleEventList(eventListMessage);
+        } else if (message instanceof NetworkMessage.NullMessage nullMessage) {
+            bufferManager.givePromises(nullMessage.getPromises());
+        }
     }
 
-    private static int SIMULATOR_COUNT = 0;
-    private void handleNewJob(NetworkMessage.NewJobMessage newJobMessage){
+    private void handleNewJob(NetworkMessage.NewJobMessage<Object> newJobMessage){
         logger.I(TAG, "Received new job with ID: " + newJobMessage.getJobId());
         SimBuffer<Object> buffer = bufferManager.newJob(newJobMessage.getJobId(), newJobMessage.getNetList());
+        MessageCodec.setCompressed(newJobMessage.getJobId(), newJobMessage.isCompressed());
+        if (P2P && newJobMessage.getManagerId() != null) {
+            peers.addPeers(newJobMessage.getPeers());
+            routes.put(newJobMessage.getJobId(), new JobRoutes(newJobMessage.getManagerId(),
+                    new Routes(newJobMessage.getOwners()), List.copyOf(newJobMessage.getPeers().keySet())));
+        }
+        synchronized (jobs) {
+            jobs.put(newJobMessage.getJobId(), true);
+            List<NetworkMessage> held = early.remove(newJobMessage.getJobId());
+            if (held != null) {
+                held.forEach(this::give);
+            }
+        }
 
-        Thread simulatorThread = new Thread(() -> {
-            Simulator<Object> simulator = new SimulatorMultithread<Object>(++SIMULATOR_COUNT);
-//            Simulator<Object> simulator = new SimulatorSinglethread<>(++SIMULATOR_COUNT);
+        Runnable job = () -> {
+            int simulatorId = simulatorCount.incrementAndGet();
+            Simulator<Object> simulator = switch (SIMULATOR) {
+                case "single" -> new SimulatorSinglethread<Object>(simulatorId);
+                case "optimistic" -> new SimulatorOptimistic<Object>(simulatorId);
+                default -> new SimulatorMultithread<Object>(simulatorId);
+            };
             simulator.setQueue(buffer);
+            bufferManager.attach(newJobMessage.getJobId(), simulator);
             simulator.setNetlist(newJobMessage.getNetList());
             logger.I(TAG, "Starting simulation");
             simulator.setEndTime(newJobMessage.getEndTime());
             simulator.init();
             simulator.simulate();
             logger.I(TAG, "Simulation finished");
+            logger.I(TAG, bufferManager.report(newJobMessage.getJobId()));
+            logger.I(TAG, "Output to server node: " + serverNodeOut.report());
+            logger.I(TAG, "Output to peers: " + peers.report());
+            if (newJobMessage.isCompressed()) {
+                /// The job sends nothing more, fields still queued go uncompressed
+                MessageCodec.setCompressed(newJobMessage.getJobId(), false);
+            }
+            /// The server drops the job once every worker finished it, see handleKillJob
+            serverNodeOut.writeObject(new NetworkMessage.JobDoneMessage(newJobMessage.getJobId()));
             for (SimComponent<Object> c : simulator.getNetlist().getComponents().values()) {
                 String[] context = c.getState();
                 String contextString = "";
@@ -149,13 +300,15 @@ public class WorkerNode extends Node {
                 contextString = contextString.trim();
                 System.out.println(contextString);
             }
-        });
+        };
+        String name = "job-" + newJobMessage.getJobId();
+        Thread simulatorThread = VIRTUAL ? Thread.ofVirtual().name(name).unstarted(job) : new Thread(job, name);
         simulators.put(newJobMessage.getJobId(), simulatorThread);
         simulatorThread.start();
     }
 
     private void handleEventList(NetworkMessage.EventListMessage eventListMessage) {
-        bufferManager.giveEvents(eventListMessage.getEventList().getJobId(), eventListMessage.getEventList().getEvents());
+        bufferManager.giveEventList(eventListMessage.getEventList());
     }
 
     private void handleKillJob(NetworkMessage.KillJobMessage killJobMessage){
@@ -164,6 +317,21 @@ public class WorkerNode extends Node {
         if(simulatorThread != null){
             simulatorThread.interrupt();
             simulators.remove(killJobMessage.getJobId());
+            JobRoutes job = routes.remove(killJobMessage.getJobId());
+            if (job != null) {
+                /// Lets the peers' decoders drop the job's handle, as the server's did with the kill
+                for (String managerId : job.managers) {
+                    if (!managerId.equals(job.self)) {
+                        peers.release(managerId, new NetworkMessage.JobDoneMessage(killJobMessage.getJobId()));
+                    }
+                }
+            }
+            for (String line : MessageCodec.endJob(killJobMessage.getJobId())) {
+                logger.I(TAG, line);
+            }
+            synchronized (jobs) {
+                jobs.put(killJobMessage.getJobId(), false);
+            }
             bufferManager.removeJob(killJobMessage.getJobId());
         }else{
             logger.W(TAG, "Received kill job request for job " + killJobMessage.getJobId() + " but no such job is running");
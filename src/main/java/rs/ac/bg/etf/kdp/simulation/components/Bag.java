@@ -4,16 +4,41 @@ import java.util.*;
 
 import rs.ac.bg.etf.sleep.simulation.*;
 
+/**
+ * Hands out the bodies of every iteration to the workers in chunks and takes
+ * the gathered snapshot back from the Collector.
+ * <p>
+ * The whole iteration goes out at once, on the snapshot that starts it, as
+ * the rounds of a factoring schedule, see {@link #createTasksForWorker()}.
+ * Results go to the Collector and reach the Bag only gathered, a logical
+ * time interval later, and chunks of an iteration cannot be sent at a later
+ * time than the iteration's own, so the Bag cannot hand a worker its next
+ * chunk when its previous one returns, and waiting for the wall clock
+ * between rounds would only delay them. The rounds are weighted by what
+ * each worker achieved in the previous iteration instead.
+ */
 public class Bag extends G {
+	/** Largest chunk handed to a worker. */
 	public static int NUM = 1000;
+	/** Smallest chunk handed to a worker, unless fewer bodies are left. */
+	public static int MIN_CHUNK = 64;
 	int n;
 	int m;
 
-	List<Body> bodies;
-	List<List<Body>> results;
+	Bodies bodies;
+	LinkedList<Bodies> results;
 	int cnt;
-	int next;
-	long start;
+	long snapshot;
+
+	/**
+	 * Bodies per nanosecond of completion latency each worker port achieved
+	 * in the last iteration.
+	 */
+	double[] rates;
+	/** Ports ordered from the fastest worker to the slowest. */
+	Integer[] order;
+	ArrayList<Integer> chunks;
+	double imbalance;
 
 	public Bag() {
 		name = "";
@@ -23,70 +48,204 @@ public class Bag extends G {
 		lTime = 0;
 		dt = 0;
 		iteration = 0;
-		bodies = new LinkedList<Body>();
-		results = new LinkedList<List<Body>>();
+		bodies = new Bodies();
+		results = new LinkedList<Bodies>();
 		cnt = 0;
-		next = 1;
-		waitPeriod = 10;
-		start = System.currentTimeMillis();
+		snapshot = Snapshots.newId();
+		rates = new double[0];
+		order = new Integer[0];
+		chunks = new ArrayList<Integer>();
+		imbalance = 1;
 	}
 
 	@Override
-	public List<Event<Field>> execute(Event<Field> msg) {
-		List<Event<Field>> result = new LinkedList<Event<Field>>();
+	public void execute(Event<Field> msg, List<Event<Field>> result) {
 		if (msg.getSrcID() != id) {
-			bodies = msg.getData().coordinates;
+			Field field = msg.getData();
+			bodies = field.coordinates;
 			lTime += dt;
 			iteration++;
 			results.add(bodies);
-			waitPeriod = (waitPeriod + (System.currentTimeMillis() - start) / (n + 1)) / 2;
-			start = System.currentTimeMillis();
 			cnt = 0;
-			next = 1;
+			measure(field);
 		}
-		result.addAll(createTasksForWorker());
-		if (result.size() == n) {
-			result.add(createForItself());
+		while (cnt < bodies.size()) {
+			result.addAll(createTasksForWorker());
 		}
-		return result;
 	}
 
+	/**
+	 * Updates the per worker rates from the latencies the Collector gathered
+	 * for the previous iteration, the wall clock time from handing out a chunk
+	 * to its result reaching the Collector. Unlike compute time it includes
+	 * queueing on the worker's node and the network both ways. Ports without
+	 * a measurement get the mean rate, so every worker starts out equal.
+	 * <p>
+	 * The Bag and the Collector may run on different nodes, the skew between
+	 * their clocks then shifts the latency of every chunk alike.
+	 */
+	void measure(Field field) {
+		if (rates.length != n + 1) {
+			rates = new double[n + 1];
+			order = new Integer[n];
+			for (int port = 1; port <= n; port++) {
+				order[port - 1] = port;
+			}
+		}
+		double sum = 0;
+		double max = 0;
+		int known = 0;
+		int measured = 0;
+		for (int port = 1; port <= n; port++) {
+			rates[port] = 0;
+			if (field.latency != null && port < field.latency.length && field.latency[port] > 0) {
+				rates[port] = (double) field.rows[port] / field.latency[port];
+				measured++;
+			}
+			if (field.busy != null && port < field.busy.length && field.busy[port] > 0) {
+				sum += field.busy[port];
+				max = Math.max(max, field.busy[port]);
+				known++;
+			}
+		}
+		imbalance = known == 0 ? 1 : max / (sum / known);
+		double mean = 0;
+		for (int port = 1; port <= n; port++) {
+			mean += rates[port];
+		}
+		mean = measured == 0 ? 1 : mean / measured;
+		for (int port = 1; port <= n; port++) {
+			if (rates[port] == 0) {
+				rates[port] = mean;
+			}
+		}
+		Arrays.sort(order, (a, b) -> Double.compare(rates[b], rates[a]));
+		chunks = new ArrayList<Integer>();
+	}
+
+	/**
+	 * Hands out the next round of chunks using weighted factoring: a round
+	 * covers half of the bodies still left, split among the workers in
+	 * proportion to their measured rates, and chunks shrink as the iteration
+	 * drains. Every round serves the workers in the same order, fastest
+	 * first, so a round that runs out of bodies leaves out the slowest ones.
+	 * Which worker gets the tail is decided by the previous iteration's
+	 * rates, not by who is idle now.
+	 */
 	public List<Event<Field>> createTasksForWorker() {
 		List<Event<Field>> result = new LinkedList<Event<Field>>();
-		int i = 0;
-		while (cnt < bodies.size() && i < NUM * n) {
-			List<Integer> indexes = new LinkedList<Integer>();
-			long num = Math.min(NUM, bodies.size() - cnt);
-			i += num;
-			if (num != 0) {
-				Field resultField = new Field();
-				for (int j = 0; j < num; j++) {
-					indexes.add(cnt++);
-				}
-				resultField.coordinates = bodies;
-				resultField.indexes = indexes;
-				resultField.interval = dt;
-				resultField.iteration = iteration;
-				resultField.time = lTime;
-
-				Event<Field> resultMsg = new Event<Field>();
-				resultMsg.setData(resultField);
-				resultMsg.setId(id);
-				resultMsg.setSrcID(id);
-				resultMsg.setSrcPort(next);
-				resultMsg.setDstID(next + 2);
-				resultMsg.setDstPort(0);
-				resultMsg.setlTime(lTime);
-				resultMsg.setlTimeCreated(lTime);
-				result.add(resultMsg);
-				next = (next % n) + 1;
-			} else {
+		if (order.length != n) {
+			measure(new Field());
+		}
+		int batch = (bodies.size() - cnt + 1) / 2;
+		double total = 0;
+		for (int port = 1; port <= n; port++) {
+			total += rates[port];
+		}
+		for (int port : order) {
+			if (cnt >= bodies.size()) {
 				break;
 			}
+			int num = (int) Math.ceil(batch * rates[port] / total);
+			num = Math.max(MIN_CHUNK, Math.min(NUM, num));
+			num = Math.min(num, bodies.size() - cnt);
+			result.add(createTask(port, num));
+			chunks.add(num);
+		}
+		return result;
+	}
+
+	private Event<Field> createTask(int port, int num) {
+		Field resultField = new Field();
+		resultField.coordinates = bodies;
+		resultField.snapshot = snapshot;
+		resultField.from = cnt;
+		cnt += num;
+		resultField.to = cnt;
+		resultField.interval = dt;
+		resultField.iteration = iteration;
+		resultField.time = lTime;
+		resultField.dispatched = Field.wallClock();
+
+		Event<Field> resultMsg = EventPool.obtain();
+		resultMsg.setData(resultField);
+		resultMsg.setId(id);
+		resultMsg.setSrcID(id);
+		resultMsg.setSrcPort(port);
+		resultMsg.setDstID(port + 2);
+		resultMsg.setDstPort(0);
+		resultMsg.setlTime(lTime);
+		resultMsg.setlTimeCreated(lTime);
+		return resultMsg;
+	}
+
+	/**
+	 * Chunk sizes handed out so far in the current iteration.
+	 */
+	public List<Integer> getChunkSizes() {
+		return Collections.unmodifiableList(chunks);
+	}
+
+	/**
+	 * Busiest worker's compute time over the mean, for the last completed
+	 * iteration. 1 means perfectly balanced.
+	 */
+	public double getImbalance() {
+		return imbalance;
+	}
+
+	/**
+	 * Measured bodies per second, indexed by worker port (1..n).
+	 */
+	public double[] getRates() {
+		double[] result = new double[rates.length];
+		for (int port = 0; port < rates.length; port++) {
+			result[port] = rates[port] * 1e9;
 		}
 		return result;
 	}
 
+	static class BagState extends State {
+		Bodies bodies;
+		int results;
+		int cnt;
+		double[] rates;
+		Integer[] order;
+		List<Integer> chunks;
+		double imbalance;
+	}
+
+	/**
+	 * bodies is replaced rather than written to, so the reference is enough.
+	 */
+	@Override
+	public Object snapshot() {
+		BagState state = save(new BagState());
+		state.bodies = bodies;
+		state.results = results.size();
+		state.cnt = cnt;
+		state.rates = rates.clone();
+		state.order = order.clone();
+		state.chunks = new ArrayList<Integer>(chunks);
+		state.imbalance = imbalance;
+		return state;
+	}
+
+	@Override
+	public void restore(Object state) {
+		BagState s = (BagState) state;
+		load(s);
+		bodies = s.bodies;
+		while (results.size() > s.results) {
+			results.remove(results.size() - 1);
+		}
+		cnt = s.cnt;
+		rates = s.rates.clone();
+		order = s.order.clone();
+		chunks = new ArrayList<Integer>(s.chunks);
+		imbalance = s.imbalance;
+	}
+
 	@Override
 	public String[] getState() {
 		String[] result = new String[8 + bodies.size() * 7];
@@ -99,15 +258,7 @@ public class Bag extends G {
 		result[i++] = "" + m;
 		result[i++] = "" + lTime;
 		result[i++] = "" + dt;
-		for (Body b : bodies) {
-			result[i++] = "" + b.m;
-			result[i++] = "" + b.x;
-			result[i++] = "" + b.y;
-			result[i++] = "" + b.z;
-			result[i++] = "" + b.vx;
-			result[i++] = "" + b.vy;
-			result[i++] = "" + b.vz;
-		}
+		bodies.format(result, i);
 		return result;
 	}
 
@@ -119,18 +270,7 @@ public class Bag extends G {
 		m = Integer.parseInt(args[5]);
 		lTime = Long.parseLong(args[6]);
 		dt = Long.parseLong(args[7]);
-		for (int j = 0, i = 8; j < m; j++) {
-			Body b = new Body();
-			b.id = Integer.parseInt(args[i++]);
-			b.m = Double.parseDouble(args[i++]);
-			b.x = Double.parseDouble(args[i++]);
-			b.y = Double.parseDouble(args[i++]);
-			b.z = Double.parseDouble(args[i++]);
-			b.vx = Double.parseDouble(args[i++]);
-			b.vy = Double.parseDouble(args[i++]);
-			b.vz = Double.parseDouble(args[i++]);
-			bodies.add(b);
-		}
+		bodies = Bodies.parse(args, 8, m);
 	}
 
 	@Override
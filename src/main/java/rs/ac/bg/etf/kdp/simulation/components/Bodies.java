@@ -0,0 +1,147 @@
+package rs.ac.bg.etf.kdp.simulation.components;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Packed storage for a set of bodies, one primitive column per attribute.
+ * Row i describes a single body, so a snapshot of n bodies costs eight
+ * arrays instead of n separate objects.
+ */
+public class Bodies implements Serializable {
+	private static final long serialVersionUID = 1L;
+	int size;
+	int[] id;
+	double[] m;
+	double[] x, y, z;
+	double[] vx, vy, vz;
+
+	public Bodies() {
+		this(16);
+	}
+
+	public Bodies(int capacity) {
+		size = 0;
+		id = new int[capacity];
+		m = new double[capacity];
+		x = new double[capacity];
+		y = new double[capacity];
+		z = new double[capacity];
+		vx = new double[capacity];
+		vy = new double[capacity];
+		vz = new double[capacity];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void setSize(int size) {
+		ensureCapacity(size);
+		this.size = size;
+	}
+
+	public void ensureCapacity(int capacity) {
+		if (capacity <= id.length) {
+			return;
+		}
+		int n = Math.max(capacity, id.length * 2);
+		id = Arrays.copyOf(id, n);
+		m = Arrays.copyOf(m, n);
+		x = Arrays.copyOf(x, n);
+		y = Arrays.copyOf(y, n);
+		z = Arrays.copyOf(z, n);
+		vx = Arrays.copyOf(vx, n);
+		vy = Arrays.copyOf(vy, n);
+		vz = Arrays.copyOf(vz, n);
+	}
+
+	public void add(Body b) {
+		ensureCapacity(size + 1);
+		int i = size++;
+		id[i] = b.id;
+		m[i] = b.m;
+		x[i] = b.x;
+		y[i] = b.y;
+		z[i] = b.z;
+		vx[i] = b.vx;
+		vy[i] = b.vy;
+		vz[i] = b.vz;
+	}
+
+	public Body get(int i) {
+		Body b = new Body();
+		b.id = id[i];
+		b.m = m[i];
+		b.x = x[i];
+		b.y = y[i];
+		b.z = z[i];
+		b.vx = vx[i];
+		b.vy = vy[i];
+		b.vz = vz[i];
+		return b;
+	}
+
+	/**
+	 * Copies rows [from, from + length) of this set into dst starting at row to.
+	 * The destination must already be large enough.
+	 */
+	public void copyTo(int from, Bodies dst, int to, int length) {
+		System.arraycopy(id, from, dst.id, to, length);
+		System.arraycopy(m, from, dst.m, to, length);
+		System.arraycopy(x, from, dst.x, to, length);
+		System.arraycopy(y, from, dst.y, to, length);
+		System.arraycopy(z, from, dst.z, to, length);
+		System.arraycopy(vx, from, dst.vx, to, length);
+		System.arraycopy(vy, from, dst.vy, to, length);
+		System.arraycopy(vz, from, dst.vz, to, length);
+	}
+
+	public Bodies copy() {
+		Bodies result = new Bodies(size);
+		copyTo(0, result, 0, size);
+		result.size = size;
+		return result;
+	}
+
+	/**
+	 * Parses count bodies in the komponente file layout
+	 * (id m x y z vx vy vz) starting at args[offset].
+	 */
+	public static Bodies parse(String[] args, int offset, int count) {
+		Bodies result = new Bodies(count);
+		for (int j = 0, i = offset; j < count; j++) {
+			result.id[j] = Integer.parseInt(args[i++]);
+			result.m[j] = Double.parseDouble(args[i++]);
+			result.x[j] = Double.parseDouble(args[i++]);
+			result.y[j] = Double.parseDouble(args[i++]);
+			result.z[j] = Double.parseDouble(args[i++]);
+			result.vx[j] = Double.parseDouble(args[i++]);
+			result.vy[j] = Double.parseDouble(args[i++]);
+			result.vz[j] = Double.parseDouble(args[i++]);
+		}
+		result.size = count;
+		return result;
+	}
+
+	/**
+	 * Writes the bodies into result starting at offset, in the layout produced
+	 * by Bag.getState (m x y z vx vy vz).
+	 *
+	 * @return the index following the last written element
+	 */
+	public int format(String[] result, int offset) {
+		int i = offset;
+		for (int j = 0; j < size; j++) {
+			result[i++] = "" + m[j];
+			result[i++] = "" + x[j];
+			result[i++] = "" + y[j];
+			result[i++] = "" + z[j];
+			result[i++] = "" + vx[j];
+			result[i++] = "" + vy[j];
+			result[i++] = "" + vz[j];
+		}
+		return i;
+	}
+
+}
@@ -0,0 +1,330 @@
+package rs.ac.bg.etf.kdp.simulation.components;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Lossless compression of the bodies a Field carries, in the style of the
+ * Gorilla time series encoding. Every double is XORed with the same body's
+ * value the last time the same bodies crossed the connection, which is the
+ * previous iteration, so a mass that did not change costs one bit and a
+ * coordinate that moved a little only the bits that differ. The first time
+ * a set of bodies is sent each value is XORed with the one in the row
+ * before it instead.
+ * <p>
+ * Both ends keep a copy of the last bodies per connection and per key, the
+ * snapshot id or the rows a result covers, and update it with every set
+ * they write or read, so they always agree on the reference. The keys are
+ * bound to the job whose fields used them and released together, at the
+ * same point of the connection on both ends.
+ */
+final class BodyCompression {
+	/** Values XORed with the previous row, there is no reference. */
+	private static final byte ROWS = 1;
+	/** Values XORed with the reference, the ids are those of the reference. */
+	private static final byte SAME_IDS = 2;
+	/** Values XORed with the reference, the ids follow. */
+	private static final byte NEW_IDS = 3;
+
+	private static final Map<Object, Map<Long, Bodies>> references = new WeakHashMap<Object, Map<Long, Bodies>>();
+	/** Keys per connection and job, guarded by references. */
+	private static final Map<Object, Map<String, Set<Long>>> jobs = new WeakHashMap<Object, Map<String, Set<Long>>>();
+
+	private static final AtomicLong compressed = new AtomicLong();
+	private static final AtomicLong raw = new AtomicLong();
+	private static final AtomicLong written = new AtomicLong();
+	private static final AtomicLong encodeNanos = new AtomicLong();
+	private static final AtomicLong decodeNanos = new AtomicLong();
+
+	private BodyCompression() {
+	}
+
+	static void write(DataOutput out, Bodies bodies, Object connection, long key) throws IOException {
+		if (bodies == null) {
+			out.writeInt(-1);
+			return;
+		}
+		long start = System.nanoTime();
+		int n = bodies.size;
+		Bodies reference = reference(connection, key);
+		if (reference != null && reference.size != n) {
+			reference = null;
+		}
+		byte mode = reference == null ? ROWS
+				: Arrays.equals(bodies.id, 0, n, reference.id, 0, n) ? SAME_IDS : NEW_IDS;
+		BitOutput bits = new BitOutput(n * 8);
+		double[][] values = columns(bodies);
+		double[][] against = reference == null ? new double[values.length][] : columns(reference);
+		for (int c = 0; c < values.length; c++) {
+			encode(bits, values[c], against[c], n);
+		}
+		byte[] bytes = bits.finish();
+		out.writeInt(n);
+		out.writeByte(mode);
+		if (mode != SAME_IDS) {
+			for (int i = 0; i < n; i++) {
+				out.writeInt(bodies.id[i]);
+			}
+		}
+		out.writeInt(bits.length());
+		out.write(bytes, 0, bits.length());
+		remember(connection, key, bodies);
+		compressed.addAndGet(9 + (mode != SAME_IDS ? 4L * n : 0) + bits.length());
+		raw.addAndGet(4 + 60L * n);
+		written.incrementAndGet();
+		encodeNanos.addAndGet(System.nanoTime() - start);
+	}
+
+	static Bodies read(DataInput in, Object connection, long key) throws IOException {
+		int n = in.readInt();
+		if (n < 0) {
+			return null;
+		}
+		long start = System.nanoTime();
+		byte mode = in.readByte();
+		Bodies reference = null;
+		if (mode != ROWS) {
+			reference = reference(connection, key);
+			if (reference == null || reference.size != n) {
+				throw new InvalidObjectException("Bodies " + key + " were compressed against a set never received");
+			}
+		}
+		Bodies bodies = new Bodies(n);
+		bodies.setSize(n);
+		if (mode == SAME_IDS) {
+			System.arraycopy(reference.id, 0, bodies.id, 0, n);
+		} else {
+			for (int i = 0; i < n; i++) {
+				bodies.id[i] = in.readInt();
+			}
+		}
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		BitInput bits = new BitInput(bytes);
+		double[][] values = columns(bodies);
+		double[][] against = reference == null ? new double[values.length][] : columns(reference);
+		for (int c = 0; c < values.length; c++) {
+			decode(bits, values[c], against[c], n);
+		}
+		remember(connection, key, bodies);
+		decodeNanos.addAndGet(System.nanoTime() - start);
+		return bodies;
+	}
+
+	private static double[][] columns(Bodies bodies) {
+		return new double[][] { bodies.m, bodies.x, bodies.y, bodies.z, bodies.vx, bodies.vy, bodies.vz };
+	}
+
+	/**
+	 * A value equal to its reference is a single 0 bit. Otherwise 1 is
+	 * followed by 0 and the meaningful bits when they fit in the window of
+	 * leading and trailing zeros the previous value opened, or by 1, five bits
+	 * of leading zeros, six of length and the meaningful bits. A null
+	 * reference XORs every value with the one before it.
+	 */
+	private static void encode(BitOutput bits, double[] values, double[] reference, int n) {
+		int leading = -1;
+		int trailing = 0;
+		long previous = 0;
+		for (int i = 0; i < n; i++) {
+			long value = Double.doubleToRawLongBits(values[i]);
+			long xor = value ^ (reference == null ? previous : Double.doubleToRawLongBits(reference[i]));
+			previous = value;
+			if (xor == 0) {
+				bits.write(0, 1);
+				continue;
+			}
+			int lead = Math.min(Long.numberOfLeadingZeros(xor), 31);
+			int trail = Long.numberOfTrailingZeros(xor);
+			if (leading >= 0 && lead >= leading && trail >= trailing) {
+				bits.write(2, 2);
+				bits.write(xor >>> trailing, 64 - leading - trailing);
+			} else {
+				int length = 64 - lead - trail;
+				bits.write(3, 2);
+				bits.write(lead, 5);
+				bits.write(length - 1, 6);
+				bits.write(xor >>> trail, length);
+				leading = lead;
+				trailing = trail;
+			}
+		}
+	}
+
+	private static void decode(BitInput bits, double[] values, double[] reference, int n) throws IOException {
+		int leading = -1;
+		int trailing = 0;
+		long previous = 0;
+		for (int i = 0; i < n; i++) {
+			long xor = 0;
+			if (bits.read(1) != 0) {
+				if (bits.read(1) == 0) {
+					xor = bits.read(64 - leading - trailing) << trailing;
+				} else {
+					leading = (int) bits.read(5);
+					int length = (int) bits.read(6) + 1;
+					trailing = 64 - leading - length;
+					xor = bits.read(length) << trailing;
+				}
+			}
+			long value = xor ^ (reference == null ? previous : Double.doubleToRawLongBits(reference[i]));
+			values[i] = Double.longBitsToDouble(value);
+			previous = value;
+		}
+	}
+
+	private static Bodies reference(Object connection, long key) {
+		synchronized (references) {
+			Map<Long, Bodies> sets = references.get(connection);
+			return sets == null ? null : sets.get(key);
+		}
+	}
+
+	/**
+	 * Keeps a copy, the sender may reuse its bodies for the next iteration.
+	 */
+	private static void remember(Object connection, long key, Bodies bodies) {
+		int n = bodies.size;
+		Bodies copy = new Bodies(n);
+		copy.setSize(n);
+		System.arraycopy(bodies.id, 0, copy.id, 0, n);
+		System.arraycopy(bodies.m, 0, copy.m, 0, n);
+		System.arraycopy(bodies.x, 0, copy.x, 0, n);
+		System.arraycopy(bodies.y, 0, copy.y, 0, n);
+		System.arraycopy(bodies.z, 0, copy.z, 0, n);
+		System.arraycopy(bodies.vx, 0, copy.vx, 0, n);
+		System.arraycopy(bodies.vy, 0, copy.vy, 0, n);
+		System.arraycopy(bodies.vz, 0, copy.vz, 0, n);
+		synchronized (references) {
+			Map<Long, Bodies> sets = references.get(connection);
+			if (sets == null) {
+				sets = new HashMap<Long, Bodies>();
+				references.put(connection, sets);
+			}
+			sets.put(key, copy);
+		}
+	}
+
+	static void bind(Object connection, String jobId, long key) {
+		synchronized (references) {
+			jobs.computeIfAbsent(connection, k -> new HashMap<String, Set<Long>>())
+					.computeIfAbsent(jobId, k -> new HashSet<Long>()).add(key);
+		}
+	}
+
+	/**
+	 * Drops the references of the keys bound to the job on connection, the
+	 * next bodies under them are sent against no reference. A key another
+	 * job shares goes too, which both ends do alike.
+	 */
+	static void release(Object connection, String jobId) {
+		synchronized (references) {
+			Map<String, Set<Long>> bound = jobs.get(connection);
+			Set<Long> keys = bound == null ? null : bound.remove(jobId);
+			Map<Long, Bodies> sets = references.get(connection);
+			if (keys != null && sets != null) {
+				sets.keySet().removeAll(keys);
+			}
+		}
+	}
+
+	/**
+	 * Drops the reference, the next bodies under key are sent against no
+	 * reference.
+	 */
+	static void forget(Object connection, long key) {
+		synchronized (references) {
+			Map<Long, Bodies> sets = references.get(connection);
+			if (sets != null) {
+				sets.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * @return the bytes compressed bodies took against what raw columns
+	 *         would have, and the time spent on both ends of this node
+	 */
+	static String report() {
+		long r = raw.get();
+		long c = compressed.get();
+		return String.format("%d sets, %d bytes for %d raw (ratio %.3f), encoding %.1f ms, decoding %.1f ms",
+				written.get(), c, r, r == 0 ? 1.0 : (double) c / r, encodeNanos.get() / 1e6, decodeNanos.get() / 1e6);
+	}
+
+	private static final class BitOutput {
+		private byte[] bytes;
+		private int length;
+		private long pending;
+		private int count;
+
+		BitOutput(int capacity) {
+			bytes = new byte[Math.max(capacity, 16)];
+		}
+
+		/**
+		 * Appends the low n bits of value, most significant first.
+		 */
+		void write(long value, int n) {
+			if (n > 32) {
+				write(value >>> 32, n - 32);
+				write(value, 32);
+				return;
+			}
+			pending = (pending << n) | (value & ((1L << n) - 1));
+			count += n;
+			while (count >= 8) {
+				count -= 8;
+				put((byte) (pending >>> count));
+			}
+		}
+
+		private void put(byte b) {
+			if (length == bytes.length) {
+				bytes = Arrays.copyOf(bytes, length * 2);
+			}
+			bytes[length++] = b;
+		}
+
+		byte[] finish() {
+			if (count > 0) {
+				put((byte) (pending << (8 - count)));
+				count = 0;
+			}
+			return bytes;
+		}
+
+		int length() {
+			return length;
+		}
+	}
+
+	private static final class BitInput {
+		private final byte[] bytes;
+		private int position;
+		private long pending;
+		private int count;
+
+		BitInput(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		long read(int n) throws EOFException {
+			if (n > 32) {
+				long high = read(n - 32);
+				return (high << 32) | read(32);
+			}
+			while (count < n) {
+				if (position == bytes.length) {
+					throw new EOFException("Compressed bodies end early");
+				}
+				pending = (pending << 8) | (bytes[position++] & 0xff);
+				count += 8;
+			}
+			count -= n;
+			return (pending >>> count) & ((1L << n) - 1);
+		}
+	}
+
+}
@@ -1,13 +1,19 @@
 package rs.ac.bg.etf.kdp.simulation.components;
 
-import java.util.LinkedList;
 import java.util.List;
 
 import rs.ac.bg.etf.sleep.simulation.*;
 
 public class Collector extends G {
 	int cnt;
-	List<Field> filds;
+	/**
+	 * Next snapshot, every partial result is copied to its own rows
+	 * [from, to) as it arrives.
+	 */
+	Bodies bodies;
+	int[] rows;
+	long[] busy;
+	long[] latency;
 	boolean start;
 
 	int n;
@@ -18,15 +24,14 @@ public class Collector extends G {
 		name = "";
 		lTime = 0;
 		cnt = 0;
-		filds = new LinkedList<Field>();
+		bodies = null;
 		start = true;
 		n = 0;
 		m = 0;
 	}
 
 	@Override
-	public List<Event<Field>> execute(Event<Field> msg) {
-		List<Event<Field>> result = new LinkedList<Event<Field>>();
+	public void execute(Event<Field> msg, List<Event<Field>> result) {
 		if (msg.getSrcID() != id) {
 			if (start) {
 				lTime = msg.getlTime();
@@ -34,20 +39,34 @@ public class Collector extends G {
 			}
 			Field field = msg.getData();
 			if (field != null) {
-				cnt = cnt + field.indexes.size();
-				filds.add(field);
+				if (bodies == null) {
+					bodies = new Bodies(m);
+					bodies.setSize(m);
+					rows = new int[n + 1];
+					busy = new long[n + 1];
+					latency = new long[n + 1];
+				}
+				field.coordinates.copyTo(0, bodies, field.from, field.size());
+				int port = msg.getDstPort();
+				if (port > 0 && port <= n) {
+					rows[port] += field.size();
+					busy[port] += field.elapsed;
+					if (field.dispatched != 0) {
+						latency[port] += Field.wallClock() - field.dispatched;
+					}
+				}
+				cnt = cnt + field.size();
 				if (cnt == m) {
 					Field resultField = new Field();
-					for (Field f : filds) {
-						for (Body b : f.coordinates) {
-							resultField.addBody(b);
-							resultField.addIndex(b.id);
-						}
-					}
+					resultField.coordinates = bodies;
+					resultField.to = m;
+					resultField.rows = rows;
+					resultField.busy = busy;
+					resultField.latency = latency;
 					resultField.interval = field.interval;
 					resultField.iteration = field.iteration + 1;
 					resultField.time = lTime + field.interval;
-					Event<Field> resultMsg = new Event<Field>();
+					Event<Field> resultMsg = EventPool.obtain();
 					resultMsg.setData(resultField);
 					resultMsg.setId(msg.getId() + 1);
 					resultMsg.setSrcID(id);
@@ -59,14 +78,55 @@ public class Collector extends G {
 					result.add(resultMsg);
 					start = true;
 					cnt = 0;
-					filds = new LinkedList<Field>();
+					bodies = null;
 				}
 			}
 		}
 		if (result.size() == 0) {
 			// result.add(createForItself());
 		}
-		return result;
+	}
+
+	static class CollectorState extends State {
+		int cnt;
+		Bodies bodies;
+		int[] rows;
+		long[] busy;
+		long[] latency;
+		boolean start;
+	}
+
+	/**
+	 * Incremental: only the counters are copied, bodies is kept by
+	 * reference. Rows written after the snapshot are not counted once it is
+	 * restored and get written again before the snapshot completes.
+	 */
+	@Override
+	public Object snapshot() {
+		CollectorState state = save(new CollectorState());
+		state.cnt = cnt;
+		state.bodies = bodies;
+		state.rows = rows == null ? null : rows.clone();
+		state.busy = busy == null ? null : busy.clone();
+		state.latency = latency == null ? null : latency.clone();
+		state.start = start;
+		return state;
+	}
+
+	/**
+	 * bodies is copied since it may have been handed to the Bag in the
+	 * meantime.
+	 */
+	@Override
+	public void restore(Object state) {
+		CollectorState s = (CollectorState) state;
+		load(s);
+		cnt = s.cnt;
+		bodies = s.bodies == null ? null : s.bodies.copy();
+		rows = s.rows == null ? null : s.rows.clone();
+		busy = s.busy == null ? null : s.busy.clone();
+		latency = s.latency == null ? null : s.latency.clone();
+		start = s.start;
 	}
 
 	@Override
@@ -1,72 +1,342 @@
 package rs.ac.bg.etf.kdp.simulation.components;
 
 import java.io.*;
-import java.util.*;
+import java.util.concurrent.*;
 
 public class Field implements Serializable {
 	private static final long serialVersionUID = 1L;
 	private static final double GAMA = 6.674 / 100000000000l;
+	/**
+	 * Smallest number of bodies handed to a single fork/join task,
+	 * zero or less keeps calculate on the calling thread.
+	 */
+	public static int MIN_SPLIT = 256;
+	/**
+	 * Bodies per target and source block of the tiled kernel, 256 bodies keep
+	 * both blocks (32 bytes per body) within a 32 KB L1.
+	 */
+	public static int BLOCK = 256;
+	/**
+	 * True when the jdk.incubator.vector module was resolved at startup
+	 * (java --add-modules jdk.incubator.vector ...).
+	 */
+	public static final boolean VECTOR_SUPPORTED = ModuleLayer.boot().findModule("jdk.incubator.vector")
+			.isPresent();
 	long iteration;
 	long time;
 	long interval;
-	List<Body> coordinates;
-	List<Integer> indexes;
+	/**
+	 * Id of the Bag snapshot that coordinates refers to, zero when
+	 * coordinates belong to this field alone.
+	 */
+	long snapshot;
+	transient Bodies coordinates;
+	/**
+	 * The bodies [from, to) of coordinates this field is about.
+	 */
+	int from;
+	int to;
+	/**
+	 * Nanoseconds the Worker spent computing this result.
+	 */
+	long elapsed;
+	/**
+	 * Wall clock time the Bag handed out this chunk, in nanoseconds, see
+	 * {@link #wallClock()}. Results carry it over.
+	 */
+	long dispatched;
+	/**
+	 * Set on a gathered snapshot: rows computed, nanoseconds spent computing
+	 * them and nanoseconds from dispatch to arrival at the Collector, per
+	 * Collector input port, that is per worker.
+	 */
+	int[] rows;
+	long[] busy;
+	long[] latency;
 
 	public Field() {
 		iteration = 0;
 		time = 0;
 		interval = 0;
-		coordinates = new LinkedList<Body>();
-		indexes = new LinkedList<Integer>();
+		snapshot = 0;
+		coordinates = new Bodies();
+		from = 0;
+		to = 0;
+	}
+
+	public int size() {
+		return to - from;
 	}
 
 	public Field calculate() {
-		Field result = new Field();
-		List<Body> bodies = new LinkedList<Body>();
-		for (int i : indexes) {
-			bodies.add(move(coordinates, coordinates.get(i)));
+		return result(calculate(new Bodies(size())));
+	}
+
+	/**
+	 * Moves the bodies [from, to), writing body from + k into row k of out.
+	 * Reuses out's arrays when they are large enough.
+	 */
+	public Bodies calculate(Bodies out) {
+		out.setSize(size());
+		split(size(), (lo, hi) -> {
+			for (int k = lo; k < hi; k++) {
+				move(coordinates, from + k, out, k);
+			}
+		});
+		return out;
+	}
+
+	/**
+	 * Same as {@link #calculate()}, but forces are approximated through a
+	 * Barnes-Hut tree built over this field's coordinates.
+	 */
+	public Field calculate(Octree tree, double theta) {
+		Bodies out = new Bodies(size());
+		out.setSize(size());
+		split(size(), (lo, hi) -> {
+			int[] stack = tree.stack();
+			for (int k = lo; k < hi; k++) {
+				tree.move(this, from + k, out, k, theta, stack);
+			}
+		});
+		return result(out);
+	}
+
+	/**
+	 * Runs range over [0, n), split across the common fork/join pool once n
+	 * exceeds MIN_SPLIT. Every body is moved independently, so the result
+	 * does not depend on how the range was split.
+	 */
+	private static void split(int n, Range range) {
+		int minSplit = MIN_SPLIT;
+		if (minSplit <= 0 || n <= minSplit || ForkJoinPool.getCommonPoolParallelism() < 2) {
+			range.apply(0, n);
+		} else {
+			ForkJoinPool.commonPool().invoke(new Split(range, 0, n, minSplit));
 		}
-		result.indexes = indexes;
+	}
+
+	private interface Range {
+		void apply(int from, int to);
+	}
+
+	private static class Split extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		/** Tasks only run in this process and are never serialized. */
+		final transient Range range;
+		final int from;
+		final int to;
+		final int minSplit;
+
+		Split(Range range, int from, int to, int minSplit) {
+			this.range = range;
+			this.from = from;
+			this.to = to;
+			this.minSplit = minSplit;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= minSplit) {
+				range.apply(from, to);
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Split(range, from, mid, minSplit), new Split(range, mid, to, minSplit));
+			}
+		}
+	}
+
+	/**
+	 * Same as {@link #calculate()}, using the Vector API kernel when it is
+	 * available and the scalar one otherwise.
+	 */
+	public Field calculateVector() {
+		if (!VECTOR_SUPPORTED) {
+			return calculate();
+		}
+		Bodies out = new Bodies(size());
+		out.setSize(size());
+		split(size(), (lo, hi) -> {
+			for (int k = lo; k < hi; k++) {
+				VectorKernel.move(this, coordinates, from + k, out, k);
+			}
+		});
+		return result(out);
+	}
+
+	/**
+	 * Same as {@link #calculate()}, but walks the sources in cache sized
+	 * blocks and evaluates every pair inside [from, to) only once (Newton's
+	 * third law). Runs on the calling thread.
+	 */
+	public Field calculateTiled(int block) {
+		int n = size();
+		Bodies out = new Bodies(n);
+		out.setSize(n);
+		block = Math.max(1, block);
+		double[] ax = new double[n];
+		double[] ay = new double[n];
+		double[] az = new double[n];
+		for (int t = from; t < to; t += block) {
+			int tEnd = Math.min(t + block, to);
+			for (int s = t; s < to; s += block) {
+				tileSymmetric(t, tEnd, s, Math.min(s + block, to), ax, ay, az);
+			}
+		}
+		int size = coordinates.size;
+		for (int s = 0; s < size; s += block) {
+			int sEnd = Math.min(s + block, size);
+			for (int t = from; t < to; t += block) {
+				tile(t, Math.min(t + block, to), s, sEnd, ax, ay, az);
+			}
+		}
+		for (int k = 0; k < n; k++) {
+			update(coordinates, from + k, out, k, ax[k], ay[k], az[k]);
+		}
+		return result(out);
+	}
+
+	/**
+	 * Pairs between targets [t, tEnd) and sources [s, sEnd), both inside
+	 * [from, to). Each pair is evaluated once and applied to both bodies.
+	 */
+	private void tileSymmetric(int t, int tEnd, int s, int sEnd, double[] ax, double[] ay, double[] az) {
+		int lo = from;
+		double[] m = coordinates.m;
+		double[] x = coordinates.x;
+		double[] y = coordinates.y;
+		double[] z = coordinates.z;
+		for (int i = t; i < tEnd; i++) {
+			double bx = x[i];
+			double by = y[i];
+			double bz = z[i];
+			double bm = m[i];
+			double sx = 0;
+			double sy = 0;
+			double sz = 0;
+			for (int j = Math.max(s, i + 1); j < sEnd; j++) {
+				double dx = x[j] - bx;
+				double dy = y[j] - by;
+				double dz = z[j] - bz;
+				double r = distance(dx, dy, dz);
+				double inv = 1 / (r * r * r);
+				dx *= inv;
+				dy *= inv;
+				dz *= inv;
+				sx += m[j] * dx;
+				sy += m[j] * dy;
+				sz += m[j] * dz;
+				ax[j - lo] -= bm * dx;
+				ay[j - lo] -= bm * dy;
+				az[j - lo] -= bm * dz;
+			}
+			ax[i - lo] += sx;
+			ay[i - lo] += sy;
+			az[i - lo] += sz;
+		}
+	}
+
+	/**
+	 * One sided pairs between the targets [t, tEnd) and the sources
+	 * [s, sEnd), skipping the sources inside [from, to) that tileSymmetric
+	 * already covered.
+	 */
+	private void tile(int t, int tEnd, int s, int sEnd, double[] ax, double[] ay, double[] az) {
+		double[] m = coordinates.m;
+		double[] x = coordinates.x;
+		double[] y = coordinates.y;
+		double[] z = coordinates.z;
+		int lo = from;
+		int hi = to;
+		for (int i = t; i < tEnd; i++) {
+			int k = i - lo;
+			double bx = x[i];
+			double by = y[i];
+			double bz = z[i];
+			double sx = 0;
+			double sy = 0;
+			double sz = 0;
+			for (int j = s; j < sEnd; j++) {
+				if (j == i || (j >= lo && j < hi)) {
+					continue;
+				}
+				double dx = x[j] - bx;
+				double dy = y[j] - by;
+				double dz = z[j] - bz;
+				double r = distance(dx, dy, dz);
+				double w = m[j] / (r * r * r);
+				sx += w * dx;
+				sy += w * dy;
+				sz += w * dz;
+			}
+			ax[k] += sx;
+			ay[k] += sy;
+			az[k] += sz;
+		}
+	}
+
+	private Field result(Bodies bodies) {
+		Field result = new Field();
+		result.iteration = iteration;
+		result.from = from;
+		result.to = to;
 		result.time = time + interval;
 		result.interval = interval;
+		result.dispatched = dispatched;
 		result.coordinates = bodies;
 		return result;
 	}
 
-	public Body move(List<Body> coordinates, Body body) {
-		Body result = new Body();
+	/**
+	 * Nanoseconds since the epoch. Unlike System.nanoTime it can be compared
+	 * between nodes, up to the skew of their clocks.
+	 */
+	static long wallClock() {
+		java.time.Instant now = java.time.Instant.now();
+		return now.getEpochSecond() * 1000000000L + now.getNano();
+	}
+
+	/**
+	 * Moves body i of src by one interval and stores it in row k of dst.
+	 * Does not allocate.
+	 */
+	public void move(Bodies src, int i, Bodies dst, int k) {
+		double[] m = src.m;
+		double[] x = src.x;
+		double[] y = src.y;
+		double[] z = src.z;
+		double bx = x[i];
+		double by = y[i];
+		double bz = z[i];
 		double ax = 0;
 		double ay = 0;
 		double az = 0;
-		for (Body b : coordinates) {
-			if (b != body) {
-				double r = distance(body, b);
+		for (int j = 0, n = src.size; j < n; j++) {
+			if (j != i) {
+				double r = distance(bx - x[j], by - y[j], bz - z[j]);
 				r = r * r * r;
-				ax += b.m * (b.x - body.x) / r;
-				ay += b.m * (b.y - body.y) / r;
-				az += b.m * (b.z - body.z) / r;
+				ax += m[j] * (x[j] - bx) / r;
+				ay += m[j] * (y[j] - by) / r;
+				az += m[j] * (z[j] - bz) / r;
 			}
 		}
-		result.ax = -ax * GAMA;
-		result.ay = -ay * GAMA;
-		result.az = -az * GAMA;
-		result.m = body.m;
-		result.id = body.id;
-		result.vx = body.vx + ax * interval;
-		result.vy = body.vy + ay * interval;
-		result.vz = body.vz + az * interval;
-		result.x += body.x + body.vx * interval + ax * interval * interval / 2;
-		result.y += body.y + body.vx * interval + ay * interval * interval / 2;
-		result.z += body.z + body.vx * interval + az * interval * interval / 2;
-		return result;
+		update(src, i, dst, k, ax, ay, az);
+	}
+
+	void update(Bodies src, int i, Bodies dst, int k, double ax, double ay, double az) {
+		double vx = src.vx[i];
+		dst.id[k] = src.id[i];
+		dst.m[k] = src.m[i];
+		dst.vx[k] = vx + ax * interval;
+		dst.vy[k] = src.vy[i] + ay * interval;
+		dst.vz[k] = src.vz[i] + az * interval;
+		dst.x[k] = src.x[i] + vx * interval + ax * interval * interval / 2;
+		dst.y[k] = src.y[i] + vx * interval + ay * interval * interval / 2;
+		dst.z[k] = src.z[i] + vx * interval + az * interval * interval / 2;
 	}
 
-	public double distance(Body a, Body b) {
-		double r = 0;
-		double a1 = a.x - b.x;
-		double a2 = a.y - b.y;
-		double a3 = a.z - b.z;
-		r = Math.sqrt(a1 * a1 + a2 * a2 + a3 * a3);
+	public double distance(double a1, double a2, double a3) {
+		double r = Math.sqrt(a1 * a1 + a2 * a2 + a3 * a3);
 		if (r < 10E-10)
 			r = 10E-10;
 		return r;
@@ -76,8 +346,32 @@ public class Field implements Serializable {
 		coordinates.add(b);
 	}
 
-	public void addIndex(int index) {
-		indexes.add(index);
+	/**
+	 * A shared snapshot is written only the first time it crosses a given
+	 * stream, see {@link Snapshots}.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		boolean inline = snapshot == 0 || Snapshots.markSent(out, snapshot, iteration);
+		out.writeBoolean(inline);
+		if (inline) {
+			out.writeObject(coordinates);
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (in.readBoolean()) {
+			coordinates = (Bodies) in.readObject();
+			if (snapshot != 0) {
+				coordinates = Snapshots.put(snapshot, iteration, coordinates);
+			}
+		} else {
+			coordinates = Snapshots.get(snapshot, iteration);
+			if (coordinates == null) {
+				throw new InvalidObjectException("Snapshot " + snapshot + "/" + iteration + " was never received");
+			}
+		}
 	}
 
 }
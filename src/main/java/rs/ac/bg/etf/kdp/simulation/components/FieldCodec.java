@@ -0,0 +1,324 @@
+package rs.ac.bg.etf.kdp.simulation.components;
+
+import java.io.*;
+import java.util.*;
+
+import io.github.stcksmsh.kdp.common.MessageCodec;
+
+/**
+ * Binary form of a Field for the node protocol. Only the used rows of the
+ * bodies are written, as raw doubles, and a shared snapshot crosses a
+ * connection once per iteration, as with Java serialization (see
+ * {@link Snapshots}). The bodies of jobs that asked for it are compressed
+ * against the ones the connection carried before (see
+ * {@link BodyCompression}).
+ * <p>
+ * Writing a field records on the spot that the connection carried its
+ * snapshot and its bodies, so the next field of the same frame sees it.
+ * The caller confirms the frame with {@link #commit} or takes the records
+ * back with {@link #rollback} when it is not sent.
+ * <p>
+ * The nodes use it for the fields of their events once {@link #register}
+ * was called, which they do when this class is named in kdp.codecs.
+ */
+public final class FieldCodec {
+	private static final byte SHARED = 0;
+	private static final byte INLINE = 1;
+	private static final byte COMPRESSED = 2;
+
+	/**
+	 * Snapshot ids and compression keys written per connection since its
+	 * last commit, a snapshot as {@link #SHARED} and a key as
+	 * {@link #COMPRESSED} before it.
+	 */
+	private static final Map<Object, List<long[]>> pending = new WeakHashMap<Object, List<long[]>>();
+	/**
+	 * Jobs whose fields this node compressed or decompressed.
+	 */
+	private static final Set<String> compressedJobs = Collections.synchronizedSet(new HashSet<String>());
+
+	private FieldCodec() {
+	}
+
+	/**
+	 * Registers the codec of Field with {@link MessageCodec}. Binds every
+	 * field to the job of its event list, drops the job's snapshots when the
+	 * job ends on the node and logs the compression figures of compressed
+	 * jobs then.
+	 */
+	public static void register() {
+		MessageCodec.register(Field.class, new MessageCodec.PayloadCodec() {
+			@Override
+			public void write(Object value, String jobId, DataOutputStream out, Object connection, boolean compress)
+					throws IOException {
+				Field field = (Field) value;
+				FieldCodec.write(field, out, connection, compress);
+				bind(jobId, field, connection);
+				if (compress) {
+					compressedJobs.add(jobId);
+				}
+			}
+
+			@Override
+			public Object read(DataInputStream in, String jobId, Object connection) throws IOException {
+				Field field = FieldCodec.read(in, connection);
+				bind(jobId, field, connection);
+				return field;
+			}
+
+			@Override
+			public void commit(Object connection) {
+				FieldCodec.commit(connection);
+			}
+
+			@Override
+			public void rollback(Object connection) {
+				FieldCodec.rollback(connection);
+			}
+
+			@Override
+			public void release(Object connection, String jobId) {
+				FieldCodec.release(connection, jobId);
+			}
+
+			@Override
+			public String end(String jobId) {
+				Snapshots.removeJob(jobId);
+				return compressedJobs.remove(jobId) ? "Field compression: " + report() : null;
+			}
+		});
+	}
+
+	public static void write(Field field, DataOutput out, Object connection) throws IOException {
+		write(field, out, connection, false);
+	}
+
+	/**
+	 * @param connection identifies the connection, a snapshot it already
+	 *                   carried is sent as a key only
+	 * @param compress   whether to compress the bodies, the reading end
+	 *                   must pass the same connection's decoder to
+	 *                   {@link #read(DataInput, Object)}
+	 */
+	public static void write(Field field, DataOutput out, Object connection, boolean compress) throws IOException {
+		out.writeLong(field.iteration);
+		out.writeLong(field.time);
+		out.writeLong(field.interval);
+		out.writeLong(field.snapshot);
+		out.writeInt(field.from);
+		out.writeInt(field.to);
+		out.writeLong(field.elapsed);
+		out.writeLong(field.dispatched);
+		writeInts(out, field.rows);
+		writeLongs(out, field.busy);
+		writeLongs(out, field.latency);
+		boolean inline = field.snapshot == 0 || Snapshots.markSent(connection, field.snapshot, field.iteration);
+		if (inline && field.snapshot != 0) {
+			record(connection, SHARED, field.snapshot);
+		}
+		if (!inline) {
+			out.writeByte(SHARED);
+		} else if (compress) {
+			out.writeByte(COMPRESSED);
+			record(connection, COMPRESSED, key(field));
+			BodyCompression.write(out, field.coordinates, connection, key(field));
+		} else {
+			out.writeByte(INLINE);
+			writeBodies(out, field.coordinates);
+		}
+	}
+
+	public static Field read(DataInput in) throws IOException {
+		return read(in, null);
+	}
+
+	/**
+	 * @param connection identifies the connection, needed for compressed
+	 *                   bodies
+	 */
+	public static Field read(DataInput in, Object connection) throws IOException {
+		Field field = new Field();
+		field.iteration = in.readLong();
+		field.time = in.readLong();
+		field.interval = in.readLong();
+		field.snapshot = in.readLong();
+		field.from = in.readInt();
+		field.to = in.readInt();
+		field.elapsed = in.readLong();
+		field.dispatched = in.readLong();
+		field.rows = readInts(in);
+		field.busy = readLongs(in);
+		field.latency = readLongs(in);
+		byte form = in.readByte();
+		if (form != SHARED) {
+			if (form == COMPRESSED) {
+				if (connection == null) {
+					throw new InvalidObjectException("Compressed bodies need the connection they came from");
+				}
+				field.coordinates = BodyCompression.read(in, connection, key(field));
+			} else {
+				field.coordinates = readBodies(in);
+			}
+			if (field.snapshot != 0) {
+				field.coordinates = Snapshots.put(field.snapshot, field.iteration, field.coordinates);
+			}
+		} else {
+			field.coordinates = Snapshots.get(field.snapshot, field.iteration);
+			if (field.coordinates == null) {
+				throw new InvalidObjectException(
+						"Snapshot " + field.snapshot + "/" + field.iteration + " was never received");
+			}
+		}
+		return field;
+	}
+
+	private static void record(Object connection, byte form, long id) {
+		synchronized (pending) {
+			pending.computeIfAbsent(connection, k -> new ArrayList<long[]>()).add(new long[] { form, id });
+		}
+	}
+
+	/**
+	 * The fields written to connection since the last call were sent.
+	 */
+	public static void commit(Object connection) {
+		synchronized (pending) {
+			pending.remove(connection);
+		}
+	}
+
+	/**
+	 * The fields written to connection since the last call were not sent,
+	 * their snapshots go inline and their bodies uncompared next time.
+	 */
+	public static void rollback(Object connection) {
+		List<long[]> records;
+		synchronized (pending) {
+			records = pending.remove(connection);
+		}
+		if (records == null) {
+			return;
+		}
+		for (long[] record : records) {
+			if (record[0] == SHARED) {
+				Snapshots.unmarkSent(connection, record[1]);
+			} else {
+				BodyCompression.forget(connection, record[1]);
+			}
+		}
+	}
+
+	/**
+	 * Binds the snapshot field refers to to the job, so it is dropped with
+	 * it, see {@link Snapshots#removeJob}, and the bodies it was compressed
+	 * against on connection, see {@link #release}.
+	 */
+	public static void bind(String jobId, Field field, Object connection) {
+		Snapshots.bind(jobId, field.snapshot);
+		BodyCompression.bind(connection, jobId, key(field));
+	}
+
+	/**
+	 * Drops the compression references of the job's fields on connection,
+	 * both ends must do it after the same message.
+	 */
+	public static void release(Object connection, String jobId) {
+		BodyCompression.release(connection, jobId);
+	}
+
+	/**
+	 * A snapshot is compressed against its previous iteration, any other
+	 * field against the last one covering the same rows.
+	 */
+	private static long key(Field field) {
+		return field.snapshot != 0 ? field.snapshot : ((long) field.from << 32) | (field.to & 0xffffffffL);
+	}
+
+	/**
+	 * @return the compression ratio of the bodies this node wrote and the
+	 *         time spent compressing and decompressing
+	 */
+	public static String report() {
+		return BodyCompression.report();
+	}
+
+	static void writeBodies(DataOutput out, Bodies bodies) throws IOException {
+		if (bodies == null) {
+			out.writeInt(-1);
+			return;
+		}
+		int n = bodies.size;
+		out.writeInt(n);
+		for (int i = 0; i < n; i++) {
+			out.writeInt(bodies.id[i]);
+		}
+		for (double[] column : new double[][] { bodies.m, bodies.x, bodies.y, bodies.z, bodies.vx, bodies.vy,
+				bodies.vz }) {
+			for (int i = 0; i < n; i++) {
+				out.writeDouble(column[i]);
+			}
+		}
+	}
+
+	static Bodies readBodies(DataInput in) throws IOException {
+		int n = in.readInt();
+		if (n < 0) {
+			return null;
+		}
+		Bodies bodies = new Bodies(n);
+		bodies.setSize(n);
+		for (int i = 0; i < n; i++) {
+			bodies.id[i] = in.readInt();
+		}
+		for (double[] column : new double[][] { bodies.m, bodies.x, bodies.y, bodies.z, bodies.vx, bodies.vy,
+				bodies.vz }) {
+			for (int i = 0; i < n; i++) {
+				column[i] = in.readDouble();
+			}
+		}
+		return bodies;
+	}
+
+	private static void writeInts(DataOutput out, int[] values) throws IOException {
+		out.writeInt(values == null ? -1 : values.length);
+		if (values != null) {
+			for (int value : values) {
+				out.writeInt(value);
+			}
+		}
+	}
+
+	private static int[] readInts(DataInput in) throws IOException {
+		int n = in.readInt();
+		if (n < 0) {
+			return null;
+		}
+		int[] values = new int[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = in.readInt();
+		}
+		return values;
+	}
+
+	private static void writeLongs(DataOutput out, long[] values) throws IOException {
+		out.writeInt(values == null ? -1 : values.length);
+		if (values != null) {
+			for (long value : values) {
+				out.writeLong(value);
+			}
+		}
+	}
+
+	private static long[] readLongs(DataInput in) throws IOException {
+		int n = in.readInt();
+		if (n < 0) {
+			return null;
+		}
+		long[] values = new long[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = in.readLong();
+		}
+		return values;
+	}
+
+}
@@ -0,0 +1,19 @@
+package rs.ac.bg.etf.kdp.simulation.components;
+
+/**
+ * How a Worker evaluates the forces acting on its bodies.
+ */
+public enum ForceMode {
+	/** Every pair of bodies, O(n) per body. */
+	DIRECT,
+	/** Octree approximation controlled by the opening angle theta. */
+	BARNES_HUT,
+	/** Every pair of bodies, several sources per step through the Vector API. */
+	VECTOR,
+	/** Every pair of bodies in cache sized blocks, pairs inside a task evaluated once. */
+	TILED;
+
+	public static ForceMode parse(String s) {
+		return valueOf(s.trim().toUpperCase().replace('-', '_'));
+	}
+}
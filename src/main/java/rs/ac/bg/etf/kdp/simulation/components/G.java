@@ -23,13 +23,59 @@ public abstract class G implements rs.ac.bg.etf.sleep.simulation.SimComponent<Fi
 		waitPeriod = 1000;
 	}
 
+	/**
+	 * Run time state shared by every component, subclasses extend it with
+	 * their own fields.
+	 */
+	static class State {
+		long lTime;
+		long iteration;
+		long waitPeriod;
+	}
+
+	<S extends State> S save(S state) {
+		state.lTime = lTime;
+		state.iteration = iteration;
+		state.waitPeriod = waitPeriod;
+		return state;
+	}
+
+	void load(State state) {
+		lTime = state.lTime;
+		iteration = state.iteration;
+		waitPeriod = state.waitPeriod;
+	}
+
+	@Override
+	public Object snapshot() {
+		return save(new State());
+	}
+
+	@Override
+	public void restore(Object state) {
+		load((State) state);
+	}
+
+	public List<Event<Field>> execute(Event<Field> msg) {
+		List<Event<Field>> result = new LinkedList<Event<Field>>();
+		execute(msg, result);
+		return result;
+	}
+
+	@Override
+	public abstract void execute(Event<Field> msg, List<Event<Field>> result);
+
 	public Event<Field> createForItself() {
-		try {
-			Thread.sleep(waitPeriod);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-		Event<Field> resultMsg = new Event<Field>();
+		return createForItself(0);
+	}
+
+	/**
+	 * Self event the simulator delivers once delay ms have passed, or earlier
+	 * when it has nothing else to do. Input arriving in the meantime is
+	 * delivered as usual.
+	 */
+	public Event<Field> createForItself(long delay) {
+		Event<Field> resultMsg = EventPool.obtain();
 		resultMsg.setData(null);
 		resultMsg.setId(id);
 		resultMsg.setSrcID(id);
@@ -38,6 +84,9 @@ public abstract class G implements rs.ac.bg.etf.sleep.simulation.SimComponent<Fi
 		resultMsg.setDstPort(0);
 		resultMsg.setlTime(lTime);
 		resultMsg.setlTimeCreated(lTime);
+		if (delay > 0) {
+			resultMsg.setDeadline(System.currentTimeMillis() + delay);
+		}
 		return resultMsg;
 	}
 
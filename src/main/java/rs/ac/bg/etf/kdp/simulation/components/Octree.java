@@ -0,0 +1,228 @@
+package rs.ac.bg.etf.kdp.simulation.components;
+
+import java.util.*;
+
+/**
+ * Barnes-Hut octree built over one snapshot of bodies.
+ * Nodes are stored in parallel arrays, a node is opened when
+ * size / distance >= theta, otherwise its mass is applied at its centre.
+ */
+public class Octree {
+	private static final int EMPTY = -1;
+	private static final int INTERNAL = -2;
+	private static final int MAX_DEPTH = 64;
+
+	final Bodies bodies;
+	int nodes;
+	int[] child;
+	int[] first;
+	int[] next;
+	double[] size;
+	double[] ox, oy, oz;
+	double[] mass;
+	double[] cx, cy, cz;
+
+	public Octree(Bodies bodies) {
+		this.bodies = bodies;
+		int n = bodies.size();
+		int capacity = Math.max(16, 2 * n);
+		nodes = 0;
+		child = new int[8 * capacity];
+		first = new int[capacity];
+		size = new double[capacity];
+		ox = new double[capacity];
+		oy = new double[capacity];
+		oz = new double[capacity];
+		next = new int[n];
+		build();
+	}
+
+	public Bodies getBodies() {
+		return bodies;
+	}
+
+	public int getNodeCount() {
+		return nodes;
+	}
+
+	/**
+	 * Scratch stack large enough for one traversal, reuse it across calls
+	 * made from the same thread.
+	 */
+	public int[] stack() {
+		return new int[7 * MAX_DEPTH + 8];
+	}
+
+	private void build() {
+		int n = bodies.size();
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, minZ = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE, maxZ = -Double.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			minX = Math.min(minX, bodies.x[i]);
+			minY = Math.min(minY, bodies.y[i]);
+			minZ = Math.min(minZ, bodies.z[i]);
+			maxX = Math.max(maxX, bodies.x[i]);
+			maxY = Math.max(maxY, bodies.y[i]);
+			maxZ = Math.max(maxZ, bodies.z[i]);
+		}
+		double edge = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ));
+		if (!(edge > 0)) {
+			edge = 1;
+		}
+		node((minX + maxX) / 2, (minY + maxY) / 2, (minZ + maxZ) / 2, edge * 1.0001);
+		for (int i = 0; i < n; i++) {
+			insert(i);
+		}
+		summarize();
+	}
+
+	private int node(double x, double y, double z, double edge) {
+		if (nodes == first.length) {
+			int capacity = nodes * 2;
+			child = Arrays.copyOf(child, 8 * capacity);
+			first = Arrays.copyOf(first, capacity);
+			size = Arrays.copyOf(size, capacity);
+			ox = Arrays.copyOf(ox, capacity);
+			oy = Arrays.copyOf(oy, capacity);
+			oz = Arrays.copyOf(oz, capacity);
+		}
+		int node = nodes++;
+		first[node] = EMPTY;
+		size[node] = edge;
+		ox[node] = x;
+		oy[node] = y;
+		oz[node] = z;
+		return node;
+	}
+
+	private int octant(int node, int i) {
+		return (bodies.x[i] >= ox[node] ? 1 : 0) | (bodies.y[i] >= oy[node] ? 2 : 0)
+				| (bodies.z[i] >= oz[node] ? 4 : 0);
+	}
+
+	private int childFor(int node, int octant) {
+		int c = child[8 * node + octant];
+		if (c == 0) {
+			double quarter = size[node] / 4;
+			c = node(ox[node] + ((octant & 1) != 0 ? quarter : -quarter),
+					oy[node] + ((octant & 2) != 0 ? quarter : -quarter),
+					oz[node] + ((octant & 4) != 0 ? quarter : -quarter), size[node] / 2);
+			child[8 * node + octant] = c;
+		}
+		return c;
+	}
+
+	private void insert(int i) {
+		int node = 0;
+		for (int depth = 0;; depth++) {
+			int b = first[node];
+			if (b == EMPTY) {
+				first[node] = i;
+				next[i] = EMPTY;
+				return;
+			}
+			if (b >= 0) {
+				if (depth >= MAX_DEPTH || (bodies.x[b] == bodies.x[i] && bodies.y[b] == bodies.y[i]
+						&& bodies.z[b] == bodies.z[i])) {
+					next[i] = b;
+					first[node] = i;
+					return;
+				}
+				first[node] = INTERNAL;
+				int c = childFor(node, octant(node, b));
+				first[c] = b;
+			}
+			node = childFor(node, octant(node, i));
+		}
+	}
+
+	private void summarize() {
+		mass = new double[nodes];
+		cx = new double[nodes];
+		cy = new double[nodes];
+		cz = new double[nodes];
+		// children are always created after their parent
+		for (int node = nodes - 1; node >= 0; node--) {
+			double m = 0, x = 0, y = 0, z = 0;
+			if (first[node] == INTERNAL) {
+				for (int o = 0; o < 8; o++) {
+					int c = child[8 * node + o];
+					if (c != 0) {
+						m += mass[c];
+						x += mass[c] * cx[c];
+						y += mass[c] * cy[c];
+						z += mass[c] * cz[c];
+					}
+				}
+			} else {
+				for (int b = first[node]; b >= 0; b = next[b]) {
+					m += bodies.m[b];
+					x += bodies.m[b] * bodies.x[b];
+					y += bodies.m[b] * bodies.y[b];
+					z += bodies.m[b] * bodies.z[b];
+				}
+			}
+			mass[node] = m;
+			if (m != 0) {
+				cx[node] = x / m;
+				cy[node] = y / m;
+				cz[node] = z / m;
+			} else {
+				cx[node] = ox[node];
+				cy[node] = oy[node];
+				cz[node] = oz[node];
+			}
+		}
+	}
+
+	/**
+	 * Moves body i of the snapshot by one interval of field and stores it in
+	 * row k of dst. Does not allocate.
+	 */
+	public void move(Field field, int i, Bodies dst, int k, double theta, int[] stack) {
+		double[] bm = bodies.m;
+		double[] x = bodies.x;
+		double[] y = bodies.y;
+		double[] z = bodies.z;
+		double bx = x[i];
+		double by = y[i];
+		double bz = z[i];
+		double ax = 0;
+		double ay = 0;
+		double az = 0;
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			int b = first[node];
+			if (b == INTERNAL) {
+				double r = field.distance(bx - cx[node], by - cy[node], bz - cz[node]);
+				if (size[node] < theta * r) {
+					r = r * r * r;
+					ax += mass[node] * (cx[node] - bx) / r;
+					ay += mass[node] * (cy[node] - by) / r;
+					az += mass[node] * (cz[node] - bz) / r;
+				} else {
+					for (int o = 0; o < 8; o++) {
+						int c = child[8 * node + o];
+						if (c != 0) {
+							stack[top++] = c;
+						}
+					}
+				}
+			} else {
+				for (; b >= 0; b = next[b]) {
+					if (b != i) {
+						double r = field.distance(bx - x[b], by - y[b], bz - z[b]);
+						r = r * r * r;
+						ax += bm[b] * (x[b] - bx) / r;
+						ay += bm[b] * (y[b] - by) / r;
+						az += bm[b] * (z[b] - bz) / r;
+					}
+				}
+			}
+		}
+		field.update(bodies, i, dst, k, ax, ay, az);
+	}
+
+}
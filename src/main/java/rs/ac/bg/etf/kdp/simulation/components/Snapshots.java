@@ -0,0 +1,119 @@
+package rs.ac.bg.etf.kdp.simulation.components;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Node wide cache of the Bag snapshots that task fields refer to.
+ * A snapshot is identified by the id of the Bag that produced it and the
+ * iteration, it is written once per output stream and every later field
+ * of the same iteration only carries the key. The receiving node keeps the
+ * snapshot here so those fields can resolve it.
+ * <p>
+ * Every Bag has an id of its own, so the snapshots of a job are bound to it
+ * as its fields cross the node and dropped with {@link #removeJob} when the
+ * job ends.
+ */
+public class Snapshots {
+	/** Iterations kept per snapshot id, older ones are dropped. */
+	public static int KEEP = 2;
+
+	private static final Map<Long, Map<Long, Bodies>> received = new ConcurrentHashMap<Long, Map<Long, Bodies>>();
+	private static final Map<Object, Map<Long, Long>> sent = new WeakHashMap<Object, Map<Long, Long>>();
+	private static final Map<String, Set<Long>> jobs = new ConcurrentHashMap<String, Set<Long>>();
+	private static final Random random = new Random();
+
+	public static long newId() {
+		synchronized (random) {
+			long id;
+			do {
+				id = random.nextLong();
+			} while (id == 0);
+			return id;
+		}
+	}
+
+	/**
+	 * Records that the snapshot is about to be written to out, an object
+	 * stream or a connection of the binary protocol.
+	 *
+	 * @return false when out has already carried this snapshot
+	 */
+	static boolean markSent(Object out, long id, long iteration) {
+		synchronized (sent) {
+			Map<Long, Long> streams = sent.get(out);
+			if (streams == null) {
+				streams = new HashMap<Long, Long>();
+				sent.put(out, streams);
+			}
+			Long last = streams.get(id);
+			if (last != null && last >= iteration) {
+				return false;
+			}
+			streams.put(id, iteration);
+			return true;
+		}
+	}
+
+	/**
+	 * Forgets that out carried the snapshot, it is written in full again.
+	 */
+	static void unmarkSent(Object out, long id) {
+		synchronized (sent) {
+			Map<Long, Long> streams = sent.get(out);
+			if (streams != null) {
+				streams.remove(id);
+			}
+		}
+	}
+
+	/**
+	 * @return the cached instance, which is bodies unless another stream
+	 *         delivered the same snapshot first
+	 */
+	static Bodies put(long id, long iteration, Bodies bodies) {
+		Map<Long, Bodies> iterations = received.computeIfAbsent(id, k -> new ConcurrentHashMap<Long, Bodies>());
+		Bodies cached = iterations.putIfAbsent(iteration, bodies);
+		iterations.keySet().removeIf(i -> i <= iteration - KEEP);
+		return cached == null ? bodies : cached;
+	}
+
+	static Bodies get(long id, long iteration) {
+		Map<Long, Bodies> iterations = received.get(id);
+		return iterations == null ? null : iterations.get(iteration);
+	}
+
+	/**
+	 * Drops every snapshot produced by the given Bag, received or sent.
+	 */
+	public static void remove(long id) {
+		received.remove(id);
+		synchronized (sent) {
+			for (Map<Long, Long> streams : sent.values()) {
+				streams.remove(id);
+			}
+		}
+	}
+
+	/**
+	 * Records that the snapshot belongs to the job, see {@link #removeJob}.
+	 */
+	public static void bind(String jobId, long id) {
+		if (id != 0) {
+			jobs.computeIfAbsent(jobId, k -> ConcurrentHashMap.newKeySet()).add(id);
+		}
+	}
+
+	/**
+	 * Drops the snapshots bound to the job.
+	 */
+	public static void removeJob(String jobId) {
+		Set<Long> ids = jobs.remove(jobId);
+		if (ids != null) {
+			for (long id : ids) {
+				remove(id);
+			}
+		}
+	}
+
+}
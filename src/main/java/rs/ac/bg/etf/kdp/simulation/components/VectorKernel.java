@@ -0,0 +1,63 @@
+package rs.ac.bg.etf.kdp.simulation.components;
+
+import jdk.incubator.vector.*;
+
+/**
+ * Direct force kernel evaluating SPECIES.length() source bodies per step.
+ * Only touched by Field when the jdk.incubator.vector module is present.
+ */
+class VectorKernel {
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	private static final double MIN_DISTANCE = 10E-10;
+
+	static int lanes() {
+		return SPECIES.length();
+	}
+
+	/**
+	 * Moves body i of src by one interval of field and stores it in row k of
+	 * dst. The body itself has a zero offset and contributes nothing, the same
+	 * as in {@link Field#move}.
+	 */
+	static void move(Field field, Bodies src, int i, Bodies dst, int k) {
+		double[] m = src.m;
+		double[] x = src.x;
+		double[] y = src.y;
+		double[] z = src.z;
+		int n = src.size;
+		double bx = x[i];
+		double by = y[i];
+		double bz = z[i];
+		DoubleVector vbx = DoubleVector.broadcast(SPECIES, bx);
+		DoubleVector vby = DoubleVector.broadcast(SPECIES, by);
+		DoubleVector vbz = DoubleVector.broadcast(SPECIES, bz);
+		DoubleVector vax = DoubleVector.zero(SPECIES);
+		DoubleVector vay = DoubleVector.zero(SPECIES);
+		DoubleVector vaz = DoubleVector.zero(SPECIES);
+		int j = 0;
+		for (int bound = SPECIES.loopBound(n); j < bound; j += SPECIES.length()) {
+			DoubleVector dx = DoubleVector.fromArray(SPECIES, x, j).sub(vbx);
+			DoubleVector dy = DoubleVector.fromArray(SPECIES, y, j).sub(vby);
+			DoubleVector dz = DoubleVector.fromArray(SPECIES, z, j).sub(vbz);
+			DoubleVector r = dx.mul(dx).add(dy.mul(dy)).add(dz.mul(dz)).sqrt().max(MIN_DISTANCE);
+			DoubleVector w = DoubleVector.fromArray(SPECIES, m, j).div(r.mul(r).mul(r));
+			vax = dx.fma(w, vax);
+			vay = dy.fma(w, vay);
+			vaz = dz.fma(w, vaz);
+		}
+		double ax = vax.reduceLanes(VectorOperators.ADD);
+		double ay = vay.reduceLanes(VectorOperators.ADD);
+		double az = vaz.reduceLanes(VectorOperators.ADD);
+		for (; j < n; j++) {
+			if (j != i) {
+				double r = field.distance(bx - x[j], by - y[j], bz - z[j]);
+				r = r * r * r;
+				ax += m[j] * (x[j] - bx) / r;
+				ay += m[j] * (y[j] - by) / r;
+				az += m[j] * (z[j] - bz) / r;
+			}
+		}
+		field.update(src, i, dst, k, ax, ay, az);
+	}
+
+}
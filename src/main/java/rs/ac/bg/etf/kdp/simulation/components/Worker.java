@@ -5,20 +5,30 @@ import java.util.*;
 import rs.ac.bg.etf.sleep.simulation.*;
 
 public class Worker extends G {
+	public static double THETA = 0.5;
+	ForceMode mode;
+	double theta;
+	int block;
+	transient Octree tree;
+
 	public Worker() {
 		id = 0;
 		name = "";
 		lTime = 0;
+		mode = ForceMode.DIRECT;
+		theta = THETA;
+		block = Field.BLOCK;
 	}
 
 	@Override
-	public List<Event<Field>> execute(Event<Field> msg) {
-		List<Event<Field>> result = new LinkedList<Event<Field>>();
+	public void execute(Event<Field> msg, List<Event<Field>> result) {
 		if (msg.getSrcID() != id) {
 			lTime = msg.getlTime();
 			Field field = msg.getData();
-			Field resultField = field.calculate();
-			Event<Field> resultMsg = new Event<Field>();
+			long start = System.nanoTime();
+			Field resultField = calculate(field);
+			resultField.elapsed = System.nanoTime() - start;
+			Event<Field> resultMsg = EventPool.obtain();
 			resultMsg.setData(resultField);
 			resultMsg.setId(msg.getId() + 1);
 			resultMsg.setSrcID(id);
@@ -32,24 +42,61 @@ public class Worker extends G {
 		if (result.size() == 0) {
 			// result.add(createForItself());
 		}
-		return result;
+	}
+
+	public Field calculate(Field field) {
+		switch (mode) {
+		case BARNES_HUT:
+			if (tree == null || tree.getBodies() != field.coordinates) {
+				tree = new Octree(field.coordinates);
+			}
+			return field.calculate(tree, theta);
+		case VECTOR:
+			return field.calculateVector();
+		case TILED:
+			return field.calculateTiled(block);
+		default:
+			return field.calculate();
+		}
 	}
 
 	@Override
 	public String[] getState() {
-		String[] result = new String[4];
+		String[] result = new String[mode == ForceMode.DIRECT ? 4 : mode == ForceMode.VECTOR ? 5 : 6];
 		result[0] = "" + id;
 		result[1] = this.getClass().getName();
 		result[2] = name;
 		result[3] = "" + id;
+		if (mode != ForceMode.DIRECT) {
+			result[4] = mode.name().toLowerCase();
+		}
+		if (mode == ForceMode.BARNES_HUT) {
+			result[5] = "" + theta;
+		}
+		if (mode == ForceMode.TILED) {
+			result[5] = "" + block;
+		}
 		return result;
 	}
 
+	/**
+	 * id class name id [mode [parameter]], mode is one of the ForceMode names
+	 * (direct, barnes_hut, vector, tiled) and defaults to direct. The
+	 * parameter is theta for barnes_hut and the block size for tiled.
+	 */
 	@Override
 	public void setState(String[] args) {
 		name = args[2];
 		id = Integer.parseInt(args[3]);
-
+		if (args.length > 4) {
+			mode = ForceMode.parse(args[4]);
+		}
+		if (args.length > 5 && mode == ForceMode.BARNES_HUT) {
+			theta = Double.parseDouble(args[5]);
+		}
+		if (args.length > 5 && mode == ForceMode.TILED) {
+			block = Integer.parseInt(args[5]);
+		}
 	}
 
 	@Override
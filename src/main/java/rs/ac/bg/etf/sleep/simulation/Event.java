@@ -6,7 +6,6 @@ public class Event<V> implements Comparable<Event<V>>, Serializable {
 	private static final long serialVersionUID = 1L;
 	public static final int OK = 0;
 	public static final int NOK = 1;
-	public static long ID = 0;
 
 	long id;
 	int status;
@@ -20,6 +19,19 @@ public class Event<V> implements Comparable<Event<V>>, Serializable {
 	long dstID;
 	int dstPort;
 
+	/**
+	 * Wall clock time (ms) before which this event should not be delivered
+	 * unless nothing else is pending, 0 for ordinary events.
+	 */
+	long deadline;
+
+	/**
+	 * Stamped by the simulator that created the event, unique per source
+	 * component. Together with the source and destination it identifies the
+	 * event an anti-message cancels, 0 for events that were never stamped.
+	 */
+	long serial;
+
 	V data;
 
 	public Event(long lTimeCreated, long lTime, long srcID, int srcPort,
@@ -31,7 +43,8 @@ public class Event<V> implements Comparable<Event<V>>, Serializable {
 		this.dstID = dstID;
 		this.dstPort = dstPort;
 		this.status = OK;
-		this.id = ID++;
+		this.deadline = 0;
+		this.id = EventIds.next();
 	}
 
 	public Event() {
@@ -52,12 +65,48 @@ public class Event<V> implements Comparable<Event<V>>, Serializable {
 		return result;
 	}
 
+	/**
+	 * Primitive tie breaker for events with equal lTime, following
+	 * compareTo: self events first, then by source and destination id.
+	 */
+	public long tieKey() {
+		long src = Math.min(Math.max(srcID, 0), 0x3FFFFFFFL);
+		long dst = Math.min(Math.max(dstID, 0), 0x7FFFFFFFL);
+		return (srcID == dstID ? 0 : 1L << 61) | (src << 31) | dst;
+	}
+
 	public boolean ok() {
 		return status == OK;
 	}
 
+	/**
+	 * True when anti cancels this event: the same stamped event, regardless
+	 * of status.
+	 */
+	public boolean matches(Event<V> anti) {
+		return serial != 0 && serial == anti.serial && srcID == anti.srcID && srcPort == anti.srcPort
+				&& dstID == anti.dstID && dstPort == anti.dstPort;
+	}
+
+	/**
+	 * Copy with status NOK, cancelling this event wherever it ends up.
+	 */
+	public Event<V> anti() {
+		Event<V> result = copy();
+		result.status = NOK;
+		return result;
+	}
+
 	public Event<V> copy() {
-		Event<V> result = new Event<V>();
+		return copy(new Event<V>());
+	}
+
+	/**
+	 * Copies every field, id included, into result.
+	 *
+	 * @return result
+	 */
+	public Event<V> copy(Event<V> result) {
 		result.srcID = srcID;
 		result.srcPort = srcPort;
 		result.lTime = lTime;
@@ -67,6 +116,8 @@ public class Event<V> implements Comparable<Event<V>>, Serializable {
 
 		result.lTimeCreated = lTimeCreated;
 		result.id = id;
+		result.deadline = deadline;
+		result.serial = serial;
 		result.data = data;
 
 		return result;
@@ -143,6 +194,22 @@ public class Event<V> implements Comparable<Event<V>>, Serializable {
 		this.dstPort = dstPort;
 	}
 
+	public long getDeadline() {
+		return deadline;
+	}
+
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	public long getSerial() {
+		return serial;
+	}
+
+	public void setSerial(long serial) {
+		this.serial = serial;
+	}
+
 	public V getData() {
 		return data;
 	}
@@ -0,0 +1,52 @@
+package rs.ac.bg.etf.sleep.simulation;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Source of event ids. Every simulator (job) has its own and binds it to
+ * the threads that run its components, a thread takes BLOCK ids at a time
+ * from the bound source, so handing one out is a plain increment. Threads
+ * that never bound one use a shared default source.
+ */
+public final class EventIds {
+	/** Ids a thread takes from its source at once. */
+	public static int BLOCK = 1024;
+
+	private static final EventIds shared = new EventIds();
+	private static final ThreadLocal<Cursor> cursors = ThreadLocal.withInitial(Cursor::new);
+
+	private final AtomicLong next = new AtomicLong();
+
+	private static final class Cursor {
+		EventIds source = shared;
+		long next;
+		long limit;
+	}
+
+	/**
+	 * Makes the calling thread take its ids from this source, until
+	 * another one is bound.
+	 */
+	public void bind() {
+		Cursor cursor = cursors.get();
+		if (cursor.source != this) {
+			cursor.source = this;
+			cursor.next = 0;
+			cursor.limit = 0;
+		}
+	}
+
+	/**
+	 * @return the next id of the source bound to the calling thread
+	 */
+	public static long next() {
+		Cursor cursor = cursors.get();
+		if (cursor.next == cursor.limit) {
+			int block = Math.max(1, BLOCK);
+			cursor.next = cursor.source.next.getAndAdd(block);
+			cursor.limit = cursor.next + block;
+		}
+		return cursor.next++;
+	}
+
+}
@@ -0,0 +1,98 @@
+package rs.ac.bg.etf.sleep.simulation;
+
+import java.util.*;
+
+/**
+ * Per thread free list of retired events. A simulator that keeps no history
+ * hands the events it executed and the ones its components produced back
+ * here once nothing refers to them any more, components and the netlist
+ * take their events from here instead of allocating new ones.
+ */
+public final class EventPool {
+	/**
+	 * Events kept per thread, 0 or less turns pooling off.
+	 */
+	public static int CAPACITY = 4096;
+
+	private static final ThreadLocal<EventPool> pools = ThreadLocal.withInitial(EventPool::new);
+
+	private Event<?>[] free;
+	private int size;
+
+	private EventPool() {
+		free = new Event<?>[64];
+		size = 0;
+	}
+
+	public static boolean enabled() {
+		return CAPACITY > 0;
+	}
+
+	/**
+	 * A retired event reset to what new Event() gives, including a fresh
+	 * id, or a new one when the pool is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <V> Event<V> obtain() {
+		EventPool pool = pools.get();
+		if (pool.size == 0) {
+			return new Event<V>();
+		}
+		Event<V> event = (Event<V>) pool.free[--pool.size];
+		pool.free[pool.size] = null;
+		event.lTimeCreated = 0;
+		event.lTime = 0;
+		event.srcID = 0;
+		event.srcPort = 0;
+		event.dstID = 0;
+		event.dstPort = 0;
+		event.status = Event.OK;
+		event.deadline = 0;
+		event.serial = 0;
+		event.id = EventIds.next();
+		return event;
+	}
+
+	public static <V> Event<V> obtain(long lTimeCreated, long lTime, long srcID, int srcPort, long dstID, int dstPort) {
+		Event<V> event = obtain();
+		event.lTimeCreated = lTimeCreated;
+		event.lTime = lTime;
+		event.srcID = srcID;
+		event.srcPort = srcPort;
+		event.dstID = dstID;
+		event.dstPort = dstPort;
+		return event;
+	}
+
+	/**
+	 * Takes back an event nobody refers to any more. Its data is dropped
+	 * right away, the event itself is kept while the pool has room.
+	 */
+	public static void release(Event<?> event) {
+		int capacity = CAPACITY;
+		if (event == null || capacity <= 0) {
+			return;
+		}
+		event.data = null;
+		EventPool pool = pools.get();
+		if (pool.size >= capacity) {
+			return;
+		}
+		if (pool.size == pool.free.length) {
+			pool.free = Arrays.copyOf(pool.free, Math.min(capacity, pool.size * 2));
+		}
+		pool.free[pool.size++] = event;
+	}
+
+	public static void release(List<? extends Event<?>> events) {
+		for (Event<?> event : events) {
+			release(event);
+		}
+	}
+
+	/** Events currently held by the calling thread's pool. */
+	public static int size() {
+		return pools.get().size;
+	}
+
+}
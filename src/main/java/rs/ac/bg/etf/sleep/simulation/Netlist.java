@@ -1,30 +1,125 @@
 package rs.ac.bg.etf.sleep.simulation;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.*;
 
 public class Netlist<V> implements Serializable {
+	/**
+	 * Ids below DIRECT are indexed through an array, the rest through a map.
+	 */
+	public static final int DIRECT = 1 << 16;
+
 	HashMap<Long, SimComponent<V>> components;
+	/**
+	 * The components again, by index. An id gets the next index the first
+	 * time it is added and keeps it, direct and sparse map ids to indices.
+	 * All of it is derived from components and built again on
+	 * deserialization.
+	 */
+	transient SimComponent<V>[] slots;
+	transient long[] ids;
+	transient int count;
+	transient int[] direct;
+	transient HashMap<Long, Integer> sparse;
 	HashMap<SimEndpoint, List<SimEndpoint>> connections;
+	/**
+	 * Smallest lTime difference between an event a component receives and
+	 * the events it sends through a given output port because of it.
+	 */
+	HashMap<SimEndpoint, Long> lookahead;
+	/**
+	 * connections compiled by {@link #freeze()}, null until then and again
+	 * after a connection is added.
+	 */
+	transient RoutingTable routes;
+	/**
+	 * Reusable lookup key, one per thread, for transforms before freeze.
+	 */
+	private static final ThreadLocal<SimEndpoint> probe = ThreadLocal.withInitial(SimEndpoint::new);
 
 	public Netlist() {
 		components = new HashMap<Long, SimComponent<V>>();
+		index();
 		connections = new HashMap<SimEndpoint, List<SimEndpoint>>();
+		lookahead = new HashMap<SimEndpoint, Long>();
 	}
 
 	public List<Event<V>> transform(List<Event<V>> events) {
 		List<Event<V>> result = new LinkedList<Event<V>>();
+		transform(events, result);
+		return result;
+	}
+
+	/**
+	 * Compiles the connections into a routing table that transform walks
+	 * without hashing or allocating. Simulators call it from init, whoever
+	 * changes the map returned by getConnections afterwards has to call it
+	 * again, addConnection drops the table by itself. It also catches up
+	 * with components put straight into the map returned by getComponents.
+	 */
+	public void freeze() {
+		reconcile();
+		routes = new RoutingTable(connections);
+	}
+
+	/**
+	 * A component replaced under an id it already had keeps the index and
+	 * takes the slot, any other change to the map indexes it again.
+	 */
+	private void reconcile() {
+		for (Map.Entry<Long, SimComponent<V>> entry : components.entrySet()) {
+			int index = indexOf(entry.getKey());
+			if (index < 0) {
+				index();
+				return;
+			}
+			slots[index] = entry.getValue();
+		}
+	}
+
+	public boolean isFrozen() {
+		return routes != null;
+	}
+
+	/**
+	 * Same as {@link #transform(List)}, adding the routed copies to out.
+	 * The copies come from the {@link EventPool}. A frozen netlist walks its
+	 * routing table, otherwise the map is looked up with a reusable key.
+	 */
+	public void transform(List<Event<V>> events, List<Event<V>> out) {
+		RoutingTable table = routes;
+		if (table != null) {
+			for (Event<V> event : events) {
+				int row = table.row(event.srcID, event.srcPort);
+				if (row < 0) {
+					continue;
+				}
+				for (int k = table.offsets[row], end = table.offsets[row + 1]; k < end; k++) {
+					Event<V> e = event.copy(EventPool.obtain());
+					e.dstID = table.dstIds[k];
+					e.dstPort = table.dstPorts[k];
+					out.add(e);
+				}
+			}
+			return;
+		}
+		SimEndpoint key = probe.get();
 		for (Event<V> event : events) {
-			List<SimEndpoint> endPoints = getEndpoins(event.srcID,
-					event.srcPort);
+			key.componentID = event.srcID;
+			key.componentPort = event.srcPort;
+			List<SimEndpoint> endPoints = connections.get(key);
+			if (endPoints == null) {
+				continue;
+			}
 			for (SimEndpoint endPoint : endPoints) {
-				Event<V> e = event.copy();
-				e.setDstID(endPoint.getComponentID());
-				e.setDstPort(endPoint.getComponentPort());
-				result.add(e);
+				Event<V> e = event.copy(EventPool.obtain());
+				e.dstID = endPoint.componentID;
+				e.dstPort = endPoint.componentPort;
+				out.add(e);
 			}
 		}
-		return result;
 	}
 
 	public List<SimEndpoint> getEndpoins(long srcID, int srcPort) {
@@ -32,16 +127,97 @@ public class Netlist<V> implements Serializable {
 		return connections.get(endPoint);
 	}
 
+	/**
+	 * Components put straight into this map are indexed again on the next
+	 * lookup when the map changes size, which renumbers them. A component
+	 * put under an id that is already there is only seen by the next
+	 * {@link #freeze()}, until then lookups return the old one. Either
+	 * should happen before a simulator's init, afterwards replace
+	 * components with {@link #addComponent(long, SimComponent)}.
+	 */
 	public HashMap<Long, SimComponent<V>> getComponents() {
 		return components;
 	}
 
 	public void setComponents(HashMap<Long, SimComponent<V>> components) {
 		this.components = components;
+		index();
 	}
 
 	public SimComponent<V> getComponent(long id) {
-		return components.get(id);
+		int index = indexOf(id);
+		return index < 0 ? null : slots[index];
+	}
+
+	public boolean contains(long id) {
+		return indexOf(id) >= 0;
+	}
+
+	/**
+	 * @return the index of id, in [0, getComponentCount()), or -1 when
+	 *         there is no such component
+	 */
+	public int indexOf(long id) {
+		if (components.size() != count) {
+			index();
+		}
+		if (id >= 0 && id < DIRECT) {
+			return id < direct.length ? direct[(int) id] : -1;
+		}
+		Integer result = sparse.get(id);
+		return result == null ? -1 : result;
+	}
+
+	public int getComponentCount() {
+		if (components.size() != count) {
+			index();
+		}
+		return count;
+	}
+
+	public SimComponent<V> getComponentAt(int index) {
+		return slots[index];
+	}
+
+	public long getComponentId(int index) {
+		return ids[index];
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		index();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void index() {
+		slots = (SimComponent<V>[]) new SimComponent<?>[16];
+		ids = new long[16];
+		count = 0;
+		direct = new int[0];
+		sparse = new HashMap<Long, Integer>();
+		for (Map.Entry<Long, SimComponent<V>> entry : components.entrySet()) {
+			int index = assign(entry.getKey());
+			slots[index] = entry.getValue();
+		}
+	}
+
+	private int assign(long id) {
+		if (count == slots.length) {
+			slots = Arrays.copyOf(slots, count * 2);
+			ids = Arrays.copyOf(ids, count * 2);
+		}
+		if (id >= 0 && id < DIRECT) {
+			if (id >= direct.length) {
+				int old = direct.length;
+				direct = Arrays.copyOf(direct, (int) Math.min(DIRECT, Math.max(id + 1, 2L * old)));
+				Arrays.fill(direct, old, direct.length, -1);
+			}
+			direct[(int) id] = count;
+		} else {
+			sparse.put(id, count);
+		}
+		ids[count] = id;
+		return count++;
 	}
 
 	public void setComponent(long id, SimComponent<V> component) {
@@ -55,10 +231,25 @@ public class Netlist<V> implements Serializable {
 	public void setConnections(
 			HashMap<SimEndpoint, List<SimEndpoint>> connections) {
 		this.connections = connections;
+		routes = null;
+	}
+
+	public long getLookahead(long srcID, int srcPort) {
+		Long result = lookahead.get(new SimEndpoint(srcID, srcPort));
+		return result == null ? 0 : result;
+	}
+
+	public HashMap<SimEndpoint, Long> getLookahead() {
+		return lookahead;
 	}
 
 	public void addComponent(long id, SimComponent<V> component) {
+		int index = indexOf(id);
 		components.put(id, component);
+		if (index < 0) {
+			index = assign(id);
+		}
+		slots[index] = component;
 	}
 
 	public void addComponent(String[][] data) {
@@ -75,17 +266,21 @@ public class Netlist<V> implements Serializable {
 			SimComponent<V> component = (SimComponent<V>) c.getDeclaredConstructor().newInstance(); // Java 9+
 			// SimComponent<V> component = (SimComponent<V>) c.newInstance(); // do Java 9
 			component.setState(data);
-			components.put(id, component);
+			addComponent(id, component);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 
 	}
 
+	/**
+	 * Rows are srcID srcPort dstID dstPort [lookahead], the lookahead is 0
+	 * when omitted.
+	 */
 	public void addConnection(String[][] data) {
 		for (String[] x : data) {
 			addConnection(Long.parseLong(x[0]), Integer.parseInt(x[1]), Long
-					.parseLong(x[2]), Integer.parseInt(x[3]));
+					.parseLong(x[2]), Integer.parseInt(x[3]), x.length > 4 ? Long.parseLong(x[4]) : 0);
 		}
 	}
 
@@ -98,6 +293,19 @@ public class Netlist<V> implements Serializable {
 			connections.put(srcEndPoint, endPoints);
 		}
 		endPoints.add(dstEndPoint);
+		routes = null;
+	}
+
+	/**
+	 * Same as {@link #addConnection(long, int, long, int)}, promising that
+	 * srcID sends nothing through srcPort earlier than lookahead after the
+	 * event that caused it. A port keeps the smallest promise it was given.
+	 */
+	public void addConnection(long srcID, int srcPort, long dstID, int dstPort, long lookahead) {
+		addConnection(srcID, srcPort, dstID, dstPort);
+		SimEndpoint srcEndPoint = new SimEndpoint(srcID, srcPort);
+		Long old = this.lookahead.get(srcEndPoint);
+		this.lookahead.put(srcEndPoint, old == null ? lookahead : Math.min(old, lookahead));
 	}
 
 	public String[][] getState() {
@@ -0,0 +1,106 @@
+package rs.ac.bg.etf.sleep.simulation;
+
+import java.util.*;
+
+/**
+ * Connections of a netlist compiled into compressed sparse rows. Every
+ * (component, port) pair is a row, row = base[index of component] + port,
+ * and its destinations are dstIds/dstPorts[offsets[row], offsets[row + 1])
+ * in the order they were connected.
+ */
+final class RoutingTable {
+	/**
+	 * Source ids are looked up through an array when they all fall in
+	 * [0, DENSE * number of sources + 1024), by binary search otherwise.
+	 */
+	static final int DENSE = 4;
+
+	/** Source component ids in ascending order. */
+	final long[] ids;
+	/** Index into ids by id, -1 for ids without connections, or null. */
+	final int[] direct;
+	/** First row and number of rows (highest port + 1) of every source. */
+	final int[] base;
+	final int[] ports;
+	final int[] offsets;
+	final long[] dstIds;
+	final int[] dstPorts;
+
+	RoutingTable(Map<SimEndpoint, List<SimEndpoint>> connections) {
+		SortedMap<Long, Integer> highest = new TreeMap<Long, Integer>();
+		int edges = 0;
+		for (Map.Entry<SimEndpoint, List<SimEndpoint>> entry : connections.entrySet()) {
+			SimEndpoint src = entry.getKey();
+			if (src.componentPort < 0 || entry.getValue().isEmpty()) {
+				continue;
+			}
+			highest.merge(src.componentID, src.componentPort, Math::max);
+			edges += entry.getValue().size();
+		}
+		int n = highest.size();
+		ids = new long[n];
+		base = new int[n];
+		ports = new int[n];
+		int rows = 0;
+		int i = 0;
+		for (Map.Entry<Long, Integer> entry : highest.entrySet()) {
+			ids[i] = entry.getKey();
+			base[i] = rows;
+			ports[i] = entry.getValue() + 1;
+			rows += ports[i];
+			i++;
+		}
+		long span = (long) DENSE * n + 1024;
+		if (n == 0 || (ids[0] >= 0 && ids[n - 1] < span)) {
+			direct = new int[n == 0 ? 0 : (int) ids[n - 1] + 1];
+			Arrays.fill(direct, -1);
+			for (i = 0; i < n; i++) {
+				direct[(int) ids[i]] = i;
+			}
+		} else {
+			direct = null;
+		}
+		int[] count = new int[rows + 1];
+		for (Map.Entry<SimEndpoint, List<SimEndpoint>> entry : connections.entrySet()) {
+			int row = row(entry.getKey().componentID, entry.getKey().componentPort);
+			if (row >= 0) {
+				count[row + 1] = entry.getValue().size();
+			}
+		}
+		offsets = new int[rows + 1];
+		for (int r = 0; r < rows; r++) {
+			offsets[r + 1] = offsets[r] + count[r + 1];
+		}
+		dstIds = new long[edges];
+		dstPorts = new int[edges];
+		for (Map.Entry<SimEndpoint, List<SimEndpoint>> entry : connections.entrySet()) {
+			int row = row(entry.getKey().componentID, entry.getKey().componentPort);
+			if (row < 0) {
+				continue;
+			}
+			int k = offsets[row];
+			for (SimEndpoint dst : entry.getValue()) {
+				dstIds[k] = dst.componentID;
+				dstPorts[k] = dst.componentPort;
+				k++;
+			}
+		}
+	}
+
+	/**
+	 * @return the row of (id, port), -1 when it has no connections
+	 */
+	int row(long id, int port) {
+		int i;
+		if (direct != null) {
+			i = id >= 0 && id < direct.length ? direct[(int) id] : -1;
+		} else {
+			i = Arrays.binarySearch(ids, id);
+		}
+		if (i < 0 || port < 0 || port >= ports[i]) {
+			return -1;
+		}
+		return base[i] + port;
+	}
+
+}
@@ -10,9 +10,57 @@ public interface SimBuffer<V> {
 
 	public Event<V> getEvent();
 
+	/**
+	 * Removes every event that shares the smallest pending lTime, in the
+	 * order getEvent would return them.
+	 */
 	public List<Event<V>> getEvents();
 
+	/**
+	 * Waits at most timeout ms for an event to become available. Buffers
+	 * that are only filled by the simulator itself return null at once when
+	 * they are empty, nothing could arrive while waiting.
+	 */
+	public default Event<V> pollEvent(long timeout) {
+		return isEmpty() ? null : getEvent();
+	}
+
 	public boolean isEmpty();
 
+	/**
+	 * Removes the pending event that anti cancels (see
+	 * {@link Event#matches(Event)}).
+	 *
+	 * @return false when no such event is pending
+	 */
+	public default boolean cancel(Event<V> anti) {
+		return false;
+	}
+
 	public long getMinrank();
+
+	/**
+	 * False when the buffer hands the events it is given to other threads
+	 * or nodes, the simulator then never recycles them.
+	 */
+	public default boolean ownsEvents() {
+		return true;
+	}
+
+	/**
+	 * Creates an empty buffer by name: local (PriorityQueue), heap (d-ary
+	 * heap) or calendar (calendar queue).
+	 */
+	public static <V> SimBuffer<V> create(String kind) {
+		switch (kind.toLowerCase()) {
+		case "local":
+			return new SimBufferLocal<V>();
+		case "heap":
+			return new SimBufferHeap<V>();
+		case "calendar":
+			return new SimBufferCalendar<V>();
+		default:
+			throw new IllegalArgumentException("Unknown buffer " + kind);
+		}
+	}
 }
\ No newline at end of file
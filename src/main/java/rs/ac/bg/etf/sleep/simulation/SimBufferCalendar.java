@@ -0,0 +1,249 @@
+package rs.ac.bg.etf.sleep.simulation;
+
+import java.util.*;
+
+/**
+ * Calendar queue (Brown, 1988): events are hashed by lTime into a ring of
+ * buckets, each a sorted list, covering one "year" of nb * width time
+ * units. Dequeue walks the ring from the last visited bucket, so both
+ * operations are O(1) on average as long as the width matches the spacing
+ * of pending events; the ring is resized and the width resampled whenever
+ * the size leaves [nb / 2, 2 * nb].
+ */
+public class SimBufferCalendar<T> implements SimBuffer<T> {
+	private static final int MIN_BUCKETS = 16;
+	private static final int SAMPLE = 25;
+
+	private static class Node<T> {
+		Event<T> event;
+		long time;
+		long tie;
+		long seq;
+		Node<T> next;
+	}
+
+	Node<T>[] buckets;
+	long width;
+	int size;
+	/** Bucket of the last dequeue and the end of its current year. */
+	int current;
+	long top;
+	long next;
+	private Node<T> free;
+
+	public SimBufferCalendar() {
+		this(MIN_BUCKETS, 1);
+	}
+
+	public SimBufferCalendar(int buckets, long width) {
+		size = 0;
+		next = 0;
+		free = null;
+		init(Math.max(MIN_BUCKETS, buckets), width, 0);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void init(int nb, long width, long start) {
+		buckets = (Node<T>[]) new Node<?>[nb];
+		this.width = Math.max(1, width);
+		position(start);
+	}
+
+	private int bucket(long time) {
+		return (int) Math.floorMod(Math.floorDiv(time, width), (long) buckets.length);
+	}
+
+	private void position(long time) {
+		current = bucket(time);
+		top = (Math.floorDiv(time, width) + 1) * width;
+	}
+
+	private static <T> boolean less(Node<T> a, Node<T> b) {
+		return a.time != b.time ? a.time < b.time : a.tie != b.tie ? a.tie < b.tie : a.seq < b.seq;
+	}
+
+	private void insert(Node<T> node) {
+		int i = bucket(node.time);
+		Node<T> head = buckets[i];
+		if (head == null || less(node, head)) {
+			node.next = head;
+			buckets[i] = node;
+		} else {
+			Node<T> prev = head;
+			while (prev.next != null && !less(node, prev.next)) {
+				prev = prev.next;
+			}
+			node.next = prev.next;
+			prev.next = node;
+		}
+		if (node.time < top - width) {
+			position(node.time);
+		}
+	}
+
+	@Override
+	public void putEvent(Event<T> event) {
+		Node<T> node = free;
+		if (node != null) {
+			free = node.next;
+		} else {
+			node = new Node<T>();
+		}
+		node.event = event;
+		node.time = event.lTime;
+		node.tie = event.tieKey();
+		node.seq = next++;
+		if (size == 0) {
+			position(node.time);
+		}
+		insert(node);
+		if (++size > 2 * buckets.length) {
+			resize(2 * buckets.length);
+		}
+	}
+
+	@Override
+	public void putEvents(List<Event<T>> events) {
+		for (Event<T> event : events) {
+			putEvent(event);
+		}
+	}
+
+	/**
+	 * Index of the bucket holding the smallest event, moving current and top
+	 * to it. Falls back to a direct search when a whole year is empty.
+	 */
+	private int find() {
+		int nb = buckets.length;
+		int i = current;
+		long t = top;
+		for (int k = 0; k < nb; k++) {
+			Node<T> head = buckets[i];
+			if (head != null && head.time < t) {
+				current = i;
+				top = t;
+				return i;
+			}
+			if (++i == nb) {
+				i = 0;
+			}
+			t += width;
+		}
+		int min = -1;
+		for (i = 0; i < nb; i++) {
+			if (buckets[i] != null && (min < 0 || less(buckets[i], buckets[min]))) {
+				min = i;
+			}
+		}
+		position(buckets[min].time);
+		return min;
+	}
+
+	@Override
+	public Event<T> getEvent() {
+		if (size == 0) {
+			throw new NoSuchElementException();
+		}
+		int i = find();
+		Node<T> node = buckets[i];
+		buckets[i] = node.next;
+		Event<T> result = node.event;
+		node.event = null;
+		node.next = free;
+		free = node;
+		if (--size < buckets.length / 2 && buckets.length > MIN_BUCKETS) {
+			resize(buckets.length / 2);
+		}
+		return result;
+	}
+
+	@Override
+	public List<Event<T>> getEvents() {
+		List<Event<T>> list = new LinkedList<Event<T>>();
+		Event<T> first = getEvent();
+		list.add(first);
+		while (size > 0 && getMinrank() == first.lTime) {
+			list.add(getEvent());
+		}
+		return list;
+	}
+
+	/**
+	 * Only the bucket anti hashes to is searched.
+	 */
+	@Override
+	public boolean cancel(Event<T> anti) {
+		int i = bucket(anti.lTime);
+		Node<T> prev = null;
+		for (Node<T> node = buckets[i]; node != null; prev = node, node = node.next) {
+			if (node.event.matches(anti)) {
+				if (prev == null) {
+					buckets[i] = node.next;
+				} else {
+					prev.next = node.next;
+				}
+				node.event = null;
+				node.next = free;
+				free = node;
+				size--;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public long getMinrank() {
+		return size == 0 ? Long.MAX_VALUE : buckets[find()].time;
+	}
+
+	/**
+	 * Rebuilds the ring with nb buckets and a width of three times the mean
+	 * gap between the distinct lTimes among the SAMPLE earliest events.
+	 */
+	private void resize(int nb) {
+		Node<T> all = null;
+		for (int i = 0; i < buckets.length; i++) {
+			Node<T> node = buckets[i];
+			while (node != null) {
+				Node<T> following = node.next;
+				node.next = all;
+				all = node;
+				node = following;
+			}
+		}
+		long[] sample = new long[SAMPLE];
+		int n = 0;
+		for (Node<T> node = all; node != null; node = node.next) {
+			long t = node.time;
+			if (n == SAMPLE && t >= sample[SAMPLE - 1]) {
+				continue;
+			}
+			int i = n < SAMPLE ? n++ : SAMPLE - 1;
+			for (; i > 0 && sample[i - 1] > t; i--) {
+				sample[i] = sample[i - 1];
+			}
+			sample[i] = t;
+		}
+		long gaps = 0;
+		int distinct = 0;
+		for (int i = 1; i < n; i++) {
+			if (sample[i] != sample[i - 1]) {
+				gaps += sample[i] - sample[i - 1];
+				distinct++;
+			}
+		}
+		init(nb, distinct == 0 ? width : 3 * gaps / distinct, n == 0 ? 0 : sample[0]);
+		while (all != null) {
+			Node<T> following = all.next;
+			insert(all);
+			all = following;
+		}
+	}
+
+}
@@ -0,0 +1,212 @@
+package rs.ac.bg.etf.sleep.simulation;
+
+import java.util.*;
+
+/**
+ * d-ary heap ordered by lTime, Event.tieKey and insertion order, with the
+ * keys kept in primitive arrays next to the events so sifting never calls
+ * compareTo.
+ */
+public class SimBufferHeap<T> implements SimBuffer<T> {
+	public static final int DEFAULT_ARITY = 4;
+
+	final int d;
+	Event<T>[] events;
+	long[] time;
+	long[] tie;
+	long[] seq;
+	int size;
+	long next;
+
+	public SimBufferHeap() {
+		this(DEFAULT_ARITY);
+	}
+
+	@SuppressWarnings("unchecked")
+	public SimBufferHeap(int arity) {
+		d = Math.max(2, arity);
+		events = (Event<T>[]) new Event<?>[64];
+		time = new long[64];
+		tie = new long[64];
+		seq = new long[64];
+		size = 0;
+		next = 0;
+	}
+
+	private void grow(int capacity) {
+		if (capacity <= events.length) {
+			return;
+		}
+		int n = Math.max(capacity, events.length * 2);
+		events = Arrays.copyOf(events, n);
+		time = Arrays.copyOf(time, n);
+		tie = Arrays.copyOf(tie, n);
+		seq = Arrays.copyOf(seq, n);
+	}
+
+	private void set(int i, Event<T> e, long t, long k, long q) {
+		events[i] = e;
+		time[i] = t;
+		tie[i] = k;
+		seq[i] = q;
+	}
+
+	private void move(int from, int to) {
+		set(to, events[from], time[from], tie[from], seq[from]);
+	}
+
+	private static boolean less(long t1, long k1, long q1, long t2, long k2, long q2) {
+		return t1 != t2 ? t1 < t2 : k1 != k2 ? k1 < k2 : q1 < q2;
+	}
+
+	private boolean less(int a, int b) {
+		return less(time[a], tie[a], seq[a], time[b], tie[b], seq[b]);
+	}
+
+	/**
+	 * Sifts entry i up, moving the hole instead of swapping.
+	 */
+	private void up(int i) {
+		Event<T> e = events[i];
+		long t = time[i];
+		long k = tie[i];
+		long q = seq[i];
+		while (i > 0) {
+			int parent = (i - 1) / d;
+			if (!less(t, k, q, time[parent], tie[parent], seq[parent])) {
+				break;
+			}
+			move(parent, i);
+			i = parent;
+		}
+		set(i, e, t, k, q);
+	}
+
+	private void down(int i) {
+		Event<T> e = events[i];
+		long t = time[i];
+		long k = tie[i];
+		long q = seq[i];
+		while (true) {
+			int first = i * d + 1;
+			if (first >= size) {
+				break;
+			}
+			int min = first;
+			for (int c = first + 1, last = Math.min(first + d, size); c < last; c++) {
+				if (less(c, min)) {
+					min = c;
+				}
+			}
+			if (!less(time[min], tie[min], seq[min], t, k, q)) {
+				break;
+			}
+			move(min, i);
+			i = min;
+		}
+		set(i, e, t, k, q);
+	}
+
+	private void append(Event<T> event) {
+		int i = size++;
+		events[i] = event;
+		time[i] = event.lTime;
+		tie[i] = event.tieKey();
+		seq[i] = next++;
+	}
+
+	@Override
+	public void putEvent(Event<T> event) {
+		grow(size + 1);
+		append(event);
+		up(size - 1);
+	}
+
+	/**
+	 * Appends all events and restores the heap with one bottom-up pass when
+	 * the batch is large compared to the heap, sifts them in one by one
+	 * otherwise. Array backed lists are walked by index, the iterator is
+	 * not always optimized away and this runs once per executed event.
+	 */
+	@Override
+	public void putEvents(List<Event<T>> events) {
+		int k = events.size();
+		grow(size + k);
+		boolean sift = k < size / 2;
+		if (events instanceof RandomAccess) {
+			for (int i = 0; i < k; i++) {
+				append(events.get(i));
+				if (sift) {
+					up(size - 1);
+				}
+			}
+		} else {
+			for (Event<T> event : events) {
+				append(event);
+				if (sift) {
+					up(size - 1);
+				}
+			}
+		}
+		if (sift) {
+			return;
+		}
+		for (int i = (size - 2) / d; i >= 0; i--) {
+			down(i);
+		}
+	}
+
+	@Override
+	public Event<T> getEvent() {
+		if (size == 0) {
+			throw new NoSuchElementException();
+		}
+		Event<T> result = events[0];
+		if (--size > 0) {
+			move(size, 0);
+			down(0);
+		}
+		events[size] = null;
+		return result;
+	}
+
+	@Override
+	public List<Event<T>> getEvents() {
+		List<Event<T>> list = new LinkedList<Event<T>>();
+		long first = getMinrank();
+		do {
+			list.add(getEvent());
+		} while (size > 0 && time[0] == first);
+		return list;
+	}
+
+	/**
+	 * Linear search, anti-messages are rare compared to dequeues.
+	 */
+	@Override
+	public boolean cancel(Event<T> anti) {
+		for (int i = 0; i < size; i++) {
+			if (events[i].matches(anti)) {
+				if (--size > i) {
+					move(size, i);
+					down(i);
+					up(i);
+				}
+				events[size] = null;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public long getMinrank() {
+		return size == 0 ? Long.MAX_VALUE : time[0];
+	}
+
+}
@@ -11,11 +11,18 @@ public class SimBufferLocal<T> implements SimBuffer<T> {
 	}
 
 	public void cancel(long time) {
-		for (Event<T> msg : queue) {
-			if (msg.lTime < time) {// ??
-				queue.remove(msg);
+		queue.removeIf(msg -> msg.lTime < time);
+	}
+
+	@Override
+	public boolean cancel(Event<T> anti) {
+		for (Iterator<Event<T>> it = queue.iterator(); it.hasNext();) {
+			if (it.next().matches(anti)) {
+				it.remove();
+				return true;
 			}
 		}
+		return false;
 	}
 
 	public void setSimulation(Netlist<T> simulation) {
@@ -42,7 +49,11 @@ public class SimBufferLocal<T> implements SimBuffer<T> {
 	@Override
 	public List<Event<T>> getEvents() {
 		List<Event<T>> list = new LinkedList<Event<T>>();
-		list.add(getEvent());
+		Event<T> first = getEvent();
+		list.add(first);
+		while (!queue.isEmpty() && queue.peek().lTime == first.lTime) {
+			list.add(queue.poll());
+		}
 		return list;
 	}
 
@@ -53,7 +64,7 @@ public class SimBufferLocal<T> implements SimBuffer<T> {
 
 	@Override
 	public long getMinrank() {
-		return 0;
+		return queue.isEmpty() ? Long.MAX_VALUE : queue.peek().lTime;
 	}
 
 }
@@ -5,6 +5,15 @@ import java.util.*;
 public interface SimComponent<V> {
 	List<Event<V>> execute(Event<V> msg);
 
+	/**
+	 * Same as {@link #execute(Event)}, adding the produced events to out.
+	 * Neither msg nor the produced events may be kept after the call, the
+	 * simulator reuses them (see {@link EventPool}).
+	 */
+	default void execute(Event<V> msg, List<Event<V>> out) {
+		out.addAll(execute(msg));
+	}
+
 	List<Event<V>> init();
 
 	String[] getState();
@@ -13,4 +22,21 @@ public interface SimComponent<V> {
 
 	void restart(long time);
 
+	/**
+	 * Captures everything execute may change, for a later restore. The
+	 * default goes through getState, components whose getState does not
+	 * cover their run time state, or is costly, should override both.
+	 */
+	default Object snapshot() {
+		return getState();
+	}
+
+	/**
+	 * Returns to a state taken by snapshot. The same state may be restored
+	 * more than once.
+	 */
+	default void restore(Object state) {
+		setState((String[]) state);
+	}
+
 }
\ No newline at end of file
@@ -16,38 +16,80 @@ public abstract class Simulator<V> {
 	List<Event<V>> pastReceivedEvent;
 	List<Event<V>> pastCreatedEvent;
 	Event<V> lastEvent;
+	PriorityQueue<Event<V>> wakeups;
 
 	long iteration;
 	long iterationTime;
 
+	/**
+	 * Ids of the events created while this simulator runs, bound to every
+	 * thread that executes its components.
+	 */
+	EventIds ids;
+
+	/**
+	 * Reused by every {@link #work(Event)}: what the component produced and
+	 * the routed copies of it.
+	 */
+	final List<Event<V>> produced;
+	final List<Event<V>> routed;
+
+	/**
+	 * Lower bound on the lTime of the event being executed and the held
+	 * back wakeups, read by other threads for the GVT.
+	 */
+	volatile long floor;
+	/**
+	 * Latest global virtual time, history older than it is dropped by
+	 * the simulator's own thread before its next event.
+	 */
+	volatile long gvt;
+	long collected;
+
 	public Simulator(int id) {
+		this(id, new SimBufferLocal<V>());
+	}
+
+	public Simulator(int id, SimBuffer<V> queue) {
 		pTime = 0;
 		end = false;
-		queue = new SimBufferLocal<V>();
+		this.queue = queue;
 		lTime = 0;
 		pastReceivedEvent = new LinkedList<Event<V>>();
 		pastCreatedEvent = new LinkedList<Event<V>>();
 		lastEvent = null;
+		wakeups = new PriorityQueue<Event<V>>(
+				Comparator.comparingLong(Event<V>::getlTime).thenComparingLong(Event<V>::getDeadline));
 		iteration = 0;
 		netlist = new Netlist<V>();
 		iterationTime = 0;
 		this.id = id;
 		this.endTime = Long.MAX_VALUE;
+		floor = Long.MIN_VALUE;
+		gvt = Long.MIN_VALUE;
+		collected = Long.MIN_VALUE;
+		produced = new ArrayList<Event<V>>();
+		routed = new ArrayList<Event<V>>();
+		ids = new EventIds();
 	}
 
 	public void init() {
+		ids.bind();
+		netlist.freeze();
 		Long[] keys = netlist.getComponents().keySet().toArray(Long[]::new);
 		for (Long key : keys) {
 			SimComponent<V> comp = netlist.getComponents().get(key);
 			List<Event<V>> events = comp.init();
 			queue.putEvents(events);
-			pastCreatedEvent.addAll(0, events);
+			pastCreated(events);
 		}
 	}
 
 	public void simulate() {
+		ids.bind();
 		while (!end) {
 			long start = System.currentTimeMillis();
+			commit();
 			execute();
 			long end = System.currentTimeMillis();
 			iterationTime = end - start;
@@ -55,10 +97,12 @@ public abstract class Simulator<V> {
 	}
 
 	public boolean loop() {
-		if (queue.isEmpty()) {
+		if (queue.isEmpty() && wakeups.isEmpty()) {
 			return false;
 		}
 
+		ids.bind();
+		commit();
 		execute();
 
 		pTime += calculateTime();
@@ -67,8 +111,163 @@ public abstract class Simulator<V> {
 
 	public abstract void execute();
 
+	/**
+	 * Rollback capable simulators record what they received and created,
+	 * the others keep no history.
+	 */
+	protected boolean keepsHistory() {
+		return false;
+	}
+
+	/**
+	 * Executed and produced events go back to the {@link EventPool}, unless
+	 * they are kept as history or the queue passes them on.
+	 */
+	protected boolean recycles() {
+		return EventPool.enabled() && !keepsHistory() && queue.ownsEvents();
+	}
+
+	protected void recycle(Event<V> event) {
+		if (recycles()) {
+			EventPool.release(event);
+		}
+	}
+
+	protected void recycle(List<Event<V>> events) {
+		if (recycles()) {
+			EventPool.release(events);
+		}
+	}
+
+	private void commit() {
+		long time = gvt;
+		if (time > collected) {
+			collected = time;
+			fossilCollect(time);
+		}
+	}
+
+	/**
+	 * Drops the history older than time, no event earlier than the GVT
+	 * can arrive any more, so nothing before it is ever rolled back.
+	 */
+	protected void fossilCollect(long time) {
+		fossilCollect(pastReceivedEvent, time);
+		fossilCollect(pastCreatedEvent, time);
+	}
+
+	private void fossilCollect(List<Event<V>> history, long time) {
+		// newest first
+		while (!history.isEmpty() && history.get(history.size() - 1).lTime < time) {
+			history.remove(history.size() - 1);
+		}
+	}
+
+	/**
+	 * Takes the next event to work on. Events with a deadline (wakeups a
+	 * component scheduled for itself) are held back until their deadline
+	 * passes, meanwhile the queued events that are not later than the
+	 * earliest held one run first. A held event keeps its lTime and is
+	 * delivered before its deadline when nothing that is not later than it
+	 * is queued and nothing can arrive any more: the queue's next event is
+	 * later, or it can not receive anything from outside.
+	 *
+	 * @return null when the queue was interrupted while waiting
+	 */
+	protected Event<V> nextEvent() {
+		while (true) {
+			long now = System.currentTimeMillis();
+			Event<V> held = wakeups.peek();
+			Event<V> event;
+			if (held == null) {
+				event = queue.getEvent();
+				if (event == null) {
+					return deliver(null);
+				}
+			} else if (!queue.isEmpty()) {
+				if (queue.getMinrank() > held.lTime) {
+					return deliver(wakeups.poll());
+				}
+				event = queue.getEvent();
+			} else {
+				event = held.deadline > now ? queue.pollEvent(held.deadline - now) : null;
+				if (event == null) {
+					return deliver(wakeups.poll());
+				}
+				if (event.lTime > held.lTime) {
+					hold(event);
+					return deliver(wakeups.poll());
+				}
+			}
+			if (event.deadline > now) {
+				hold(event);
+			} else {
+				return deliver(event);
+			}
+		}
+	}
+
+	/**
+	 * Takes the next event together with every other event that is due at
+	 * the same logical time. Wakeups whose deadline has not passed yet are
+	 * held back as in {@link #nextEvent()}.
+	 *
+	 * @param result
+	 *            cleared and filled with the events, the caller reuses it,
+	 *            left empty when the queue was interrupted
+	 */
+	protected void nextEvents(List<Event<V>> result) {
+		result.clear();
+		Event<V> first = nextEvent();
+		if (first == null) {
+			return;
+		}
+		result.add(first);
+		long now = System.currentTimeMillis();
+		while (!queue.isEmpty() && queue.getMinrank() == first.lTime) {
+			Event<V> event = queue.getEvent();
+			if (event.deadline > now) {
+				hold(event);
+			} else {
+				result.add(event);
+			}
+		}
+		while (!wakeups.isEmpty() && wakeups.peek().lTime == first.lTime && wakeups.peek().deadline <= now) {
+			result.add(wakeups.poll());
+		}
+	}
+
+	/**
+	 * Holds event back until its deadline, or until it is the next event
+	 * when it is later than a held wakeup.
+	 */
+	void hold(Event<V> event) {
+		wakeups.add(event);
+		floor = Math.min(floor, event.lTime);
+	}
+
+	/**
+	 * Publishes the floor before event is executed.
+	 */
+	private Event<V> deliver(Event<V> event) {
+		long result = event == null ? Long.MAX_VALUE : event.lTime;
+		for (Event<V> wakeup : wakeups) {
+			result = Math.min(result, wakeup.lTime);
+		}
+		floor = result;
+		return event;
+	}
+
 	protected void pastEvents(Event<V> lastEvent) {
-		pastReceivedEvent.add(0, lastEvent.copy());
+		if (keepsHistory()) {
+			pastReceivedEvent.add(0, lastEvent.copy());
+		}
+	}
+
+	protected void pastCreated(List<Event<V>> events) {
+		if (keepsHistory()) {
+			pastCreatedEvent.addAll(0, events);
+		}
 	}
 
 	public void work(Event<V> event) {
@@ -76,9 +275,13 @@ public abstract class Simulator<V> {
 		if(comp == null) {
 			return;
 		}
-		List<Event<V>> events = comp.execute(event);
-		queue.putEvents(netlist.transform(events));
-		pastCreatedEvent.addAll(0, events);
+		comp.execute(event, produced);
+		netlist.transform(produced, routed);
+		queue.putEvents(routed);
+		pastCreated(produced);
+		recycle(produced);
+		produced.clear();
+		routed.clear();
 		iteration++;
 	}
 
@@ -166,6 +369,37 @@ public abstract class Simulator<V> {
 		this.lastEvent = lastEvent;
 	}
 
+	/**
+	 * Lower bound on the lTime of any event the simulator holds outside of
+	 * its queue, safe to call from other threads.
+	 */
+	public long getFloor() {
+		return floor;
+	}
+
+	public long getGvt() {
+		return gvt;
+	}
+
+	/**
+	 * Called from any thread, the history is collected by the simulator's
+	 * own thread before it executes its next event.
+	 */
+	public void setGvt(long gvt) {
+		this.gvt = gvt;
+	}
+
+	public EventIds getEventIds() {
+		return ids;
+	}
+
+	/**
+	 * Simulators of the same job on one node may share their ids.
+	 */
+	public void setEventIds(EventIds ids) {
+		this.ids = ids;
+	}
+
 	public long getIteration() {
 		return iteration;
 	}
@@ -1,34 +1,267 @@
 package rs.ac.bg.etf.sleep.simulation;
 
-/// TODO: FIX THIS
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Conservative parallel simulator. The netlist is split into logical
+ * processes (LPs), each with its own queue. Every execute() runs one
+ * window: the events with lTime in [T, T + L), T being the smallest
+ * pending lTime and L the smallest lookahead of a connection between two
+ * LPs, or only the events at T when L is 0. A window stops short of
+ * endTime, the one that starts at or after it runs only the events at T.
+ * The LPs run the window in parallel and meet at a barrier, then the
+ * events they sent each other are queued in LP order, so the outcome does
+ * not depend on scheduling.
+ * <p>
+ * Events with the same lTime do not run in the order
+ * {@link SimulatorSinglethread} gives them: an LP runs the ties it sends
+ * itself in the same window, those from other LPs only in the next one. The
+ * single threaded order of ties is not fixed either, it depends on the
+ * buffer. Both engines end in the same state when no component depends on
+ * the order of the events it gets at the same lTime.
+ */
 public class SimulatorMultithread<T> extends Simulator<T> {
+	/**
+	 * Logical processes to split the netlist into, 0 or less uses one per
+	 * available core.
+	 */
+	public static int LPS = 0;
+
+	/**
+	 * LP of every component, by netlist index.
+	 */
+	int[] owner;
+	List<LogicalProcess> processes;
+	/**
+	 * The events and LPs of the current window, reused so a window does not
+	 * allocate.
+	 */
+	final List<Event<T>> batch = new ArrayList<Event<T>>();
+	final List<LogicalProcess> active = new ArrayList<LogicalProcess>();
+	long lookahead;
+	long windowStart;
+	long windowEnd;
+	long windows;
 
 	public SimulatorMultithread(int id) {
 		super(id);
 	}
 
-	private void synchronize() {
-		// TODO Auto-generated method stub
+	public SimulatorMultithread(int id, SimBuffer<T> queue) {
+		super(id, queue);
+	}
+
+	@Override
+	public void init() {
+		super.init();
+		partition(LPS > 0 ? LPS : Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Deals the components out to n LPs in id order and finds the smallest
+	 * lookahead among the connections that cross from one LP to another.
+	 */
+	void partition(int n) {
+		long[] ids = new long[netlist.getComponentCount()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = netlist.getComponentId(i);
+		}
+		Arrays.sort(ids);
+		n = Math.max(1, Math.min(n, ids.length));
+		owner = new int[ids.length];
+		processes = new ArrayList<LogicalProcess>(n);
+		for (int i = 0; i < n; i++) {
+			processes.add(new LogicalProcess(i));
+		}
+		for (int i = 0; i < ids.length; i++) {
+			owner[netlist.indexOf(ids[i])] = i % n;
+		}
+		lookahead = Long.MAX_VALUE;
+		for (Map.Entry<SimEndpoint, List<SimEndpoint>> entry : netlist.getConnections().entrySet()) {
+			SimEndpoint src = entry.getKey();
+			for (SimEndpoint dst : entry.getValue()) {
+				int from = owner(src.componentID);
+				int to = owner(dst.componentID);
+				if (from < 0 || to < 0 || from != to) {
+					lookahead = Math.min(lookahead, netlist.getLookahead(src.componentID, src.componentPort));
+				}
+			}
+		}
+	}
+
+	private boolean isTimeInTheRange(long time) {
+		return lookahead == 0 ? time == windowStart : time >= windowStart && time < windowEnd;
 	}
 
 	private boolean isTimeInTheRange(Event<T> m) {
-		// TODO Auto-generated method stub
-		return true;
+		return isTimeInTheRange(m.lTime);
+	}
+
+	/**
+	 * @return the LP of component id, -1 when it is not in the netlist
+	 */
+	private int owner(long id) {
+		int index = netlist.indexOf(id);
+		return index < 0 ? -1 : owner[index];
+	}
+
+	private void dispatch(Event<T> event) {
+		int lp = owner(event.dstID);
+		if (lp >= 0) {
+			processes.get(lp).local.putEvent(event);
+		}
+	}
+
+	/**
+	 * Runs the LPs that have work in this window and waits for all of them,
+	 * then queues what they produced for other LPs or later windows.
+	 */
+	private void synchronize() {
+		active.clear();
+		for (LogicalProcess lp : processes) {
+			if (!lp.local.isEmpty()) {
+				active.add(lp);
+			}
+		}
+		if (active.size() < 2 || ForkJoinPool.getCommonPoolParallelism() < 2) {
+			for (LogicalProcess lp : active) {
+				lp.call();
+			}
+		} else {
+			for (Future<Void> result : ForkJoinPool.commonPool().invokeAll(active)) {
+				try {
+					result.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					}
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		}
+		for (LogicalProcess lp : active) {
+			queue.putEvents(lp.out);
+			pastCreated(lp.created);
+			iteration += lp.executed;
+			lTime = Math.max(lTime, lp.lTime);
+			lp.out.clear();
+			lp.created.clear();
+			lp.executed = 0;
+		}
 	}
 
 	@Override
 	public void execute() {
-		Event<T> m = queue.getEvent();
-		if (!isTimeInTheRange(m)) {
-			queue.putEvent(m);
-			synchronize();
-			m = queue.getEvent();
+		nextEvents(batch);
+		if (batch.isEmpty()) {
+			end = true;
+			return;
+		}
+		lastEvent = batch.get(0);
+		windowStart = lastEvent.lTime;
+		windowEnd = windowStart + lookahead < windowStart ? Long.MAX_VALUE : windowStart + lookahead;
+		if (endTime < windowEnd) {
+			// a window without cross-LP connections would never stop
+			windowEnd = Math.max(windowStart, endTime);
+		}
+		if (!wakeups.isEmpty()) {
+			// nothing later than a held wakeup runs before it
+			windowEnd = Math.min(windowEnd, wakeups.peek().lTime + 1);
 		}
-		lastEvent = m;
-		lTime = lastEvent.lTime;
-		if (lastEvent.ok()) {
-			work(lastEvent);
+		for (Event<T> event : batch) {
+			dispatch(event);
 		}
+		while (lookahead > 0 && !queue.isEmpty() && isTimeInTheRange(queue.getMinrank())) {
+			Event<T> event = queue.getEvent();
+			if (event.deadline > System.currentTimeMillis()) {
+				hold(event);
+				windowEnd = Math.min(windowEnd, event.lTime + 1);
+			} else {
+				dispatch(event);
+			}
+		}
+		lTime = Math.max(lTime, windowStart);
+		synchronize();
+		windows++;
 		end = lTime >= endTime;
 	}
+
+	public long getWindows() {
+		return windows;
+	}
+
+	public long getLookahead() {
+		return lookahead;
+	}
+
+	/**
+	 * A share of the netlist with its own queue. Within a window it executes
+	 * its events in lTime order, including those it sends to itself. The
+	 * events it executed are recycled when it runs its next window, by then
+	 * the simulator no longer refers to them.
+	 */
+	class LogicalProcess implements Callable<Void> {
+		final int index;
+		final SimBuffer<T> local;
+		List<Event<T>> out;
+		List<Event<T>> created;
+		final List<Event<T>> produced;
+		final List<Event<T>> routed;
+		final List<Event<T>> retired;
+		long executed;
+		long lTime;
+
+		LogicalProcess(int index) {
+			this.index = index;
+			local = new SimBufferHeap<T>();
+			out = new ArrayList<Event<T>>();
+			created = new ArrayList<Event<T>>();
+			produced = new ArrayList<Event<T>>();
+			routed = new ArrayList<Event<T>>();
+			retired = new ArrayList<Event<T>>();
+			executed = 0;
+			lTime = 0;
+		}
+
+		@Override
+		public Void call() {
+			ids.bind();
+			recycle(retired);
+			retired.clear();
+			while (!local.isEmpty()) {
+				Event<T> event = local.getEvent();
+				lTime = Math.max(lTime, event.lTime);
+				retired.add(event);
+				if (!event.ok()) {
+					continue;
+				}
+				netlist.getComponent(event.dstID).execute(event, produced);
+				if (keepsHistory()) {
+					created.addAll(produced);
+				}
+				executed++;
+				long now = System.currentTimeMillis();
+				netlist.transform(produced, routed);
+				for (Event<T> e : routed) {
+					int lp = owner(e.dstID);
+					if (lp == index && e.deadline <= now && isTimeInTheRange(e)) {
+						local.putEvent(e);
+					} else if (lp >= 0 && lp != index && lookahead > 0 && e.lTime < windowEnd) {
+						throw new IllegalStateException("Event from " + e.srcID + ":" + e.srcPort + " at " + e.lTime
+								+ " breaks the lookahead of " + lookahead + " after " + event.lTime);
+					} else {
+						out.add(e);
+					}
+				}
+				recycle(produced);
+				produced.clear();
+				routed.clear();
+			}
+			return null;
+		}
+	}
 }
@@ -1,33 +1,302 @@
 package rs.ac.bg.etf.sleep.simulation;
 
-import java.io.*;
+import java.util.*;
 
+/**
+ * Time Warp: every event is executed as soon as it arrives. An event older
+ * than what its component already executed (a straggler) rolls the
+ * component back: the undone inputs go back to the queue and every event
+ * they produced is cancelled by an anti-message, which in turn rolls back
+ * its receiver if that one already executed it.
+ */
 public class SimulatorOptimistic<T> extends Simulator<T> {
+	/**
+	 * A state is saved before every CHECKPOINT-th event of a component,
+	 * a rollback restores the nearest older one and re-executes the events
+	 * in between (coasting forward).
+	 */
+	public static int CHECKPOINT = 1;
+
+	/**
+	 * An executed event, what it produced and, when it is a checkpoint, the
+	 * component's state before it.
+	 */
+	static class Processed<T> {
+		final Event<T> event;
+		final List<Event<T>> sent;
+		final Object state;
+
+		Processed(Event<T> event, List<Event<T>> sent, Object state) {
+			this.event = event;
+			this.sent = sent;
+			this.state = state;
+		}
+	}
+
+	/**
+	 * History of every component, by netlist index.
+	 */
+	List<List<Processed<T>>> processed;
+	/** Anti-messages that arrived before the event they cancel. */
+	List<Event<T>> pendingAnti;
+	long serial;
+
+	long rollbacks;
+	long secondaryRollbacks;
+	long rolledBack;
+	long maxDepth;
+	long coasted;
+	long antiMessages;
+	long annihilated;
 
 	public SimulatorOptimistic(int id) {
-		super(id);
+		this(id, new SimBufferLocal<T>());
+	}
+
+	public SimulatorOptimistic(int id, SimBuffer<T> queue) {
+		super(id, queue);
+		processed = new ArrayList<List<Processed<T>>>();
+		pendingAnti = new LinkedList<Event<T>>();
+		serial = 0;
 	}
 
+	@Override
+	public void init() {
+		ids.bind();
+		netlist.freeze();
+		Long[] keys = netlist.getComponents().keySet().toArray(Long[]::new);
+		for (Long key : keys) {
+			List<Event<T>> events = netlist.getComponents().get(key).init();
+			stamp(events);
+			queue.putEvents(events);
+			pastCreated(events);
+		}
+	}
+
+	/**
+	 * The simulation ends once the GVT reaches endTime, nothing before it
+	 * can be rolled back any more, or when the queue is interrupted. The
+	 * events from endTime on were executed speculatively and are undone.
+	 */
 	@Override
 	public void execute() {
-		Event<T> m = queue.getEvent();
-		if (lTime > m.lTime) {
-			restart(m.lTime);
+		if (gvt >= endTime) {
+			restart(endTime - 1);
+			end = true;
 			return;
 		}
+		Event<T> m = nextEvent();
 		lastEvent = m;
-		lTime = lastEvent.lTime;
-		if (lastEvent.ok()) {
-			work(lastEvent);
-			pastEvents(lastEvent);
+		if (m == null) {
+			end = true;
+			return;
+		}
+		if (netlist.getComponent(m.dstID) == null) {
+			return;
+		}
+		if (!m.ok()) {
+			cancel(m);
+			return;
+		}
+		for (Iterator<Event<T>> it = pendingAnti.iterator(); it.hasNext();) {
+			if (m.matches(it.next())) {
+				it.remove();
+				annihilated++;
+				return;
+			}
+		}
+		List<Processed<T>> history = history(m.dstID);
+		if (!history.isEmpty() && m.lTime < history.get(history.size() - 1).event.lTime) {
+			rollbacks++;
+			rollback(m.dstID, m.lTime, null);
+		}
+		lTime = m.lTime;
+		work(m);
+		pastEvents(m);
+	}
+
+	@Override
+	public void work(Event<T> event) {
+		SimComponent<T> comp = netlist.getComponent(event.dstID);
+		List<Processed<T>> history = history(event.dstID);
+		Object state = history.size() % Math.max(1, CHECKPOINT) == 0 ? comp.snapshot() : null;
+		List<Event<T>> events = comp.execute(event);
+		stamp(events);
+		List<Event<T>> sent = netlist.transform(events);
+		history.add(new Processed<T>(event, sent, state));
+		queue.putEvents(sent);
+		pastCreated(events);
+		iteration++;
+	}
+
+	private void stamp(List<Event<T>> events) {
+		for (Event<T> event : events) {
+			event.serial = ++serial;
+		}
+	}
+
+	private List<Processed<T>> history(long component) {
+		int index = netlist.indexOf(component);
+		while (processed.size() <= index) {
+			processed.add(new ArrayList<Processed<T>>());
+		}
+		return processed.get(index);
+	}
+
+	/**
+	 * Cancels the positive twin of anti: still queued or held back it is
+	 * simply dropped, already executed it is rolled back, not seen yet the
+	 * anti-message waits for it.
+	 */
+	private void cancel(Event<T> anti) {
+		if (queue.cancel(anti) || wakeups.removeIf(e -> e.matches(anti))) {
+			annihilated++;
+			return;
+		}
+		List<Processed<T>> history = history(anti.dstID);
+		for (int i = history.size() - 1; i >= 0; i--) {
+			Event<T> event = history.get(i).event;
+			if (event.lTime < anti.lTime) {
+				break;
+			}
+			if (event.matches(anti)) {
+				secondaryRollbacks++;
+				annihilated++;
+				undo(anti.dstID, i, event);
+				return;
+			}
 		}
+		pendingAnti.add(anti);
 	}
 
+	/**
+	 * Undoes every event component executed after time.
+	 */
+	private void rollback(long component, long time, Event<T> dropped) {
+		List<Processed<T>> history = history(component);
+		int k = history.size();
+		while (k > 0 && history.get(k - 1).event.lTime > time) {
+			k--;
+		}
+		undo(component, k, dropped);
+	}
+
+	/**
+	 * Undoes history[k..] of component. The inputs, except dropped, are
+	 * queued again before the outputs are cancelled, so an output the
+	 * component sent to itself is annihilated in the queue.
+	 */
+	private void undo(long component, int k, Event<T> dropped) {
+		List<Processed<T>> history = history(component);
+		int depth = history.size() - k;
+		if (depth <= 0) {
+			return;
+		}
+		SimComponent<T> comp = netlist.getComponent(component);
+		int j = k;
+		while (history.get(j).state == null) {
+			j--;
+		}
+		comp.restore(history.get(j).state);
+		for (int i = j; i < k; i++) {
+			comp.execute(history.get(i).event);
+			coasted++;
+		}
+		List<Processed<T>> undone = new ArrayList<Processed<T>>(history.subList(k, history.size()));
+		history.subList(k, history.size()).clear();
+		rolledBack += depth;
+		maxDepth = Math.max(maxDepth, depth);
+		for (Processed<T> p : undone) {
+			if (p.event != dropped) {
+				queue.putEvent(p.event);
+			}
+		}
+		for (Processed<T> p : undone) {
+			for (Event<T> event : p.sent) {
+				Event<T> anti = event.anti();
+				antiMessages++;
+				if (netlist.getComponent(anti.dstID) != null) {
+					cancel(anti);
+				} else {
+					queue.putEvent(anti);
+				}
+			}
+		}
+	}
+
+	@Override
+	protected boolean keepsHistory() {
+		return true;
+	}
+
+	/**
+	 * Keeps, per component, the events from time on, an anti-message may
+	 * still cancel one at time, and the checkpoint a rollback to them
+	 * would restore. The events from endTime on are kept for the rollback
+	 * that ends the simulation.
+	 */
+	@Override
+	protected void fossilCollect(long gvt) {
+		long time = Math.min(gvt, endTime);
+		super.fossilCollect(time);
+		for (List<Processed<T>> history : processed) {
+			int first = 0;
+			while (first < history.size() && history.get(first).event.lTime < time) {
+				first++;
+			}
+			if (first == history.size()) {
+				history.clear();
+				continue;
+			}
+			while (history.get(first).state == null) {
+				first--;
+			}
+			history.subList(0, first).clear();
+		}
+		pendingAnti.removeIf(anti -> anti.lTime < time);
+	}
+
+	/**
+	 * Rolls every component back to endTime.
+	 */
 	public void restart(long endTime) {
-		// queue.cancel(endTime);
 		for (Long l : netlist.getComponents().keySet()) {
-			netlist.getComponents().get(l).restart(endTime);
+			rollback(l, endTime, null);
 		}
 	}
 
-}
\ No newline at end of file
+	/** Rollbacks caused by stragglers. */
+	public long getRollbacks() {
+		return rollbacks;
+	}
+
+	/** Rollbacks caused by anti-messages for executed events. */
+	public long getSecondaryRollbacks() {
+		return secondaryRollbacks;
+	}
+
+	/** Executed events that were undone. */
+	public long getRolledBack() {
+		return rolledBack;
+	}
+
+	/** Most events undone by a single rollback. */
+	public long getMaxDepth() {
+		return maxDepth;
+	}
+
+	/** Events executed again while coasting forward from a checkpoint. */
+	public long getCoasted() {
+		return coasted;
+	}
+
+	public long getAntiMessages() {
+		return antiMessages;
+	}
+
+	/** Event and anti-message pairs that met and cancelled each other. */
+	public long getAnnihilated() {
+		return annihilated;
+	}
+
+}
@@ -6,13 +6,28 @@ public class SimulatorSinglethread<V> extends Simulator<V> {
 		super(id);
 	}
 
+	public SimulatorSinglethread(int id, SimBuffer<V> queue) {
+		super(id, queue);
+	}
+
+	/**
+	 * The previous event is recycled here, so {@link #getLastEvent()} stays
+	 * valid until the next call. The simulation ends with the first event at
+	 * endTime or later, or when the queue is interrupted.
+	 */
 	public void execute() {
-		lastEvent = queue.getEvent();
+		recycle(lastEvent);
+		lastEvent = nextEvent();
+		if (lastEvent == null) {
+			end = true;
+			return;
+		}
 		lTime = lastEvent.lTime;
 		if (lastEvent.ok()) {
 			work(lastEvent);
 			pastEvents(lastEvent);
 		}
+		end = lTime >= endTime;
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,251 @@
+package io.github.stcksmsh.kdp.common;
+
+import io.github.stcksmsh.kdp.distBuffer.EventList;
+import rs.ac.bg.etf.kdp.simulation.TestG;
+import rs.ac.bg.etf.kdp.simulation.components.FieldCodec;
+import rs.ac.bg.etf.sleep.simulation.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+/**
+ * Runs the N-body netlist with every event list passing through {@link MessageCodec} on its
+ * way into the queue and checks that the final state matches a run without it. Also prints
+ * the bytes the binary frames took next to what an ObjectOutputStream wrote for the same
+ * messages, and checks that the peer routes of a new job survive the codec. A third run
+ * compresses the bodies of the fields and must match too. Job handles must stay in step across a
+ * frame that fails to build and a job that ends. Field goes through the codec the N-body
+ * components register, ending the compressed job must report on it.
+ * <p>
+ * Arguments: [components] [connections], files in src/test/resources
+ */
+public class TestMessageCodec {
+
+    public static void main(String[] args) throws Exception {
+        String components = "./src/test/resources/" + (args.length > 0 ? args[0] : "komponente2-5000.txt");
+        String connections = "./src/test/resources/" + (args.length > 1 ? args[1] : "veze2-5000.txt");
+        MessageCodec.load(FieldCodec.class.getName());
+
+        Netlist<Object> plain = TestG.loadNetlist(components, connections);
+        run(plain, new SimBufferLocal<Object>());
+
+        Wire wire = new Wire(false);
+        Netlist<Object> coded = TestG.loadNetlist(components, connections);
+        run(coded, wire);
+
+        Wire compressedWire = new Wire(true);
+        Netlist<Object> compressed = TestG.loadNetlist(components, connections);
+        run(compressed, compressedWire);
+
+        System.out.printf("messages %d, binary %d bytes, compressed %d bytes, object stream %d bytes%n", wire.messages,
+                wire.binary.count, compressedWire.binary.count, wire.java.count);
+        MessageCodec.endJob(wire.jobId);
+        List<String> report = MessageCodec.endJob(compressedWire.jobId);
+        report.forEach(System.out::println);
+        List<String> expected = states(plain);
+        if (!expected.equals(states(coded))) {
+            System.out.println("FAILED: the state differs after the round trip");
+            System.exit(1);
+        }
+        if (!expected.equals(states(compressed))) {
+            System.out.println("FAILED: the state differs after the round trip with compression");
+            System.exit(1);
+        }
+        if (report.isEmpty() || MessageCodec.isCompressed(compressedWire.jobId)) {
+            System.out.println("FAILED: ending the compressed job did not report on it or left it compressed");
+            System.exit(1);
+        }
+        if (!routesSurvive()) {
+            System.out.println("FAILED: the peer port or the routes of a new job differ after the round trip");
+            System.exit(1);
+        }
+        if (!handlesSurvive()) {
+            System.out.println("FAILED: the job handles went out of step");
+            System.exit(1);
+        }
+        System.out.println("ok");
+    }
+
+    /**
+     * A frame that fails to build takes back the handle it gave out, a job that ended gets a new
+     * one when it comes back
+     */
+    static boolean handlesSurvive() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MessageCodec.Encoder encoder = new MessageCodec.Encoder(bytes);
+        Event<Object> unserializable = new Event<>();
+        unserializable.setData(new Object());
+        try {
+            encoder.write(new NetworkMessage.EventListMessage<>(new EventList<>("lost", List.of(unserializable), null, 0)));
+            return false;
+        } catch (NotSerializableException expected) {
+            // nothing of the frame was written
+        }
+        encoder.write(new NetworkMessage.GvtMessage("a", 1));
+        encoder.write(new NetworkMessage.KillJobMessage("a"));
+        encoder.write(new NetworkMessage.GvtMessage("b", 2));
+        encoder.write(new NetworkMessage.GvtMessage("a", 3));
+        encoder.write(new NetworkMessage.JobDoneMessage("b"));
+        encoder.write(new NetworkMessage.GvtMessage("a", 4));
+        MessageCodec.Decoder decoder = new MessageCodec.Decoder(new ByteArrayInputStream(bytes.toByteArray()));
+        List<String> read = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            NetworkMessage message = decoder.read();
+            read.add(switch (message.getType()) {
+                case GVT -> ((NetworkMessage.GvtMessage) message).getJobId() + ((NetworkMessage.GvtMessage) message).getGvt();
+                case KILL_JOB -> "kill " + ((NetworkMessage.KillJobMessage) message).getJobId();
+                case JOB_DONE -> "done " + ((NetworkMessage.JobDoneMessage) message).getJobId();
+                default -> message.getType().toString();
+            });
+        }
+        return read.equals(List.of("a1", "kill a", "b2", "a3", "done b", "a4"));
+    }
+
+    /**
+     * The sign on peer port and the routes of a new job, which the workers send events by
+     */
+    static boolean routesSurvive() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MessageCodec.Encoder encoder = new MessageCodec.Encoder(bytes);
+        Map<Long, String> owners = Map.of(1L, "A", 2L, "B", 3L, "B");
+        Map<String, InetSocketAddress> peers = Map.of("A", new InetSocketAddress("127.0.0.1", 4000),
+                "B", new InetSocketAddress("127.0.0.1", 4001));
+        encoder.write(new NetworkMessage.SignOnRequest(4000));
+        encoder.write(new NetworkMessage.NewJobMessage<>("job", new Netlist<Object>(), 10, "B", owners, peers));
+        encoder.write(new NetworkMessage.NewJobMessage<>("job", new Netlist<Object>(), 10));
+        MessageCodec.Decoder decoder = new MessageCodec.Decoder(new ByteArrayInputStream(bytes.toByteArray()));
+        NetworkMessage.SignOnRequest signOn = (NetworkMessage.SignOnRequest) decoder.read();
+        NetworkMessage.NewJobMessage<?> routed = (NetworkMessage.NewJobMessage<?>) decoder.read();
+        NetworkMessage.NewJobMessage<?> plain = (NetworkMessage.NewJobMessage<?>) decoder.read();
+        return signOn.getPeerPort() == 4000 && "B".equals(routed.getManagerId()) && owners.equals(routed.getOwners())
+                && peers.equals(routed.getPeers()) && plain.getManagerId() == null && plain.getOwners() == null;
+    }
+
+    static void run(Netlist<Object> netlist, SimBuffer<Object> queue) {
+        Simulator<Object> simulator = new SimulatorSinglethread<Object>(1, queue);
+        simulator.setNetlist(netlist);
+        simulator.init();
+        while (simulator.getlTime() < 10) {
+            simulator.execute();
+        }
+    }
+
+    static List<String> states(Netlist<Object> netlist) {
+        List<String> result = new ArrayList<>();
+        for (SimComponent<Object> c : netlist.getComponents().values()) {
+            result.add(String.join(" ", c.getState()));
+        }
+        return result;
+    }
+
+    /**
+     * A local queue that only receives what came out of the decoder
+     */
+    static class Wire implements SimBuffer<Object> {
+        final SimBuffer<Object> queue = new SimBufferLocal<Object>();
+        final Counter binary = new Counter();
+        final Counter java = new Counter();
+        final MessageCodec.Encoder encoder;
+        final MessageCodec.Decoder decoder;
+        final ObjectOutputStream objects;
+        final String jobId = UUID.randomUUID().toString();
+        long messages;
+
+        Wire(boolean compress) throws IOException {
+            MessageCodec.setCompressed(jobId, compress);
+            PipedInputStream in = new PipedInputStream(1 << 24);
+            PipedOutputStream out = new PipedOutputStream(in);
+            encoder = new MessageCodec.Encoder(new Tee(out, binary));
+            decoder = new MessageCodec.Decoder(in);
+            objects = new ObjectOutputStream(java);
+        }
+
+        @SuppressWarnings("unchecked")
+        List<Event<Object>> send(List<Event<Object>> events) {
+            NetworkMessage message = new NetworkMessage.EventListMessage<>(
+                    new EventList<>(jobId, new ArrayList<>(events), null, messages));
+            try {
+                encoder.write(message);
+                objects.writeObject(message);
+                objects.flush();
+                messages++;
+                NetworkMessage.EventListMessage<Object> received = (NetworkMessage.EventListMessage<Object>) decoder.read();
+                if (!received.getEventList().getJobId().equals(jobId)
+                        || received.getEventList().getRound() != messages - 1) {
+                    throw new IllegalStateException("Header changed on the way");
+                }
+                return received.getEventList().getEvents();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void putEvent(Event<Object> event) {
+            queue.putEvents(send(List.of(event)));
+        }
+
+        @Override
+        public void putEvents(List<Event<Object>> events) {
+            if (!events.isEmpty()) {
+                queue.putEvents(send(events));
+            }
+        }
+
+        @Override
+        public Event<Object> getEvent() {
+            return queue.getEvent();
+        }
+
+        @Override
+        public List<Event<Object>> getEvents() {
+            return queue.getEvents();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return queue.isEmpty();
+        }
+
+        @Override
+        public long getMinrank() {
+            return queue.getMinrank();
+        }
+    }
+
+    static class Counter extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    static class Tee extends FilterOutputStream {
+        final Counter counter;
+
+        Tee(OutputStream out, Counter counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            counter.write(b, off, len);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.write(b);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package io.github.stcksmsh.kdp.common;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Several producers write through one {@link SynchronizedObjectOutputStream} into a connection
+ * that is slow to flush. Checks that every message arrives, in order per producer, that the
+ * writer coalesced them into fewer flushes, and that a small queue made the producers stall
+ * instead of growing. Then a connection fails part way: every message the stream accepted must
+ * either have arrived or be handed back as unsent, in order. Last, a reply to a connection whose
+ * queue is full and whose writer is stuck must not wait, and must go out ahead of the queue.
+ * <p>
+ * Arguments: [producers] [messages per producer] [queue]
+ */
+public class TestSynchronizedObjectOutputStream {
+
+    public static void main(String[] args) throws Exception {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        SynchronizedObjectOutputStream.QUEUE = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+        Logger logger = Logger.getInstance("/tmp/TestSynchronizedObjectOutputStream.log");
+        PipedInputStream in = new PipedInputStream(1 << 20);
+        OutputStream slow = new FilterOutputStream(new PipedOutputStream(in)) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                super.flush();
+            }
+        };
+        SynchronizedObjectOutputStream stream = SynchronizedObjectOutputStream.open(slow, logger);
+
+        long[] next = new long[producers];
+        Thread reader = new Thread(() -> {
+            MessageCodec.Decoder decoder = new MessageCodec.Decoder(in);
+            try {
+                for (int i = 0; i < producers * messages; i++) {
+                    NetworkMessage.GvtRequest request = (NetworkMessage.GvtRequest) decoder.read();
+                    int producer = Integer.parseInt(request.getJobId());
+                    if (request.getRound() != next[producer]++) {
+                        System.out.println("FAILED: producer " + producer + " message " + request.getRound()
+                                + " arrived out of order");
+                        System.exit(1);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        });
+        reader.start();
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            String jobId = Integer.toString(p);
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < messages; i++) {
+                    if (!stream.writeObject(new NetworkMessage.GvtRequest(jobId, i))) {
+                        System.out.println("FAILED: write refused");
+                        System.exit(1);
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        reader.join(60_000);
+        System.out.println(stream.report());
+        if (reader.isAlive()) {
+            System.out.println("FAILED: not every message arrived");
+            System.exit(1);
+        }
+        if (SynchronizedObjectOutputStream.QUEUE > 0 && stream.getFlushes() >= stream.getWritten()) {
+            System.out.println("FAILED: messages were not coalesced");
+            System.exit(1);
+        }
+        if (stream.getMaxQueued() > SynchronizedObjectOutputStream.QUEUE) {
+            System.out.println("FAILED: the queue grew past its bound");
+            System.exit(1);
+        }
+        if (!failureKeepsMessages(logger)) {
+            System.exit(1);
+        }
+        if (!repliesDoNotWait(logger)) {
+            System.exit(1);
+        }
+        System.out.println("ok");
+    }
+
+    /**
+     * Bytes only arrive when a flush completes, the fifth flush fails
+     */
+    static boolean failureKeepsMessages(Logger logger) throws Exception {
+        ByteArrayOutputStream arrived = new ByteArrayOutputStream();
+        OutputStream failing = new OutputStream() {
+            final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+            int flushes;
+
+            @Override
+            public void write(int b) {
+                pending.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                pending.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (++flushes == 5) {
+                    throw new IOException("connection reset");
+                }
+                pending.writeTo(arrived);
+                pending.reset();
+            }
+        };
+        AtomicInteger failures = new AtomicInteger();
+        SynchronizedObjectOutputStream stream = SynchronizedObjectOutputStream.open(failing, logger, failures::incrementAndGet);
+        List<Long> accepted = new ArrayList<>();
+        for (long i = 0; i < 100_000 && !stream.isClosed(); i++) {
+            if (stream.writeObject(new NetworkMessage.GvtRequest("job", i))) {
+                accepted.add(i);
+            }
+        }
+        for (int i = 0; i < 1000 && failures.get() == 0; i++) {
+            Thread.sleep(10);
+        }
+        List<Long> received = new ArrayList<>();
+        MessageCodec.Decoder decoder = new MessageCodec.Decoder(new ByteArrayInputStream(arrived.toByteArray()));
+        try {
+            while (true) {
+                received.add(((NetworkMessage.GvtRequest) decoder.read()).getRound());
+            }
+        } catch (EOFException end) {
+            // everything that arrived is read
+        }
+        for (NetworkMessage message : stream.takeUnsent()) {
+            received.add(((NetworkMessage.GvtRequest) message).getRound());
+        }
+        if (failures.get() != 1 || stream.getFailure() == null) {
+            System.out.println("FAILED: the owner was told of the failure " + failures.get() + " times");
+            return false;
+        }
+        if (!received.equals(accepted) || !stream.takeUnsent().isEmpty()) {
+            System.out.println("FAILED: " + accepted.size() + " messages were accepted but " + received.size()
+                    + " arrived or came back unsent");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The first flush waits until the reply was queued, meanwhile a producer fills the queue
+     */
+    static boolean repliesDoNotWait(Logger logger) throws Exception {
+        int messages = 1000;
+        CountDownLatch gate = new CountDownLatch(1);
+        ByteArrayOutputStream arrived = new ByteArrayOutputStream();
+        OutputStream stuck = new FilterOutputStream(arrived) {
+            @Override
+            public void write(byte[] b, int off, int len) {
+                arrived.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        };
+        SynchronizedObjectOutputStream stream = SynchronizedObjectOutputStream.open(stuck, logger);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < messages; i++) {
+                stream.writeObject(new NetworkMessage.GvtRequest("job", i));
+            }
+        });
+        producer.start();
+        for (int i = 0; i < 1000 && stream.getStalls() == 0; i++) {
+            Thread.sleep(10);
+        }
+        Thread reply = new Thread(() -> stream.writeControl(new NetworkMessage.PingResponse()));
+        reply.start();
+        reply.join(5_000);
+        boolean waited = reply.isAlive();
+        gate.countDown();
+        producer.join(60_000);
+        for (int i = 0; i < 1000 && stream.getWritten() < messages + 1; i++) {
+            Thread.sleep(10);
+        }
+        if (waited) {
+            System.out.println("FAILED: a reply waited for the full queue");
+            return false;
+        }
+        List<NetworkMessage.MessageType> received = new ArrayList<>();
+        MessageCodec.Decoder decoder = new MessageCodec.Decoder(new ByteArrayInputStream(arrived.toByteArray()));
+        try {
+            while (true) {
+                received.add(decoder.read().getType());
+            }
+        } catch (EOFException end) {
+            // everything that arrived is read
+        }
+        int at = received.indexOf(NetworkMessage.MessageType.PING_RESPONSE);
+        if (received.size() != messages + 1 || at < 0 || at > messages - SynchronizedObjectOutputStream.QUEUE) {
+            System.out.println("FAILED: " + received.size() + " messages arrived, the reply as number " + at);
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,107 @@
+package io.github.stcksmsh.kdp.distBuffer;
+
+import io.github.stcksmsh.kdp.common.Logger;
+import rs.ac.bg.etf.kdp.simulation.TestG;
+import rs.ac.bg.etf.kdp.simulation.components.Bag;
+import rs.ac.bg.etf.sleep.simulation.*;
+
+import java.util.*;
+
+/**
+ * Runs 2-5000 to time 10 the way two worker nodes do, on two {@link DistributedSimBufferManager}s
+ * wired to each other, the Bag, the Collector and one Worker on the first and the other Worker on the second,
+ * once with the factoring schedule and once with fixed chunks of {@link Bag#NUM} bodies. Both
+ * runs must end in the same state, and the factoring run must not take much longer than the
+ * fixed one. The state compared is the first node's, the second may still be running.
+ */
+public class TestBagTiming {
+
+    static final String COMPONENTS = "./src/test/resources/komponente2-5000.txt";
+    static final String CONNECTIONS = "./src/test/resources/veze2-5000.txt";
+    static final long END = 10;
+
+    public static void main(String[] args) throws Exception {
+        int minChunk = Bag.MIN_CHUNK;
+        Bag.MIN_CHUNK = Bag.NUM;
+        List<String> fixed = new ArrayList<>();
+        long fixedMs = run(fixed);
+        Bag.MIN_CHUNK = minChunk;
+        List<String> factoring = new ArrayList<>();
+        long factoringMs = run(factoring);
+        System.out.println("fixed chunks " + fixedMs + " ms, factoring " + factoringMs + " ms");
+        check(factoring.equals(fixed), "the two schedules ended in different states");
+        check(factoringMs <= 2 * fixedMs + 2000, "factoring took " + factoringMs + " ms");
+        System.out.println("ok");
+    }
+
+    /**
+     * @return wall clock ms until the node with the Bag reached END
+     */
+    @SuppressWarnings("unchecked")
+    static long run(List<String> state) throws Exception {
+        Netlist<Object> full = TestG.loadNetlist(COMPONENTS, CONNECTIONS);
+        Set<Long> first = Set.of(1L, 2L, 3L);
+        Netlist<Object>[] parts = new Netlist[] { new Netlist<Object>(), new Netlist<Object>() };
+        for (Map.Entry<Long, SimComponent<Object>> entry : full.getComponents().entrySet()) {
+            parts[first.contains(entry.getKey()) ? 0 : 1].addComponent(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<SimEndpoint, List<SimEndpoint>> entry : full.getConnections().entrySet()) {
+            SimEndpoint src = entry.getKey();
+            // results reach the Collector an interval after their chunk
+            long lookahead = src.getComponentID() > 2 && src.getComponentPort() == 1 ? 1 : 0;
+            for (SimEndpoint dst : entry.getValue()) {
+                for (Netlist<Object> part : parts) {
+                    if (part.getComponent(src.getComponentID()) != null || part.getComponent(dst.getComponentID()) != null) {
+                        part.addConnection(src.getComponentID(), src.getComponentPort(), dst.getComponentID(),
+                                dst.getComponentPort(), lookahead);
+                    }
+                }
+            }
+        }
+        Logger logger = Logger.getInstance("/tmp/TestBagTiming.log");
+        DistributedSimBufferManager<Object>[] managers = new DistributedSimBufferManager[2];
+        for (int i = 0; i < 2; i++) {
+            int other = 1 - i;
+            managers[i] = new DistributedSimBufferManager<>(logger,
+                    message -> managers[other].giveEventList(message.getEventList()),
+                    message -> managers[other].givePromises(message.getPromises()));
+        }
+        List<Simulator<Object>> simulators = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            Simulator<Object> simulator = new SimulatorMultithread<>(i + 1);
+            simulator.setQueue(managers[i].newJob("job", parts[i]));
+            managers[i].attach("job", simulator);
+            simulator.setNetlist(parts[i]);
+            simulator.setEndTime(END);
+            simulators.add(simulator);
+        }
+        for (Simulator<Object> simulator : simulators) {
+            simulator.init();
+        }
+        long start = System.currentTimeMillis();
+        List<Thread> threads = new ArrayList<>();
+        for (Simulator<Object> simulator : simulators) {
+            Thread thread = new Thread(simulator::simulate);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        threads.get(0).join(300_000);
+        check(!threads.get(0).isAlive(), "the run did not reach " + END);
+        long result = System.currentTimeMillis() - start;
+        for (SimComponent<Object> component : parts[0].getComponents().values()) {
+            state.add(String.join(" ", component.getState()));
+        }
+        for (DistributedSimBufferManager<Object> manager : managers) {
+            manager.removeJob("job");
+        }
+        return result;
+    }
+
+    static void check(boolean condition, String failure) {
+        if (!condition) {
+            System.out.println("FAILED: " + failure);
+            System.exit(1);
+        }
+    }
+}
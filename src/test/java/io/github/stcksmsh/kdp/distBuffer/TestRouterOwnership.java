@@ -0,0 +1,74 @@
+package io.github.stcksmsh.kdp.distBuffer;
+
+import io.github.stcksmsh.kdp.common.Logger;
+import io.github.stcksmsh.kdp.common.NetworkMessage;
+import rs.ac.bg.etf.sleep.simulation.Event;
+
+import java.util.*;
+
+/**
+ * Sends event lists through a {@link DistributedSimBufferRouter} that knows the owners of the
+ * job's components and checks that every event reaches only its owner, and that the list's
+ * promises reach every other manager.
+ */
+public class TestRouterOwnership {
+
+    public static void main(String[] args) {
+        DistributedSimBufferRouter.GVT_INTERVAL = 0;
+        Logger logger = Logger.getInstance("/tmp/TestRouterOwnership.log");
+        DistributedSimBufferRouter router = new DistributedSimBufferRouter(logger);
+        Map<String, List<NetworkMessage>> received = new HashMap<>();
+        for (String id : List.of("A", "B", "C")) {
+            received.put(id, new ArrayList<>());
+            router.addManager(id, received.get(id)::add);
+        }
+        router.addJob("job", List.of("A", "B", "C"), Map.of(1L, "A", 2L, "B", 3L, "B", 4L, "C"));
+
+        Promises promises = new Promises("job", new long[] { 1 }, new int[] { 1 }, new long[] { 5 });
+        List<Event<Object>> events = List.of(event(1, 2), event(1, 3), event(1, 4), event(1, 2));
+        router.handleEventList(new NetworkMessage.EventListMessage<>(new EventList<>("job", events, promises, 0)), "A");
+        check(received.get("A").isEmpty(), "the sender got its own list back");
+        check(destinations(received.get("B")).equals(List.of(2L, 3L, 2L)), "B got " + destinations(received.get("B")));
+        check(destinations(received.get("C")).equals(List.of(4L)), "C got " + destinations(received.get("C")));
+
+        received.values().forEach(List::clear);
+        router.handleEventList(new NetworkMessage.EventListMessage<>(new EventList<>("job", List.of(event(1, 4)), promises, 0)), "A");
+        check(received.get("A").isEmpty(), "the sender got its own promises back");
+        check(received.get("B").size() == 1 && received.get("B").get(0) instanceof NetworkMessage.NullMessage,
+                "B did not get the promises in a null message");
+        check(destinations(received.get("C")).equals(List.of(4L)), "C got " + destinations(received.get("C")));
+
+        received.values().forEach(List::clear);
+        router.handleEventList(new NetworkMessage.EventListMessage<>(new EventList<>("job", List.of(event(4, 9)), null, 0)), "C");
+        check(received.values().stream().allMatch(List::isEmpty), "an event without an owner was forwarded");
+        System.out.println("ok");
+    }
+
+    static Event<Object> event(long src, long dst) {
+        Event<Object> event = new Event<>();
+        event.setSrcID(src);
+        event.setSrcPort(1);
+        event.setDstID(dst);
+        event.setDstPort(1);
+        return event;
+    }
+
+    static List<Long> destinations(List<NetworkMessage> messages) {
+        List<Long> result = new ArrayList<>();
+        for (NetworkMessage message : messages) {
+            if (message instanceof NetworkMessage.EventListMessage<?> list) {
+                for (Event<?> event : list.getEventList().getEvents()) {
+                    result.add(event.getDstID());
+                }
+            }
+        }
+        return result;
+    }
+
+    static void check(boolean condition, String failure) {
+        if (!condition) {
+            System.out.println("FAILED: " + failure);
+            System.exit(1);
+        }
+    }
+}
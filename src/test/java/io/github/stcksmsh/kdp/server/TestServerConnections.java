@@ -0,0 +1,89 @@
+package io.github.stcksmsh.kdp.server;
+
+import io.github.stcksmsh.kdp.common.NetworkMessage;
+import io.github.stcksmsh.kdp.common.SynchronisedObjectInputStream;
+import io.github.stcksmsh.kdp.common.SynchronizedObjectOutputStream;
+import io.github.stcksmsh.kdp.common.Logger;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Signs many clients on to a {@link ServerNode}, each answering its pings for a few rounds on a
+ * thread of its own, then checks that every client got its sign on response and pings, and that
+ * the server's thread count did not grow with the number of clients.
+ * <p>
+ * Arguments: [clients] [port]
+ */
+public class TestServerConnections {
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 9311;
+        SynchronizedObjectOutputStream.QUEUE = 0;
+        Logger logger = Logger.getInstance("/tmp/TestServerConnections.log");
+
+        ServerNode server = new ServerNode("/tmp/TestServerConnections.log", port);
+        server.start();
+        Set<Thread> before = Thread.getAllStackTraces().keySet();
+
+        int rounds = 3;
+        CountDownLatch signedOn = new CountDownLatch(clients);
+        CountDownLatch pinged = new CountDownLatch(clients);
+        AtomicInteger failed = new AtomicInteger();
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Socket socket = new Socket("127.0.0.1", port);
+            sockets.add(socket);
+            SynchronizedObjectOutputStream out = SynchronizedObjectOutputStream.open(socket.getOutputStream(), logger);
+            SynchronisedObjectInputStream in = new SynchronisedObjectInputStream(socket.getInputStream(), logger);
+            out.writeObject(new NetworkMessage.SignOnRequest());
+            Thread client = new Thread(() -> {
+                if (!(in.readObject() instanceof NetworkMessage.SignOnResponse)) {
+                    failed.incrementAndGet();
+                    return;
+                }
+                signedOn.countDown();
+                for (int round = 0; round < rounds; round++) {
+                    if (!(in.readObject() instanceof NetworkMessage.PingRequest)) {
+                        failed.incrementAndGet();
+                        return;
+                    }
+                    out.writeObject(new NetworkMessage.PingResponse());
+                }
+                pinged.countDown();
+            }, "client-" + i);
+            client.setDaemon(true);
+            client.start();
+        }
+        if (!signedOn.await(30, TimeUnit.SECONDS)) {
+            System.out.println("FAILED: " + signedOn.getCount() + " clients were not signed on");
+            System.exit(1);
+        }
+        int serverThreads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!before.contains(thread) && !thread.getName().startsWith("client-")) {
+                serverThreads++;
+            }
+        }
+        if (!pinged.await(30, TimeUnit.SECONDS) || failed.get() > 0) {
+            System.out.println("FAILED: " + (pinged.getCount() + failed.get()) + " clients were not pinged " + rounds + " times");
+            System.exit(1);
+        }
+        System.out.println(clients + " clients, " + serverThreads + " new threads after they connected");
+        if (serverThreads > 0) {
+            System.out.println("FAILED: the server started a thread per connection");
+            System.exit(1);
+        }
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        System.out.println("ok");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,147 @@
+package io.github.stcksmsh.kdp.worker;
+
+import io.github.stcksmsh.kdp.common.Logger;
+import io.github.stcksmsh.kdp.common.NetworkMessage;
+import io.github.stcksmsh.kdp.distBuffer.DistributedSimBufferManager;
+import io.github.stcksmsh.kdp.distBuffer.DistributedSimBufferRouter;
+import io.github.stcksmsh.kdp.distBuffer.EventList;
+import rs.ac.bg.etf.kdp.simulation.TestG;
+import rs.ac.bg.etf.sleep.simulation.*;
+
+import java.util.*;
+
+/**
+ * Runs 2-5000 to time 10 with every kdp.simulator option the way the worker nodes do: two
+ * {@link DistributedSimBufferManager}s behind a {@link DistributedSimBufferRouter} that also
+ * computes the GVT, each with a simulator given the end time and left to {@link Simulator#simulate()}.
+ * Both simulators must finish on their own and the components must end in the state a local
+ * {@link SimulatorSinglethread} reaches.
+ */
+public class TestSimulatorOptions {
+
+    static final String COMPONENTS = "./src/test/resources/komponente2-5000.txt";
+    static final String CONNECTIONS = "./src/test/resources/veze2-5000.txt";
+    static final long END = 10;
+
+    public static void main(String[] args) throws Exception {
+        DistributedSimBufferRouter.GVT_INTERVAL = 50;
+        Netlist<Object> local = TestG.loadNetlist(COMPONENTS, CONNECTIONS);
+        Simulator<Object> reference = new SimulatorSinglethread<>(1);
+        reference.setNetlist(local);
+        reference.init();
+        while (reference.getlTime() < END) {
+            reference.execute();
+        }
+        Map<Long, String> expected = states(local);
+
+        Logger logger = Logger.getInstance("/tmp/TestSimulatorOptions.log");
+        DistributedSimBufferRouter router = new DistributedSimBufferRouter(logger);
+        for (String option : List.of("single", "optimistic", "multithread")) {
+            Map<Long, String> result = run(router, option, logger);
+            check(result != null, option + " did not finish");
+            for (Map.Entry<Long, String> entry : expected.entrySet()) {
+                check(entry.getValue().equals(result.get(entry.getKey())),
+                        option + " ended component " + entry.getKey() + " in a different state");
+            }
+            System.out.println(option + " ok");
+        }
+        System.out.println("ok");
+    }
+
+    /**
+     * @return the components' states, null when a simulator did not finish in time
+     */
+    @SuppressWarnings("unchecked")
+    static Map<Long, String> run(DistributedSimBufferRouter router, String option, Logger logger) throws Exception {
+        String jobId = "job-" + option;
+        Netlist<Object> full = TestG.loadNetlist(COMPONENTS, CONNECTIONS);
+        String[] ids = { option + "-a", option + "-b" };
+        Set<Long> first = Set.of(1L, 2L, 3L);
+        Map<Long, String> owners = new HashMap<>();
+        Netlist<Object>[] parts = new Netlist[] { new Netlist<Object>(), new Netlist<Object>() };
+        for (Map.Entry<Long, SimComponent<Object>> entry : full.getComponents().entrySet()) {
+            int part = first.contains(entry.getKey()) ? 0 : 1;
+            parts[part].addComponent(entry.getKey(), entry.getValue());
+            owners.put(entry.getKey(), ids[part]);
+        }
+        for (Map.Entry<SimEndpoint, List<SimEndpoint>> entry : full.getConnections().entrySet()) {
+            SimEndpoint src = entry.getKey();
+            for (SimEndpoint dst : entry.getValue()) {
+                for (Netlist<Object> part : parts) {
+                    if (part.getComponent(src.getComponentID()) != null || part.getComponent(dst.getComponentID()) != null) {
+                        part.addConnection(src.getComponentID(), src.getComponentPort(), dst.getComponentID(),
+                                dst.getComponentPort(), full.getLookahead(src.getComponentID(), src.getComponentPort()));
+                    }
+                }
+            }
+        }
+
+        List<DistributedSimBufferManager<Object>> managers = new ArrayList<>();
+        for (String id : ids) {
+            managers.add(new DistributedSimBufferManager<>(logger,
+                    message -> router.handleEventList(message, id),
+                    message -> router.handleNullMessage(message, id)));
+        }
+        for (int i = 0; i < ids.length; i++) {
+            DistributedSimBufferManager<Object> manager = managers.get(i);
+            String id = ids[i];
+            router.addManager(id, message -> {
+                switch (message) {
+                    case NetworkMessage.EventListMessage<?> list ->
+                            manager.giveEventList((EventList<Object>) list.getEventList());
+                    case NetworkMessage.NullMessage promises -> manager.givePromises(promises.getPromises());
+                    case NetworkMessage.GvtRequest request -> {
+                        NetworkMessage.GvtReport report = manager.gvtReport(request.getJobId(), request.getRound());
+                        if (report != null) {
+                            router.handleGvtReport(report, id);
+                        }
+                    }
+                    case NetworkMessage.GvtMessage gvt -> manager.giveGvt(gvt.getJobId(), gvt.getGvt());
+                    default -> { }
+                }
+            });
+        }
+        router.addJob(jobId, List.of(ids), owners);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            Simulator<Object> simulator = switch (option) {
+                case "single" -> new SimulatorSinglethread<Object>(i + 1);
+                case "optimistic" -> new SimulatorOptimistic<Object>(i + 1);
+                default -> new SimulatorMultithread<Object>(i + 1);
+            };
+            simulator.setQueue(managers.get(i).newJob(jobId, parts[i]));
+            managers.get(i).attach(jobId, simulator);
+            simulator.setNetlist(parts[i]);
+            simulator.setEndTime(END);
+            simulator.init();
+            Thread thread = new Thread(simulator::simulate, jobId + "-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join(60_000);
+            if (thread.isAlive()) {
+                return null;
+            }
+        }
+        router.removeJob(jobId);
+        return states(full);
+    }
+
+    static Map<Long, String> states(Netlist<Object> netlist) {
+        Map<Long, String> result = new HashMap<>();
+        for (Map.Entry<Long, SimComponent<Object>> entry : netlist.getComponents().entrySet()) {
+            result.put(entry.getKey(), String.join(" ", entry.getValue().getState()));
+        }
+        return result;
+    }
+
+    static void check(boolean condition, String failure) {
+        if (!condition) {
+            System.out.println("FAILED: " + failure);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package rs.ac.bg.etf.kdp.simulation;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+import rs.ac.bg.etf.sleep.simulation.*;
+
+/**
+ * Compares the Barnes-Hut force mode against the direct-sum reference.
+ * Usage: TestBarnesHut komponente veze rezultati [theta...]
+ */
+public class TestBarnesHut {
+
+	public static void main(String[] args) {
+		try {
+			String components = "./src/test/resources/" + args[0];
+			String connections = "./src/test/resources/" + args[1];
+			String reference = "./src/test/resources/" + args[2];
+			Map<String, String[]> expected = bodies(readBag(reference));
+
+			List<String> modes = new LinkedList<String>();
+			modes.add("direct");
+			for (int i = 3; i < args.length; i++) {
+				modes.add("barnes_hut " + args[i]);
+			}
+			if (args.length == 3) {
+				modes.add("barnes_hut 0.3");
+				modes.add("barnes_hut 0.5");
+				modes.add("barnes_hut 0.8");
+			}
+			System.out.println("mode                 cpu[ms]   max rel err   mean rel err");
+			for (String mode : modes) {
+				Netlist<Object> netlist = TestG.loadNetlist(components, connections);
+				for (SimComponent<Object> c : netlist.getComponents().values()) {
+					String[] state = c.getState();
+					if (state[1].endsWith(".Worker")) {
+						c.setState((String.join(" ", state) + " " + mode).split(" "));
+					}
+				}
+				long cpu = run(netlist);
+				String[] actual = null;
+				for (SimComponent<Object> c : netlist.getComponents().values()) {
+					String[] state = c.getState();
+					if (state[1].endsWith(".Bag")) {
+						actual = state;
+					}
+				}
+				double max = 0;
+				double sum = 0;
+				int cnt = 0;
+				for (Map.Entry<String, String[]> body : bodies(actual).entrySet()) {
+					String[] e = expected.get(body.getKey());
+					for (int i = 0; i < e.length; i++) {
+						double a = Double.parseDouble(body.getValue()[i]);
+						double err = Math.abs(a - Double.parseDouble(e[i])) / Math.max(Math.abs(Double.parseDouble(e[i])), 1);
+						max = Math.max(max, err);
+						sum += err;
+						cnt++;
+					}
+				}
+				System.out.printf("%-20s %8d   %11.3e   %12.3e%n", mode, cpu / 1000000, max, sum / cnt);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static long run(Netlist<Object> netlist) {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		long start = bean.getCurrentThreadCpuTime();
+		Simulator<Object> simulator = new SimulatorSinglethread<Object>(1);
+		simulator.setNetlist(netlist);
+		simulator.init();
+		while (simulator.getlTime() < 10) {
+			simulator.execute();
+		}
+		return bean.getCurrentThreadCpuTime() - start;
+	}
+
+	/**
+	 * Bag bodies keyed by mass, the Bag state does not carry body ids and the
+	 * body order depends on how the run gathered its results.
+	 */
+	private static Map<String, String[]> bodies(String[] bag) {
+		Map<String, String[]> result = new HashMap<String, String[]>();
+		for (int i = 8; i + 7 <= bag.length; i += 7) {
+			result.put(bag[i], Arrays.copyOfRange(bag, i, i + 7));
+		}
+		return result;
+	}
+
+	private static String[] readBag(String file) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		String s;
+		String[] result = null;
+		while ((s = in.readLine()) != null) {
+			String[] state = s.split(" ");
+			if (state[1].endsWith(".Bag")) {
+				result = state;
+			}
+		}
+		in.close();
+		return result;
+	}
+}
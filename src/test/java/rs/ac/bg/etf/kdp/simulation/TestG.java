@@ -21,6 +21,9 @@ public class TestG {
 //			Simulator<Object> simulator = new SimulatorOptimistic<Object>(1);
 //			Simulator<Object> simulator = new SimulatorMultithread<Object>(1);
 
+			if (args.length > 3) {
+				simulator.setQueue(SimBuffer.create(args[3]));
+			}
 			simulator.setNetlist(netlist);
 			simulator.init();
 			while (simulator.getlTime() < 10) {
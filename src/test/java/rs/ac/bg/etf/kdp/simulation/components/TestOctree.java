@@ -0,0 +1,63 @@
+package rs.ac.bg.etf.kdp.simulation.components;
+
+import java.util.*;
+
+/**
+ * Checks one Barnes-Hut step against the direct sum on a uniform random
+ * cloud. The bodies start at rest and the interval is 1, so the velocity a
+ * step gives every body is its acceleration. The RMS relative error of
+ * those accelerations must stay under the bound of each theta.
+ * Usage: TestOctree [bodies] [seed]
+ */
+public class TestOctree {
+	private static final double[] THETA = { 0, 0.3, 0.5, 1.0 };
+	private static final double[] BOUND = { 1e-12, 2e-3, 1e-2, 5e-2 };
+
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+		Random random = new Random(seed);
+		Bodies bodies = new Bodies(n);
+		for (int i = 0; i < n; i++) {
+			Body b = new Body();
+			b.id = i;
+			b.m = 1e20 * (1 + random.nextDouble());
+			b.x = 1e9 * random.nextDouble();
+			b.y = 1e9 * random.nextDouble();
+			b.z = 1e9 * random.nextDouble();
+			bodies.add(b);
+		}
+		Field field = new Field();
+		field.coordinates = bodies;
+		field.interval = 1;
+		field.to = n;
+		Field direct = field.calculate();
+		Octree tree = new Octree(bodies);
+		boolean ok = true;
+		System.out.println("theta   rms rel err   bound");
+		for (int t = 0; t < THETA.length; t++) {
+			Field approx = field.calculate(tree, THETA[t]);
+			double num = 0;
+			double den = 0;
+			for (int k = 0; k < n; k++) {
+				double dx = approx.coordinates.vx[k] - direct.coordinates.vx[k];
+				double dy = approx.coordinates.vy[k] - direct.coordinates.vy[k];
+				double dz = approx.coordinates.vz[k] - direct.coordinates.vz[k];
+				num += dx * dx + dy * dy + dz * dz;
+				den += direct.coordinates.vx[k] * direct.coordinates.vx[k]
+						+ direct.coordinates.vy[k] * direct.coordinates.vy[k]
+						+ direct.coordinates.vz[k] * direct.coordinates.vz[k];
+			}
+			double err = Math.sqrt(num / den);
+			System.out.printf("%5.1f   %11.3e   %5.0e%n", THETA[t], err, BOUND[t]);
+			if (!(err < BOUND[t])) {
+				System.out.println("FAILED: theta " + THETA[t] + " gives " + err + " RMS relative error");
+				ok = false;
+			}
+		}
+		if (!ok) {
+			System.exit(1);
+		}
+		System.out.println("ok");
+	}
+}
@@ -0,0 +1,62 @@
+package rs.ac.bg.etf.kdp.simulation.components;
+
+import java.io.*;
+
+/**
+ * Times the tiled kernel against the direct loop on one serial step.
+ * Usage: TestTiled komponente [chunk...]
+ */
+public class TestTiled {
+	private static final int REPEAT = 5;
+
+	public static void main(String[] args) {
+		try {
+			BufferedReader in = new BufferedReader(new FileReader("./src/test/resources/" + args[0]));
+			String[] state = in.readLine().split(" ");
+			in.close();
+			int m = Integer.parseInt(state[5]);
+			Bodies bodies = Bodies.parse(state, 8, m);
+			int[] chunks = args.length > 1 ? new int[args.length - 1] : new int[] { Bag.NUM, m };
+			for (int i = 1; i < args.length; i++) {
+				chunks[i - 1] = Integer.parseInt(args[i]);
+			}
+			Field.MIN_SPLIT = 0;
+			System.out.println("chunk  block   direct[ms]  tiled[ms]  speedup   rms rel diff");
+			for (int chunk : chunks) {
+				Field field = new Field();
+				field.coordinates = bodies;
+				field.interval = 1;
+				field.to = Math.min(chunk, m);
+				Field direct = null;
+				long directTime = Long.MAX_VALUE;
+				for (int r = 0; r < REPEAT; r++) {
+					long start = System.nanoTime();
+					direct = field.calculate();
+					directTime = Math.min(directTime, System.nanoTime() - start);
+				}
+				for (int block : new int[] { 64, 256, 1024 }) {
+					Field tiled = null;
+					long tiledTime = Long.MAX_VALUE;
+					for (int r = 0; r < REPEAT; r++) {
+						long start = System.nanoTime();
+						tiled = field.calculateTiled(block);
+						tiledTime = Math.min(tiledTime, System.nanoTime() - start);
+					}
+					double num = 0;
+					double den = 0;
+					for (int k = 0; k < field.size(); k++) {
+						int i = field.from + k;
+						double d = direct.coordinates.vx[k] - bodies.vx[i];
+						double t = tiled.coordinates.vx[k] - bodies.vx[i];
+						num += (d - t) * (d - t);
+						den += d * d;
+					}
+					System.out.printf("%5d  %5d   %10.1f  %9.1f  %7.2f   %12.3e%n", field.size(), block,
+							directTime / 1e6, tiledTime / 1e6, (double) directTime / tiledTime, Math.sqrt(num / den));
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package rs.ac.bg.etf.sleep.simulation;
+
+import java.lang.management.*;
+import java.util.*;
+
+/**
+ * Allocation profile of the engines: a ring of relays passes tokens around,
+ * every event makes the next relay send one event on. Once warmed up the
+ * loop should not allocate at all with the {@link EventPool} on, the bytes
+ * per event are also printed with it off. The single threaded engine runs
+ * the ring on every buffer, the LP engine on the heap its LPs use and
+ * {@link #LPS} logical processes. Bytes are counted over every thread, the
+ * LPs may run on the common pool.
+ *
+ * Arguments: [events] [relays] [tokens]
+ */
+public class TestAllocation {
+	/** Bytes per event a pooled run may allocate. */
+	static final double LIMIT = 1;
+	/** Events executed before measuring, enough for the JIT to settle. */
+	static final int WARMUP = 1000000;
+	/** Logical processes of the LP engine's run. */
+	static final int LPS = 4;
+
+	public static void main(String[] args) {
+		int events = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		int relays = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		int tokens = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			System.out.println("Thread allocation counters are not supported");
+			return;
+		}
+		int capacity = EventPool.CAPACITY;
+		double pooled = 0;
+		System.out.printf("%12s %10s %8s %12s%n", "engine", "buffer", "pool", "bytes/event");
+		List<String> engines = new ArrayList<String>();
+		for (String buffer : TestSimBuffer.BUFFERS) {
+			engines.add("single " + buffer);
+		}
+		engines.add("multi heap");
+		for (String engine : engines) {
+			String[] parts = engine.split(" ");
+			for (boolean pool : new boolean[] { true, false }) {
+				EventPool.CAPACITY = pool ? capacity : 0;
+				Simulator<Object> simulator = ring(parts[0], parts[1], relays, tokens);
+				run(simulator, WARMUP);
+				long executed = simulator.iteration;
+				long before = allocated(threads);
+				run(simulator, events);
+				double bytes = (allocated(threads) - before) / (double) (simulator.iteration - executed);
+				System.out.printf("%12s %10s %8s %12.2f%n", parts[0], parts[1], pool ? "on" : "off", bytes);
+				if (pool) {
+					pooled = Math.max(pooled, bytes);
+				}
+			}
+		}
+		EventPool.CAPACITY = capacity;
+		if (pooled > LIMIT) {
+			System.out.println("FAILED: the pooled loop allocates " + pooled + " bytes per event");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Bytes allocated so far by the live threads.
+	 */
+	static long allocated(com.sun.management.ThreadMXBean threads) {
+		long total = 0;
+		for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			total += Math.max(0, bytes);
+		}
+		return total;
+	}
+
+	/**
+	 * @param engine single or multi
+	 */
+	static Simulator<Object> ring(String engine, String buffer, int relays, int tokens) {
+		Netlist<Object> netlist = new Netlist<Object>();
+		// ids stay within the Long cache, so component lookups do not box
+		for (int i = 1; i <= relays; i++) {
+			netlist.addComponent(i, new Relay(i, i <= tokens));
+			netlist.addConnection(i, 1, i % relays + 1, 0);
+		}
+		Simulator<Object> simulator;
+		if (engine.equals("multi")) {
+			SimulatorMultithread.LPS = LPS;
+			simulator = new SimulatorMultithread<Object>(1, SimBuffer.create(buffer));
+		} else {
+			simulator = new SimulatorSinglethread<Object>(1, SimBuffer.create(buffer));
+		}
+		simulator.setNetlist(netlist);
+		simulator.init();
+		return simulator;
+	}
+
+	/**
+	 * Executes at least events events, the LP engine runs several per step.
+	 */
+	static void run(Simulator<Object> simulator, int events) {
+		long until = simulator.iteration + events;
+		while (simulator.iteration < until) {
+			simulator.execute();
+		}
+	}
+
+	/**
+	 * Sends every event it gets on through port 1, 1 to 3 time units later.
+	 */
+	static class Relay implements SimComponent<Object> {
+		final long id;
+		final boolean token;
+		long lTime;
+
+		Relay(long id, boolean token) {
+			this.id = id;
+			this.token = token;
+		}
+
+		@Override
+		public List<Event<Object>> execute(Event<Object> msg) {
+			List<Event<Object>> result = new ArrayList<Event<Object>>();
+			execute(msg, result);
+			return result;
+		}
+
+		@Override
+		public void execute(Event<Object> msg, List<Event<Object>> out) {
+			lTime = msg.lTime;
+			out.add(EventPool.obtain(lTime, lTime + 1 + id % 3, id, 1, 0, 0));
+		}
+
+		@Override
+		public List<Event<Object>> init() {
+			List<Event<Object>> result = new ArrayList<Event<Object>>();
+			if (token) {
+				result.add(new Event<Object>(0, id, id - 1, 1, id, 0));
+			}
+			return result;
+		}
+
+		@Override
+		public String[] getState() {
+			return new String[] { "" + id, getClass().getName(), "" + lTime };
+		}
+
+		@Override
+		public void setState(String[] args) {
+			lTime = Long.parseLong(args[2]);
+		}
+
+		@Override
+		public void restart(long time) {
+			lTime = time;
+		}
+	}
+
+}
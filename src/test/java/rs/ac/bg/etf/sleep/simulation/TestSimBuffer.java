@@ -0,0 +1,76 @@
+package rs.ac.bg.etf.sleep.simulation;
+
+import java.util.*;
+
+/**
+ * Hold model benchmark of the SimBuffer implementations: the buffer is
+ * filled with n events, then every operation removes the smallest event
+ * and schedules a new one at its lTime plus a random increment. Also
+ * checks that the events come out in lTime order.
+ *
+ * Arguments: [holds per size] [sizes...]
+ */
+public class TestSimBuffer {
+	static final String[] BUFFERS = { "local", "heap", "calendar" };
+	static final String[] DISTRIBUTIONS = { "exponential", "uniform", "bimodal" };
+
+	public static void main(String[] args) {
+		int holds = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int[] sizes = { 1000, 10000, 100000 };
+		if (args.length > 1) {
+			sizes = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				sizes[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+		System.out.printf("%-12s %8s %10s %10s%n", "distribution", "size", "buffer", "ns/hold");
+		for (String distribution : DISTRIBUTIONS) {
+			for (int n : sizes) {
+				for (String buffer : BUFFERS) {
+					// warm up, then measure
+					hold(SimBuffer.create(buffer), distribution, n, holds / 4);
+					double ns = hold(SimBuffer.create(buffer), distribution, n, holds);
+					System.out.printf("%-12s %8d %10s %10.1f%n", distribution, n, buffer, ns);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Increments are in microseconds of a mean 100 ms step, fine enough that
+	 * equal lTimes are rare, as in the classic hold model.
+	 */
+	static long increment(Random random, String distribution) {
+		switch (distribution) {
+		case "uniform":
+			return random.nextInt(200000);
+		case "bimodal":
+			return random.nextInt(10) < 9 ? random.nextInt(10000) : 1000000 + random.nextInt(100000);
+		default:
+			return (long) (-100000 * Math.log(1 - random.nextDouble()));
+		}
+	}
+
+	static double hold(SimBuffer<Object> buffer, String distribution, int n, int holds) {
+		Random random = new Random(42);
+		List<Event<Object>> initial = new ArrayList<Event<Object>>(n);
+		for (int i = 0; i < n; i++) {
+			Event<Object> event = new Event<Object>(0, increment(random, distribution), i % 64, 0, (i * 7) % 64, 0);
+			initial.add(event);
+		}
+		buffer.putEvents(initial);
+		long last = Long.MIN_VALUE;
+		long start = System.nanoTime();
+		for (int i = 0; i < holds; i++) {
+			Event<Object> event = buffer.getEvent();
+			if (event.lTime < last) {
+				throw new IllegalStateException(distribution + " " + n + ": " + event.lTime + " after " + last);
+			}
+			last = event.lTime;
+			event.lTime += increment(random, distribution);
+			buffer.putEvent(event);
+		}
+		return (System.nanoTime() - start) / (double) holds;
+	}
+
+}
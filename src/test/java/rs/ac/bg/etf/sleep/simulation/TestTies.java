@@ -0,0 +1,161 @@
+package rs.ac.bg.etf.sleep.simulation;
+
+import java.util.*;
+
+/**
+ * Same lTime ties in the LP engine: a ring of mixers where every event at T
+ * makes its component send itself and its neighbour events at T again, a
+ * few hops deep, and the component after that one a new event later on. The
+ * ties are executed in another order than by {@link SimulatorSinglethread},
+ * but every mixer only adds up what it gets, so any order gives the same
+ * result. The ring runs with zero delay links, which make every window hold
+ * only the events at T, and with delayed ones, whose windows span several
+ * times, on every buffer of the single threaded engine and on several LP
+ * counts, and every run must end with the mixers in the same state.
+ *
+ * Arguments: [mixers] [end time]
+ */
+public class TestTies {
+
+	public static void main(String[] args) {
+		int mixers = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+		long end = args.length > 1 ? Long.parseLong(args[1]) : 50;
+		for (boolean zero : new boolean[] { true, false }) {
+			List<String> expected = null;
+			String first = null;
+			List<String> engines = new ArrayList<String>();
+			for (String buffer : TestSimBuffer.BUFFERS) {
+				engines.add("single " + buffer);
+			}
+			for (int lps : new int[] { 1, 2, 3, mixers }) {
+				engines.add("multi " + lps);
+			}
+			for (String engine : engines) {
+				String[] parts = engine.split(" ");
+				Netlist<Object> netlist = ring(mixers, zero, end);
+				Simulator<Object> simulator;
+				if (parts[0].equals("multi")) {
+					SimulatorMultithread.LPS = Integer.parseInt(parts[1]);
+					simulator = new SimulatorMultithread<Object>(1, SimBuffer.create("heap"));
+				} else {
+					simulator = new SimulatorSinglethread<Object>(1, SimBuffer.create(parts[1]));
+				}
+				simulator.setNetlist(netlist);
+				simulator.init();
+				while (simulator.loop()) {
+				}
+				List<String> state = new ArrayList<String>();
+				for (SimComponent<Object> component : netlist.getComponents().values()) {
+					state.add(String.join(" ", component.getState()));
+				}
+				if (expected == null) {
+					expected = state;
+					first = engine;
+				} else if (!state.equals(expected)) {
+					System.out.println("FAILED: " + engine + " and " + first + " differ with "
+							+ (zero ? "zero delay" : "delayed") + " links");
+					System.exit(1);
+				}
+			}
+			System.out.println((zero ? "zero delay" : "delayed") + " links ok");
+		}
+		System.out.println("ok");
+	}
+
+	/**
+	 * Mixer i sends itself events through port 0, mixer i + 1 through port 1
+	 * and mixer i + 2 through port 2.
+	 */
+	static Netlist<Object> ring(int mixers, boolean zero, long end) {
+		long next = zero ? 0 : 2;
+		long later = zero ? 1 : 3;
+		Netlist<Object> netlist = new Netlist<Object>();
+		for (int i = 1; i <= mixers; i++) {
+			netlist.addComponent(i, new Mixer(i, next, later, end));
+			netlist.addConnection(i, 0, i, 0);
+			netlist.addConnection(i, 1, i % mixers + 1, 0, next);
+			netlist.addConnection(i, 2, (i + 1) % mixers + 1, 0, later);
+		}
+		return netlist;
+	}
+
+	/**
+	 * Adds up the events it gets, none of its sums depends on their order.
+	 * An event carries a value, its lowest two bits count the hops it made
+	 * at the same time: hops 0 and 1 go on to the mixer itself, hops 0 to 2
+	 * to the next mixer, and hop 0 also starts a new event at the mixer after
+	 * next, until the end time.
+	 */
+	static class Mixer implements SimComponent<Object> {
+		final long id;
+		final long next;
+		final long later;
+		final long end;
+		long count;
+		long sum;
+		long hash;
+
+		Mixer(long id, long next, long later, long end) {
+			this.id = id;
+			this.next = next;
+			this.later = later;
+			this.end = end;
+		}
+
+		@Override
+		public List<Event<Object>> execute(Event<Object> msg) {
+			List<Event<Object>> result = new ArrayList<Event<Object>>();
+			execute(msg, result);
+			return result;
+		}
+
+		@Override
+		public void execute(Event<Object> msg, List<Event<Object>> out) {
+			long value = (Long) msg.getData();
+			long time = msg.getlTime();
+			long hops = value & 3;
+			count++;
+			sum += value * id + msg.getSrcID();
+			hash += Long.rotateLeft(value * 0x9E3779B97F4A7C15L + time, (int) msg.getSrcID());
+			if (hops < 2) {
+				out.add(event(time, time, 0, value + 1));
+			}
+			if (hops < 3) {
+				out.add(event(time, time + next, 1, value + 1));
+			}
+			if (hops == 0 && time < end) {
+				out.add(event(time, time + later, 2, value + 4));
+			}
+		}
+
+		private Event<Object> event(long created, long time, int port, long value) {
+			Event<Object> event = EventPool.obtain(created, time, id, port, 0, 0);
+			event.setData(value);
+			return event;
+		}
+
+		@Override
+		public List<Event<Object>> init() {
+			Event<Object> event = new Event<Object>(0, 0, id, 0, id, 0);
+			event.setData(id * 1000 * 4);
+			return new ArrayList<Event<Object>>(List.of(event));
+		}
+
+		@Override
+		public String[] getState() {
+			return new String[] { "" + id, getClass().getName(), "" + count, "" + sum, "" + hash };
+		}
+
+		@Override
+		public void setState(String[] args) {
+			count = Long.parseLong(args[2]);
+			sum = Long.parseLong(args[3]);
+			hash = Long.parseLong(args[4]);
+		}
+
+		@Override
+		public void restart(long time) {
+		}
+	}
+
+}
@@ -0,0 +1,230 @@
+package rs.ac.bg.etf.sleep.simulation;
+
+import java.util.*;
+
+/**
+ * Rollbacks of {@link SimulatorOptimistic}: its buffer hands out a random
+ * one of the earliest pending events, so stragglers keep arriving and roll
+ * components back, cancel what they sent with anti-messages and coast
+ * forward from older checkpoints. The ring of mixers it runs depends on the
+ * order of its events in time, every run must end in the state
+ * {@link SimulatorSinglethread} reaches and every anti-message must have met
+ * the event it cancels.
+ *
+ * Arguments: [runs] [window] [mixers] [tokens] [end time]
+ */
+public class TestTimeWarp {
+	/** Checkpoint interval of the runs, so rollbacks coast forward. */
+	static final int CHECKPOINT = 4;
+
+	public static void main(String[] args) {
+		int runs = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int window = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int mixers = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		int tokens = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+		long end = args.length > 4 ? Long.parseLong(args[4]) : 200;
+		Netlist<Object> netlist = ring(mixers, tokens, end);
+		Simulator<Object> reference = new SimulatorSinglethread<Object>(1);
+		reference.setNetlist(netlist);
+		reference.init();
+		while (reference.loop()) {
+		}
+		List<String> expected = state(netlist);
+
+		int checkpoint = SimulatorOptimistic.CHECKPOINT;
+		SimulatorOptimistic.CHECKPOINT = CHECKPOINT;
+		long rollbacks = 0;
+		long coasted = 0;
+		long antiMessages = 0;
+		for (int run = 0; run < runs; run++) {
+			netlist = ring(mixers, tokens, end);
+			SimulatorOptimistic<Object> simulator = new SimulatorOptimistic<Object>(1,
+					new Shuffled<Object>(window, run));
+			simulator.setNetlist(netlist);
+			simulator.init();
+			while (simulator.loop()) {
+			}
+			check(state(netlist).equals(expected), "run " + run + " ended in another state");
+			check(simulator.pendingAnti.isEmpty(), "run " + run + " left " + simulator.pendingAnti.size()
+					+ " anti-messages waiting");
+			check(simulator.getAnnihilated() == simulator.getAntiMessages(), "run " + run + " annihilated "
+					+ simulator.getAnnihilated() + " of " + simulator.getAntiMessages() + " anti-messages");
+			rollbacks += simulator.getRollbacks() + simulator.getSecondaryRollbacks();
+			coasted += simulator.getCoasted();
+			antiMessages += simulator.getAntiMessages();
+		}
+		SimulatorOptimistic.CHECKPOINT = checkpoint;
+		System.out.println(runs + " runs: " + rollbacks + " rollbacks, " + coasted + " events coasted, "
+				+ antiMessages + " anti-messages");
+		check(rollbacks > 0 && coasted > 0 && antiMessages > 0, "the runs did not roll back");
+		System.out.println("ok");
+	}
+
+	static List<String> state(Netlist<Object> netlist) {
+		List<String> result = new ArrayList<String>();
+		for (SimComponent<Object> component : netlist.getComponents().values()) {
+			result.add(String.join(" ", component.getState()));
+		}
+		return result;
+	}
+
+	static void check(boolean condition, String failure) {
+		if (!condition) {
+			System.out.println("FAILED: " + failure);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Mixer i sends its events on to mixer i + 1, the first tokens mixers
+	 * start with one.
+	 */
+	static Netlist<Object> ring(int mixers, int tokens, long end) {
+		Netlist<Object> netlist = new Netlist<Object>();
+		for (int i = 1; i <= mixers; i++) {
+			netlist.addComponent(i, new Mixer(i, i <= tokens, end));
+			netlist.addConnection(i, 1, i % mixers + 1, 0);
+		}
+		return netlist;
+	}
+
+	/**
+	 * Hands out a random one of the window earliest pending events.
+	 */
+	static class Shuffled<T> implements SimBuffer<T> {
+		final List<Event<T>> events;
+		final Random random;
+		final int window;
+
+		Shuffled(int window, long seed) {
+			events = new ArrayList<Event<T>>();
+			random = new Random(seed);
+			this.window = window;
+		}
+
+		@Override
+		public void putEvent(Event<T> event) {
+			events.add(event);
+		}
+
+		@Override
+		public void putEvents(List<Event<T>> events) {
+			this.events.addAll(events);
+		}
+
+		@Override
+		public Event<T> getEvent() {
+			events.sort(Comparator.comparingLong(Event<T>::getlTime));
+			return events.remove(random.nextInt(Math.min(window, events.size())));
+		}
+
+		@Override
+		public List<Event<T>> getEvents() {
+			List<Event<T>> result = new ArrayList<Event<T>>();
+			result.add(getEvent());
+			return result;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return events.isEmpty();
+		}
+
+		@Override
+		public boolean cancel(Event<T> anti) {
+			for (Iterator<Event<T>> it = events.iterator(); it.hasNext();) {
+				if (it.next().matches(anti)) {
+					it.remove();
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public long getMinrank() {
+			long result = Long.MAX_VALUE;
+			for (Event<T> event : events) {
+				result = Math.min(result, event.getlTime());
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Folds the events it gets into a hash, time after time, so a component
+	 * that executed them out of order ends in another state. Events at the
+	 * same time are added up first, their order does not matter. What it
+	 * sends on depends on the hash, so a rolled back component sends other
+	 * events than those it cancels.
+	 */
+	static class Mixer implements SimComponent<Object> {
+		final long id;
+		final boolean token;
+		final long end;
+		long count;
+		long time;
+		long sum;
+		long hash;
+
+		Mixer(long id, boolean token, long end) {
+			this.id = id;
+			this.token = token;
+			this.end = end;
+		}
+
+		@Override
+		public List<Event<Object>> execute(Event<Object> msg) {
+			List<Event<Object>> result = new ArrayList<Event<Object>>();
+			execute(msg, result);
+			return result;
+		}
+
+		@Override
+		public void execute(Event<Object> msg, List<Event<Object>> out) {
+			long value = (Long) msg.getData();
+			if (msg.getlTime() > time) {
+				hash = hash * 31 + sum;
+				sum = 0;
+				time = msg.getlTime();
+			}
+			count++;
+			sum += value;
+			if (time < end) {
+				long next = (value * 5 + (hash & 0xFF)) & 0xFFFFF;
+				Event<Object> event = EventPool.obtain(time, time + 1 + next % 3, id, 1, 0, 0);
+				event.setData(next);
+				out.add(event);
+			}
+		}
+
+		@Override
+		public List<Event<Object>> init() {
+			List<Event<Object>> result = new ArrayList<Event<Object>>();
+			if (token) {
+				Event<Object> event = new Event<Object>(0, id, id, 0, id, 0);
+				event.setData(id);
+				result.add(event);
+			}
+			return result;
+		}
+
+		@Override
+		public String[] getState() {
+			return new String[] { "" + id, getClass().getName(), "" + count, "" + time, "" + sum, "" + hash };
+		}
+
+		@Override
+		public void setState(String[] args) {
+			count = Long.parseLong(args[2]);
+			time = Long.parseLong(args[3]);
+			sum = Long.parseLong(args[4]);
+			hash = Long.parseLong(args[5]);
+		}
+
+		@Override
+		public void restart(long time) {
+		}
+	}
+
+}